@@ -0,0 +1,51 @@
+package edu.asu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.asu.parser.Translator;
+
+/**
+ * Time to parse a generated source and to emit its intermediate code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	public int statements;
+
+	private String source;
+
+	@Setup
+	public void setUp() {
+		source = ProgramGenerator.source(statements);
+	}
+
+	@Benchmark
+	public Object parse() {
+		return Translator.parse(new ANTLRInputStream(source));
+	}
+
+	@Benchmark
+	public String compile() {
+		return Translator.generateIntermediateCode(Translator
+				.parse(new ANTLRInputStream(source)));
+	}
+}
@@ -0,0 +1,115 @@
+package edu.asu.bench;
+
+/**
+ * Generates Bitsy sources of a given size for the benchmarks.
+ */
+public class ProgramGenerator {
+
+	/**
+	 * Representative workloads, each running a loop or a recursion size
+	 * times.
+	 */
+	public enum Workload {
+		RECURSION, LOOP, STACK, LOGIC
+	}
+
+	public static String generate(Workload workload, int size) {
+		switch (workload) {
+		case RECURSION:
+			return recursion(size);
+		case LOOP:
+			return loop(size);
+		case STACK:
+			return stack(size);
+		case LOGIC:
+			return logic(size);
+		default:
+			throw new IllegalArgumentException(workload.toString());
+		}
+	}
+
+	/**
+	 * @return a recursive function calling itself size times
+	 */
+	public static String recursion(int size) {
+		return "print(sum(" + size + "));\n"
+				+ "func sum(int n) {\n"
+				+ "\tif(n == 0) {\n"
+				+ "\t\treturn 0;\n"
+				+ "\t}\n"
+				+ "\treturn n + sum(n - 1);\n"
+				+ "}\n";
+	}
+
+	/**
+	 * @return a while loop doing arithmetic size times
+	 */
+	public static String loop(int size) {
+		return "int i = 0;\n"
+				+ "int s = 0;\n"
+				+ "while(i < " + size + ") {\n"
+				+ "\ts = s + i % 7 * 3 - 1;\n"
+				+ "\ti++;\n"
+				+ "}\n"
+				+ "print(s);\n";
+	}
+
+	/**
+	 * @return size pushes on a stack variable followed by as many pops
+	 */
+	public static String stack(int size) {
+		return "stack st;\n"
+				+ "int i = 0;\n"
+				+ "while(i < " + size + ") {\n"
+				+ "\tst.push(i);\n"
+				+ "\ti++;\n"
+				+ "}\n"
+				+ "int s = 0;\n"
+				+ "while(st.isEmpty() == false) {\n"
+				+ "\ts = s + st.pop();\n"
+				+ "}\n"
+				+ "print(s);\n";
+	}
+
+	/**
+	 * @return a loop evaluating boolean expressions size times
+	 */
+	public static String logic(int size) {
+		return "int i = 0;\n"
+				+ "int count = 0;\n"
+				+ "while(i < " + size + ") {\n"
+				+ "\tbool b = i % 2 == 0 && i % 3 != 0 || i > 5 && i < 9;\n"
+				+ "\tif(b == true) {\n"
+				+ "\t\tcount++;\n"
+				+ "\t}\n"
+				+ "\ti++;\n"
+				+ "}\n"
+				+ "print(count);\n";
+	}
+
+	/**
+	 * @return a straight program of about size statements with declarations,
+	 *         conditions, loops and function calls
+	 */
+	public static String source(int size) {
+		StringBuilder source = new StringBuilder();
+		int functions = 0;
+		for (int i = 0; i < size; i += 4) {
+			source.append("int v").append(i).append(" = ").append(i)
+					.append(" * 2 + (3 - 1) ^ 2;\n");
+			source.append("if(v").append(i).append(" > 10 && v").append(i)
+					.append(" != 12) {\n\tv").append(i).append("++;\n}\n");
+			source.append("while(v").append(i).append(" < 5) {\n\tv")
+					.append(i).append(" = v").append(i).append(" + 1;\n}\n");
+			if (i % 100 == 0) {
+				source.append("print(f").append(functions).append("(v")
+						.append(i).append("));\n");
+				source.append("func f").append(functions++)
+						.append("(int a) {\n\treturn a % 3;\n}\n");
+			} else {
+				source.append("print(v").append(i).append(");\n");
+			}
+		}
+		return source.toString();
+	}
+}
@@ -0,0 +1,86 @@
+package edu.asu.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.asu.bench.ProgramGenerator.Workload;
+import edu.asu.parser.Translator;
+import edu.asu.runtime.Engine;
+import edu.asu.runtime.Program;
+import edu.asu.runtime.ProgramLoader;
+import edu.asu.runtime.VM;
+
+/**
+ * Time to run generated programs, either from their intermediate code text
+ * (tokenizing and decoding included) or from an already decoded
+ * {@link Program}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VMBenchmark {
+
+	@Param({ "RECURSION", "LOOP", "STACK", "LOGIC" })
+	public Workload workload;
+
+	@Param({ "100", "10000" })
+	public int size;
+
+	@Param({ "0", "2" })
+	public int optimizationLevel;
+
+	@Param({ "SWITCH", "TABLE" })
+	public Engine engine;
+
+	private String code;
+	private Program program;
+	private PrintStream out;
+
+	@Setup
+	public void setUp() {
+		code = Translator.generateIntermediateCode(
+				Translator.parse(new ANTLRInputStream(ProgramGenerator
+						.generate(workload, size))), optimizationLevel);
+		program = ProgramLoader.decode(ProgramLoader.tokenize(code));
+		// the programs print their result
+		out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.setOut(out);
+	}
+
+	@Benchmark
+	public void runText() {
+		VM.run(code, engine);
+	}
+
+	@Benchmark
+	public void runProgram() {
+		engine.createMachine(program).run();
+	}
+}
@@ -18,9 +18,9 @@ public class Main {
 			}
 		}
 		System.out
-				.println("Usage: -c | --compile along with args for sourcepath and destpath");
+				.println("Usage: -c | --compile along with args for optional -O<level>, --inline-depth=<count>, --inline-budget=<instructions>, --memoize, --cache=<dir>, sourcepath and destpath (.int or .bbc), or --batch <directory>");
 		System.out
-				.println("    or -e | --execute along with arg for intermediate code path");
+				.println("    or -e | --execute along with args for optional --engine=switch|table|register, --jit or --jit-threshold=<count>, --max-call-depth=<count>, --no-verify, --profile[=<json file>] and intermediate code path (.int or .bbc), or --batch <directory> without --profile");
 		return;
 	}
 }
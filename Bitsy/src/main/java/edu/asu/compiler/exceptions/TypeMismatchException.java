@@ -0,0 +1,21 @@
+package edu.asu.compiler.exceptions;
+
+import org.antlr.v4.runtime.Token;
+
+public class TypeMismatchException extends CompileTimeException {
+	private String expectedType;
+	private String actualType;
+
+	public TypeMismatchException(Token expressionToken, String expectedType,
+			String actualType) {
+		super(expressionToken);
+		this.expectedType = expectedType;
+		this.actualType = actualType;
+	}
+
+	@Override
+	public String getMessage() {
+		return line + ":" + column + " type mismatch: <" + actualType
+				+ "> found where <" + expectedType + "> is expected";
+	}
+}
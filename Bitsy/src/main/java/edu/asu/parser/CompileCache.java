@@ -0,0 +1,269 @@
+package edu.asu.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.asu.runtime.Instruction;
+
+/**
+ * On-disk cache of intermediate code, keyed by a hash of the source, of the
+ * compiler version and of the class files generating and optimizing the
+ * code, so that a rebuilt compiler never reuses code generated by the
+ * previous one. Whole programs are cached as their final code so a
+ * hit skips lexing, parsing and visiting. The unoptimized code of every
+ * function is cached as well, so that a program whose functions only
+ * partly changed only visits the edited ones again.
+ * <p>
+ * Entries are files of the cache directory. Reading an entry updates its
+ * modification time, and the least recently used entries are deleted once
+ * the directory grows past its maximum size. The cache is only an
+ * optimization: an entry that cannot be read or written is a miss.
+ */
+public class CompileCache {
+
+	public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+	// to be increased whenever the format of the entries changes
+	private static final String COMPILER_VERSION = "2";
+	// classes whose code decides the generated code
+	private static final Class<?>[] CODE_GENERATOR = { MyBitsyVisitor.class,
+			Optimizer.class, Inliner.class, Memoizer.class,
+			TypeInference.class, IntermediateInstruction.class };
+	private static final byte[] CODE_GENERATOR_HASH = hashCodeGenerator();
+	private static final String PROGRAM_SUFFIX = ".int";
+	private static final String FUNCTION_SUFFIX = ".fn";
+
+	private final Path directory;
+	private final long maxSize;
+
+	/**
+	 * Code of a function and the stack variables it declares.
+	 */
+	public static class CachedFunction {
+		private final List<String> stackVariables;
+		private final List<IntermediateInstruction> instructions;
+
+		public CachedFunction(List<String> stackVariables,
+				List<IntermediateInstruction> instructions) {
+			this.stackVariables = stackVariables;
+			this.instructions = instructions;
+		}
+
+		public List<String> getStackVariables() {
+			return stackVariables;
+		}
+
+		public List<IntermediateInstruction> getInstructions() {
+			return instructions;
+		}
+	}
+
+	public CompileCache(Path directory, long maxSize) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the hash of the compiler version, the code generator, the
+	 *         instruction set and the parts
+	 */
+	public static String key(String... parts) {
+		MessageDigest digest = newDigest();
+		digest.update(COMPILER_VERSION.getBytes(StandardCharsets.UTF_8));
+		digest.update(CODE_GENERATOR_HASH);
+		digest.update(Arrays.toString(Instruction.values()).getBytes(
+				StandardCharsets.UTF_8));
+		for (String part : parts) {
+			digest.update((byte) 0);
+			digest.update(part.getBytes(StandardCharsets.UTF_8));
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * @return the hash of the class files of the code generator, of their
+	 * names only when they cannot be read
+	 */
+	private static byte[] hashCodeGenerator() {
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[8192];
+		for (Class<?> generator : CODE_GENERATOR) {
+			digest.update(generator.getName().getBytes(StandardCharsets.UTF_8));
+			try (InputStream in = generator.getResourceAsStream(generator
+					.getSimpleName() + ".class")) {
+				if (in == null) {
+					continue;
+				}
+				for (int read; (read = in.read(buffer)) > 0;) {
+					digest.update(buffer, 0, read);
+				}
+			} catch (IOException e) {
+				// hashed by name only
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * @return the cached code of a program, null if there is none
+	 */
+	public List<IntermediateInstruction> getProgram(String key) {
+		String content = read(key + PROGRAM_SUFFIX);
+		return content == null ? null : parse(content);
+	}
+
+	/**
+	 * Caches the code of a program then evicts the least recently used
+	 * entries exceeding the size of the cache.
+	 */
+	public void putProgram(String key, List<IntermediateInstruction> instructions) {
+		write(key + PROGRAM_SUFFIX, "", instructions);
+		evict();
+	}
+
+	/**
+	 * @return the cached function, null if there is none
+	 */
+	public CachedFunction getFunction(String key) {
+		String content = read(key + FUNCTION_SUFFIX);
+		if (content == null) {
+			return null;
+		}
+		// the first line lists the stack variables
+		int lineEnd = content.indexOf('\n');
+		List<IntermediateInstruction> instructions = lineEnd < 0 ? null
+				: parse(content.substring(lineEnd + 1));
+		if (instructions == null) {
+			return null;
+		}
+		String stacks = content.substring(0, lineEnd).trim();
+		List<String> stackVariables = stacks.isEmpty() ? Collections
+				.<String> emptyList() : Arrays.asList(stacks.split(" "));
+		return new CachedFunction(stackVariables, instructions);
+	}
+
+	public void putFunction(String key, CachedFunction function) {
+		write(key + FUNCTION_SUFFIX,
+				String.join(" ", function.getStackVariables()) + "\n",
+				function.getInstructions());
+	}
+
+	private static List<IntermediateInstruction> parse(String content) {
+		try {
+			return IntermediateInstruction.parse(content);
+		} catch (IllegalArgumentException e) {
+			// written by another version of the compiler
+			return null;
+		}
+	}
+
+	private String read(String fileName) {
+		Path file = directory.resolve(fileName);
+		try {
+			String content = new String(Files.readAllBytes(file),
+					StandardCharsets.UTF_8);
+			Files.setLastModifiedTime(file,
+					FileTime.fromMillis(System.currentTimeMillis()));
+			return content;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Writes a temporary file first so that concurrent compilations never
+	 * read a partial entry.
+	 */
+	private void write(String fileName, String header,
+			List<IntermediateInstruction> instructions) {
+		Path temp = null;
+		try {
+			temp = Files.createTempFile(directory, "entry", ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temp,
+					StandardCharsets.UTF_8)) {
+				writer.write(header);
+				IntermediateInstruction.write(instructions, writer);
+			}
+			Files.move(temp, directory.resolve(fileName),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// the entry is simply not cached
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException ignored) {
+					// a stale temporary file is never read
+				}
+			}
+		}
+	}
+
+	/*
+	 * Synchronized as the compilations of a batch share the cache; an entry
+	 * deleted meanwhile by another compiler is skipped.
+	 */
+	private synchronized void evict() {
+		Map<Path, FileTime> lastUses = new HashMap<>();
+		Map<Path, Long> sizes = new HashMap<>();
+		long size = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(PROGRAM_SUFFIX)
+						|| name.endsWith(FUNCTION_SUFFIX)) {
+					try {
+						lastUses.put(file, Files.getLastModifiedTime(file));
+						sizes.put(file, Files.size(file));
+					} catch (IOException e) {
+						lastUses.remove(file);
+						continue;
+					}
+					size += sizes.get(file);
+				}
+			}
+		} catch (IOException e) {
+			// evicted again on the next put
+			return;
+		}
+		List<Path> entries = new ArrayList<>(lastUses.keySet());
+		entries.sort((a, b) -> lastUses.get(a).compareTo(lastUses.get(b)));
+		for (Path entry : entries) {
+			if (size <= maxSize) {
+				break;
+			}
+			size -= sizes.get(entry);
+			try {
+				Files.deleteIfExists(entry);
+			} catch (IOException e) {
+				// deleted on the next put
+			}
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package edu.asu.parser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.asu.runtime.Instruction;
+
+/**
+ * Replaces the calls of small non-recursive functions with their code, run
+ * by the {@link Optimizer} from level 3. Functions are the labels not
+ * generated by {@link MyBitsyVisitor}, and the call graph is built from
+ * their CALL and TAILCALL instructions, so that cached functions are
+ * inlined as well.
+ * <p>
+ * A function is inlined when it only has parameters, which get new slots
+ * in the frame of the caller, and reads global variables without assigning
+ * them. Its stores of the arguments then go to the new slots, its returns
+ * jump after the inlined code and a tail call becomes a call. Functions
+ * using stack variables or variable names are never inlined, their state
+ * belonging to the frame of a call.
+ * <p>
+ * Inlined code can call other functions, which are inlined in turn up to
+ * the maximum depth. Every inlined instruction is taken from the budget of
+ * the whole program, so that the code grows by at most the budget.
+ */
+public class Inliner {
+
+	public static final int DEFAULT_MAX_DEPTH = 3;
+	public static final int DEFAULT_BUDGET = 512;
+	// instructions of the largest function inlined
+	private static final int MAX_FUNCTION_SIZE = 32;
+
+	private static class Function {
+		private final String name;
+		// the label and the declarations
+		private final List<IntermediateInstruction> header = new ArrayList<>();
+		private final List<IntermediateInstruction> body = new ArrayList<>();
+		private final Set<String> callees = new HashSet<>();
+		private boolean inlinable;
+
+		private Function(String name) {
+			this.name = name;
+		}
+	}
+
+	/*
+	 * Code inlined into, with the slots it gains.
+	 */
+	private static class Caller {
+		private final boolean main;
+		private int frameSize;
+		private final List<IntermediateInstruction> declarations = new ArrayList<>();
+
+		private Caller(boolean main, int frameSize) {
+			this.main = main;
+			this.frameSize = frameSize;
+		}
+	}
+
+	private final int maxDepth;
+	private int budget;
+	private int inlineCounter = 0;
+	private final Map<String, Function> functions = new LinkedHashMap<>();
+
+	/**
+	 * @param maxDepth
+	 *            how many calls deep inlined code is inlined into
+	 * @param budget
+	 *            how many instructions can be inlined into the program
+	 */
+	public Inliner(int maxDepth, int budget) {
+		this.maxDepth = maxDepth;
+		this.budget = budget;
+	}
+
+	public List<IntermediateInstruction> inline(
+			List<IntermediateInstruction> code) {
+		int mainEnd = 0;
+		while (mainEnd < code.size() && !isFunctionLabel(code.get(mainEnd))) {
+			mainEnd++;
+		}
+		Function current = null;
+		for (IntermediateInstruction instr : code.subList(mainEnd, code.size())) {
+			if (isFunctionLabel(instr)) {
+				current = new Function(instr.getOperand());
+				functions.put(current.name, current);
+			}
+			if (current.body.isEmpty() && isDeclaration(instr)) {
+				current.header.add(instr);
+			} else {
+				current.body.add(instr);
+			}
+			if (instr.is(Instruction.CALL) || instr.is(Instruction.TAILCALL)) {
+				current.callees.add(instr.getOperand());
+			}
+		}
+		for (Function function : functions.values()) {
+			function.inlinable = isInlinable(function);
+		}
+
+		List<IntermediateInstruction> main = code.subList(0, mainEnd);
+		int mainDeclarations = 0;
+		while (mainDeclarations < main.size()
+				&& main.get(mainDeclarations).is(Instruction.VAR)) {
+			mainDeclarations++;
+		}
+		Caller mainCaller = new Caller(true, mainDeclarations);
+		List<IntermediateInstruction> mainBody = inlineCalls(
+				main.subList(mainDeclarations, main.size()), mainCaller, 0);
+		List<IntermediateInstruction> inlined = new ArrayList<>(
+				main.subList(0, mainDeclarations));
+		inlined.addAll(mainCaller.declarations);
+		inlined.addAll(mainBody);
+		for (Function function : functions.values()) {
+			Caller caller = new Caller(false, function.header.size() - 1);
+			List<IntermediateInstruction> body = inlineCalls(function.body,
+					caller, 0);
+			inlined.addAll(function.header);
+			inlined.addAll(caller.declarations);
+			inlined.addAll(body);
+		}
+		return inlined;
+	}
+
+	private static boolean isFunctionLabel(IntermediateInstruction instr) {
+		return instr.is(Instruction.LABEL)
+				&& !instr.getOperand().startsWith(MyBitsyVisitor.LABEL_PREFIX);
+	}
+
+	private static boolean isDeclaration(IntermediateInstruction instr) {
+		return isFunctionLabel(instr) || instr.is(Instruction.VAR)
+				|| instr.is(Instruction.GLOBAL);
+	}
+
+	private boolean isInlinable(Function function) {
+		List<IntermediateInstruction> body = function.body;
+		if (body.isEmpty() || body.size() > MAX_FUNCTION_SIZE
+				|| isRecursive(function)) {
+			return false;
+		}
+		// all the slots must be parameters, stored first
+		int parameters = function.header.size() - 1;
+		for (IntermediateInstruction declaration : function.header) {
+			if (declaration.is(Instruction.GLOBAL)) {
+				return false;
+			}
+		}
+		for (int i = 0; i < parameters; i++) {
+			if (i >= body.size() || !body.get(i).is(Instruction.STORE_SLOT)) {
+				return false;
+			}
+		}
+		for (IntermediateInstruction instr : body) {
+			switch (instr.getInstruction()) {
+			case LOAD:
+			case STORE:
+			case STACK_PUSH:
+			case STACK_POP:
+			case STACK_PEEK:
+			case STACK_ISEMPTY:
+				return false;
+			default:
+				break;
+			}
+		}
+		// it must not run into the code following it
+		IntermediateInstruction last = body.get(body.size() - 1);
+		return last.is(Instruction.RET) || last.is(Instruction.TAILCALL);
+	}
+
+	private boolean isRecursive(Function function) {
+		Set<String> visited = new HashSet<>();
+		Deque<String> pending = new ArrayDeque<>(function.callees);
+		while (!pending.isEmpty()) {
+			String name = pending.pop();
+			if (name.equals(function.name)) {
+				return true;
+			}
+			Function callee = functions.get(name);
+			if (callee != null && visited.add(name)) {
+				pending.addAll(callee.callees);
+			}
+		}
+		return false;
+	}
+
+	private List<IntermediateInstruction> inlineCalls(
+			List<IntermediateInstruction> code, Caller caller, int depth) {
+		List<IntermediateInstruction> result = new ArrayList<>(code.size());
+		for (IntermediateInstruction instr : code) {
+			Function callee = instr.is(Instruction.CALL) ? functions.get(instr
+					.getOperand()) : null;
+			if (callee != null && callee.inlinable && depth < maxDepth
+					&& callee.body.size() <= budget) {
+				budget -= callee.body.size();
+				result.addAll(inlineCalls(copy(callee, caller), caller,
+						depth + 1));
+			} else {
+				result.add(instr);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * @return the body of the function with its slots moved to new slots of
+	 * the caller and its labels renamed
+	 */
+	private List<IntermediateInstruction> copy(Function function, Caller caller) {
+		int base = caller.frameSize;
+		inlineCounter++;
+		for (IntermediateInstruction declaration : function.header) {
+			if (declaration.is(Instruction.VAR)) {
+				caller.declarations.add(new IntermediateInstruction(
+						Instruction.VAR, function.name + "#" + inlineCounter
+								+ "." + declaration.getOperand()));
+				caller.frameSize++;
+			}
+		}
+		String prefix = MyBitsyVisitor.LABEL_PREFIX + "inline" + inlineCounter
+				+ "_";
+		String end = prefix + "end";
+		boolean jumpsToEnd = false;
+		List<IntermediateInstruction> copy = new ArrayList<>();
+		List<IntermediateInstruction> body = function.body;
+		for (int i = 0; i < body.size(); i++) {
+			IntermediateInstruction instr = body.get(i);
+			boolean last = i == body.size() - 1;
+			Instruction instruction = instr.getInstruction();
+			switch (instruction) {
+			case RET:
+				break;
+			case TAILCALL:
+				copy.add(new IntermediateInstruction(Instruction.CALL, instr
+						.getOperand()));
+				break;
+			case LOAD_GLOBAL:
+				// the main frame is the frame of the caller
+				copy.add(caller.main ? new IntermediateInstruction(
+						Instruction.LOAD_SLOT, instr.getOperand()) : instr);
+				break;
+			default: {
+				String[] operands = instr.getOperands().clone();
+				Instruction.Operand[] kinds = instruction.getOperands();
+				for (int j = 0; j < operands.length; j++) {
+					if (kinds[j] == Instruction.Operand.SLOT) {
+						operands[j] = Integer.toString(base
+								+ Integer.parseInt(operands[j]));
+					} else if (kinds[j] == Instruction.Operand.LABEL
+							|| kinds[j] == Instruction.Operand.ADDRESS
+							&& instruction != Instruction.CALL) {
+						operands[j] = prefix + operands[j];
+					}
+				}
+				copy.add(new IntermediateInstruction(instruction, operands));
+			}
+			}
+			if ((instruction == Instruction.RET || instruction == Instruction.TAILCALL)
+					&& !last) {
+				copy.add(new IntermediateInstruction(Instruction.JMP, end));
+				jumpsToEnd = true;
+			}
+		}
+		if (jumpsToEnd) {
+			copy.add(new IntermediateInstruction(Instruction.LABEL, end));
+		}
+		return copy;
+	}
+}
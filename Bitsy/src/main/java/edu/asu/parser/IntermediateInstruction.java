@@ -0,0 +1,123 @@
+package edu.asu.parser;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.asu.runtime.Instruction;
+import edu.asu.runtime.ProgramLoader;
+import edu.asu.runtime.ValueType;
+
+/**
+ * One line of intermediate code: an instruction and its operands as written
+ * in the code, string constants keeping their quotes.
+ */
+public class IntermediateInstruction {
+
+	private static final Pattern WORD = Pattern.compile("(\"[^\"]+\")|\\S+");
+
+	private final Instruction instruction;
+	private final String[] operands;
+
+	public IntermediateInstruction(Instruction instruction, String... operands) {
+		this.instruction = instruction;
+		this.operands = operands;
+	}
+
+	public Instruction getInstruction() {
+		return instruction;
+	}
+
+	/**
+	 * @return the first operand, null if there is none
+	 */
+	public String getOperand() {
+		return operands.length == 0 ? null : operands[0];
+	}
+
+	public String[] getOperands() {
+		return operands;
+	}
+
+	public boolean is(Instruction other) {
+		return instruction == other;
+	}
+
+	/**
+	 * @return the operand of a PUSH without its quotes
+	 */
+	public String getConstant() {
+		return operands[0].replaceAll("\"", "");
+	}
+
+	/**
+	 * @return the {@link ValueType} of a PUSH operand, -1 for any
+	 *         other instruction
+	 */
+	public byte getConstantType() {
+		if (instruction != Instruction.PUSH) {
+			return -1;
+		}
+		return ValueType.typeOf(getConstant());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder line = new StringBuilder(instruction.toString());
+		for (String operand : operands) {
+			line.append(' ').append(operand);
+		}
+		return line.toString();
+	}
+
+	public static List<IntermediateInstruction> parse(String code) {
+		List<IntermediateInstruction> instructions = new ArrayList<>();
+		Matcher m = WORD.matcher(code);
+		while (m.find()) {
+			Instruction instruction = Instruction.valueOf(m.group());
+			String[] operands = new String[instruction.getOperands().length];
+			for (int i = 0; i < operands.length && m.find(); i++) {
+				operands[i] = m.group();
+			}
+			instructions.add(new IntermediateInstruction(instruction, operands));
+		}
+		return instructions;
+	}
+
+	public static String toString(List<IntermediateInstruction> instructions) {
+		StringBuilder code = new StringBuilder();
+		for (IntermediateInstruction instruction : instructions) {
+			code.append(instruction).append('\n');
+		}
+		return code.toString();
+	}
+
+	/**
+	 * Writes the instructions one per line.
+	 */
+	public static void write(List<IntermediateInstruction> instructions,
+			Writer writer) throws IOException {
+		for (IntermediateInstruction instruction : instructions) {
+			writer.write(instruction.toString());
+			writer.write('\n');
+		}
+	}
+
+	/**
+	 * @return the words of the instructions as split by
+	 *         {@link ProgramLoader#tokenize(String)}
+	 */
+	public static String[] toWords(List<IntermediateInstruction> instructions) {
+		List<String> words = new ArrayList<>();
+		for (IntermediateInstruction instruction : instructions) {
+			words.add(instruction.instruction.toString());
+			for (String operand : instruction.operands) {
+				words.add(operand.replaceAll("\"", ""));
+			}
+		}
+		return words.toArray(new String[0]);
+	}
+}
@@ -0,0 +1,136 @@
+package edu.asu.parser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.asu.runtime.Instruction;
+
+/**
+ * Declares the pure functions of a program with a PURE instruction after
+ * their label, so that the VM caches their results by their arguments. A
+ * function is pure when it neither prints nor reads input, only uses its
+ * own slots, no named or stack variable and no global variable, and only
+ * calls pure functions. Its parameters are the slots its code starts by
+ * storing the arguments to.
+ * <p>
+ * Functions are found like the {@link Inliner} does, and must end with a
+ * RET or a TAILCALL so that they never run into the code following them.
+ */
+public class Memoizer {
+
+	private static class Function {
+		private final int label;
+		private final List<IntermediateInstruction> code = new ArrayList<>();
+		private boolean pure = true;
+
+		private Function(int label) {
+			this.label = label;
+		}
+	}
+
+	public List<IntermediateInstruction> memoize(
+			List<IntermediateInstruction> code) {
+		Map<String, Function> functions = new LinkedHashMap<>();
+		Function current = null;
+		for (int i = 0; i < code.size(); i++) {
+			IntermediateInstruction instr = code.get(i);
+			if (isFunctionLabel(instr)) {
+				current = new Function(i);
+				functions.put(instr.getOperand(), current);
+			} else if (current != null) {
+				current.code.add(instr);
+			}
+		}
+		for (Function function : functions.values()) {
+			function.pure = hasNoSideEffects(function);
+		}
+		// a function calling an impure function is not pure either
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Function function : functions.values()) {
+				if (function.pure && callsImpureFunction(function, functions)) {
+					function.pure = false;
+					changed = true;
+				}
+			}
+		}
+
+		List<IntermediateInstruction> memoized = new ArrayList<>(code.size()
+				+ functions.size());
+		int next = 0;
+		for (Function function : functions.values()) {
+			if (function.pure) {
+				memoized.addAll(code.subList(next, function.label + 1));
+				memoized.add(new IntermediateInstruction(Instruction.PURE,
+						Integer.toString(countParameters(function))));
+				next = function.label + 1;
+			}
+		}
+		memoized.addAll(code.subList(next, code.size()));
+		return memoized;
+	}
+
+	private static boolean isFunctionLabel(IntermediateInstruction instr) {
+		return instr.is(Instruction.LABEL)
+				&& !instr.getOperand().startsWith(MyBitsyVisitor.LABEL_PREFIX);
+	}
+
+	private static boolean hasNoSideEffects(Function function) {
+		List<IntermediateInstruction> code = function.code;
+		if (code.isEmpty()) {
+			return false;
+		}
+		for (IntermediateInstruction instr : code) {
+			switch (instr.getInstruction()) {
+			case HALT:
+			case PRINT:
+			case INPUT:
+			case LOAD:
+			case STORE:
+			case LOAD_GLOBAL:
+			case GLOBAL:
+			case STACK_PUSH:
+			case STACK_POP:
+			case STACK_PEEK:
+			case STACK_ISEMPTY:
+				return false;
+			default:
+				break;
+			}
+		}
+		IntermediateInstruction last = code.get(code.size() - 1);
+		return last.is(Instruction.RET) || last.is(Instruction.TAILCALL);
+	}
+
+	private static boolean callsImpureFunction(Function function,
+			Map<String, Function> functions) {
+		for (IntermediateInstruction instr : function.code) {
+			if (instr.is(Instruction.CALL) || instr.is(Instruction.TAILCALL)) {
+				Function called = functions.get(instr.getOperand());
+				if (called == null || !called.pure) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * @return the number of arguments stored or popped by the code following
+	 * the declarations, which no statement starts with
+	 */
+	private static int countParameters(Function function) {
+		int parameters = 0;
+		for (IntermediateInstruction instr : function.code) {
+			if (instr.is(Instruction.STORE_SLOT) || instr.is(Instruction.POP)) {
+				parameters++;
+			} else if (!instr.is(Instruction.VAR)) {
+				break;
+			}
+		}
+		return parameters;
+	}
+}
@@ -1,15 +1,28 @@
 package edu.asu.parser;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Interval;
 import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.RuleNode;
 
 import compiler.parser.BitsyBaseVisitor;
 import compiler.parser.BitsyParser.AssignWithDeclContext;
 import compiler.parser.BitsyParser.AssignmentContext;
+import compiler.parser.BitsyParser.BaseBoolExprContext;
+import compiler.parser.BitsyParser.BaseNumExprContext;
+import compiler.parser.BitsyParser.BoolExprContext;
+import compiler.parser.BitsyParser.BoolExprParanContext;
+import compiler.parser.BitsyParser.BoolExpressionContext;
 import compiler.parser.BitsyParser.BooleanContext;
 import compiler.parser.BitsyParser.ConditionBlockContext;
 import compiler.parser.BitsyParser.DivContext;
@@ -30,6 +43,9 @@ import compiler.parser.BitsyParser.MainStatementContext;
 import compiler.parser.BitsyParser.MinusContext;
 import compiler.parser.BitsyParser.ModContext;
 import compiler.parser.BitsyParser.MultContext;
+import compiler.parser.BitsyParser.NumExprContext;
+import compiler.parser.BitsyParser.NumExprParanContext;
+import compiler.parser.BitsyParser.NumExpressionContext;
 import compiler.parser.BitsyParser.NegativeContext;
 import compiler.parser.BitsyParser.NotEqContext;
 import compiler.parser.BitsyParser.NumberContext;
@@ -48,6 +64,7 @@ import compiler.parser.BitsyParser.PrintExprContext;
 import compiler.parser.BitsyParser.PrintTextContext;
 import compiler.parser.BitsyParser.ProgramContext;
 import compiler.parser.BitsyParser.ReturnStatContext;
+import compiler.parser.BitsyParser.StackExprContext;
 import compiler.parser.BitsyParser.StackIsEmptyContext;
 import compiler.parser.BitsyParser.StackPeekContext;
 import compiler.parser.BitsyParser.StackPopContext;
@@ -59,349 +76,686 @@ import compiler.parser.BitsyParser.VariableDeclarationContext;
 import compiler.parser.BitsyParser.WhileConditionBlockContext;
 import compiler.parser.BitsyParser.WhileStatContext;
 
+import edu.asu.compiler.exceptions.TypeMismatchException;
 import edu.asu.compiler.exceptions.UndeclaredVariableException;
 import edu.asu.compiler.exceptions.VariableAlreadyDefinedException;
-
-public class MyBitsyVisitor extends BitsyBaseVisitor<String> {
-
-	private Set<String> variables = new HashSet<>();
+import edu.asu.parser.CompileCache.CachedFunction;
+import edu.asu.runtime.Instruction;
+
+/**
+ * Generates the intermediate code of a program. Instructions are appended to
+ * the list of the main code or of the functions as the tree is visited, so
+ * generation takes time linear in the size of the program;
+ * {@link #getInstructions()} returns the whole program once it is visited.
+ */
+public class MyBitsyVisitor extends BitsyBaseVisitor<Void> {
+
+	static final String LABEL_PREFIX = "label_";
+	private static final String INT = "int";
+	private static final String BOOL = "bool";
+
+	// slot of every variable of the current function's frame
+	private Map<String, Integer> variables = new HashMap<>();
+	// variables of the current function's frame, in slot order
+	private List<String> frame = new ArrayList<>();
+	// number of leading slots of the frame copied from global variables
+	private int globalSlots = 0;
+	// main frame slot of every global variable visible in the function
+	private Map<String, Integer> globalVariables = new HashMap<>();
 	private Set<String> stackVariables = new HashSet<>();
+	// declared type of every int and bool variable visible in the function
+	private Map<String, String> variableTypes = new HashMap<>();
 	private int labelCounter = 1;
 	private Stack<String> scopeEndLabel = new Stack<String>();
+	private final List<IntermediateInstruction> mainCode = new ArrayList<>();
+	private final List<IntermediateInstruction> functionCode = new ArrayList<>();
+	// list the visited statements are appended to
+	private List<IntermediateInstruction> code = mainCode;
+	private List<IntermediateInstruction> instructions;
+	// null when functions are not cached
+	private final CompileCache cache;
+
+	public MyBitsyVisitor() {
+		this(null);
+	}
+
+	/**
+	 * Creates a visitor reusing the code of the functions found in the cache
+	 * and caching the others.
+	 */
+	public MyBitsyVisitor(CompileCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the instructions of the visited program
+	 */
+	public List<IntermediateInstruction> getInstructions() {
+		return instructions;
+	}
 
 	@Override
-	public String visitPrintExpr(PrintExprContext ctx) {
-		return visit(ctx.argument) + "PRINT" + "\n";
+	public Void visitPrintExpr(PrintExprContext ctx) {
+		visit(ctx.argument);
+		emit(Instruction.PRINT);
+		return null;
 	}
 
 	@Override
-	public String visitInput(InputContext ctx) {
-		return "INPUT" + "\n";
+	public Void visitInput(InputContext ctx) {
+		emit(Instruction.INPUT);
+		return null;
 	}
 
 	@Override
-	public String visitPrintText(PrintTextContext ctx) {
-		return "PUSH " + ctx.text.getText() + "\n" + "PRINT" + "\n";
+	public Void visitPrintText(PrintTextContext ctx) {
+		emit(Instruction.PUSH, ctx.text.getText());
+		emit(Instruction.PRINT);
+		return null;
 	}
 
 	@Override
-	public String visitPlus(PlusContext ctx) {
-		return visitChildren(ctx) + "ADD" + "\n";
+	public Void visitPlus(PlusContext ctx) {
+		checkTypes(INT, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.ADD);
 	}
 
 	@Override
-	public String visitMinus(MinusContext ctx) {
-		return visitChildren(ctx) + "SUB" + "\n";
+	public Void visitMinus(MinusContext ctx) {
+		checkTypes(INT, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.SUB);
 	}
 
 	@Override
-	public String visitDiv(DivContext ctx) {
-		return visitChildren(ctx) + "DIV" + "\n";
+	public Void visitDiv(DivContext ctx) {
+		checkTypes(INT, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.DIV);
 	}
 
 	@Override
-	public String visitMult(MultContext ctx) {
-		return visitChildren(ctx) + "MUL" + "\n";
+	public Void visitMult(MultContext ctx) {
+		checkTypes(INT, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.MUL);
 	}
 
 	@Override
-	public String visitPower(PowerContext ctx) {
-		return visitChildren(ctx) + "POW" + "\n";
+	public Void visitPower(PowerContext ctx) {
+		checkTypes(INT, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.POW);
 	}
 
 	@Override
-	public String visitMod(ModContext ctx) {
-		return visitChildren(ctx) + "MOD" + "\n";
+	public Void visitMod(ModContext ctx) {
+		checkTypes(INT, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.MOD);
 	}
 
 	@Override
-	public String visitStackPush(StackPushContext ctx) {
-		return visit(ctx.expr) + "STACK_PUSH "
-				+ getStackVariableNameIfExist(ctx.varName) + "\n";
+	public Void visitStackPush(StackPushContext ctx) {
+		visit(ctx.expr);
+		emit(Instruction.STACK_PUSH, getStackVariableNameIfExist(ctx.varName));
+		return null;
 	}
 
 	@Override
-	public String visitStackPop(StackPopContext ctx) {
-		return "STACK_POP " + getStackVariableNameIfExist(ctx.varName) + "\n";
+	public Void visitStackPop(StackPopContext ctx) {
+		emit(Instruction.STACK_POP, getStackVariableNameIfExist(ctx.varName));
+		return null;
 	}
 
 	@Override
-	public String visitStackPeek(StackPeekContext ctx) {
-		return "STACK_PEEK " + getStackVariableNameIfExist(ctx.varName) + "\n";
+	public Void visitStackPeek(StackPeekContext ctx) {
+		emit(Instruction.STACK_PEEK, getStackVariableNameIfExist(ctx.varName));
+		return null;
 	}
 
 	@Override
-	public String visitStackIsEmpty(StackIsEmptyContext ctx) {
-		return "STACK_ISEMPTY " + getStackVariableNameIfExist(ctx.varName)
-				+ "\n";
+	public Void visitStackIsEmpty(StackIsEmptyContext ctx) {
+		emit(Instruction.STACK_ISEMPTY,
+				getStackVariableNameIfExist(ctx.varName));
+		return null;
 	}
 
 	@Override
-	public String visitNumber(NumberContext ctx) {
-		return "PUSH " + ctx.number.getText() + "\n";
+	public Void visitNumber(NumberContext ctx) {
+		emit(Instruction.PUSH, ctx.number.getText());
+		return null;
 	}
 
 	@Override
-	public String visitBoolean(BooleanContext ctx) {
-		return "PUSH " + ctx.boolValue.getText() + "\n";
+	public Void visitBoolean(BooleanContext ctx) {
+		emit(Instruction.PUSH, ctx.boolValue.getText());
+		return null;
 	}
 
 	// TODO:
 	@Override
-	public String visitPostIncExpr(PostIncExprContext ctx) {
-		return visitChildren(ctx) + "PUSH 1" + "\n" + "ADD" + "\n";
+	public Void visitPostIncExpr(PostIncExprContext ctx) {
+		checkTypes(INT, ctx.numExpression());
+		visitChildren(ctx);
+		emit(Instruction.PUSH, "1");
+		emit(Instruction.ADD);
+		return null;
 	}
 
 	// TODO: Prefix and Postfix expr should be handled differently
 	@Override
-	public String visitPostDecExpr(PostDecExprContext ctx) {
-		return visitChildren(ctx) + "PUSH 1" + "\n" + "SUB" + "\n";
+	public Void visitPostDecExpr(PostDecExprContext ctx) {
+		checkTypes(INT, ctx.numExpression());
+		visitChildren(ctx);
+		emit(Instruction.PUSH, "1");
+		emit(Instruction.SUB);
+		return null;
 	}
 
 	@Override
-	public String visitPreIncExpr(PreIncExprContext ctx) {
-		return visitChildren(ctx) + "PUSH 1" + "\n" + "ADD" + "\n";
+	public Void visitPreIncExpr(PreIncExprContext ctx) {
+		checkTypes(INT, ctx.numExpression());
+		visitChildren(ctx);
+		emit(Instruction.PUSH, "1");
+		emit(Instruction.ADD);
+		return null;
 	}
 
 	@Override
-	public String visitPreDecExpr(PreDecExprContext ctx) {
-		return visitChildren(ctx) + "PUSH 1" + "\n" + "SUB" + "\n";
+	public Void visitPreDecExpr(PreDecExprContext ctx) {
+		checkTypes(INT, ctx.numExpression());
+		visitChildren(ctx);
+		emit(Instruction.PUSH, "1");
+		emit(Instruction.SUB);
+		return null;
 	}
 
 	@Override
-	public String visitVariableDeclaration(VariableDeclarationContext ctx) {
+	public Void visitVariableDeclaration(VariableDeclarationContext ctx) {
 		String name = ctx.varName.getText();
-		if (variables.contains(name) || stackVariables.contains(name)) {
+		if (isDefined(name)) {
 			throw new VariableAlreadyDefinedException(ctx.varName);
 		}
-		variables.add(ctx.varName.getText());
-		return "";
+		variables.put(name, frame.size());
+		frame.add(name);
+		variableTypes.put(name, ctx.getChild(0).getText());
+		return null;
 	}
 
 	@Override
-	public String visitStackVariableDeclaration(
+	public Void visitStackVariableDeclaration(
 			StackVariableDeclarationContext ctx) {
 		String name = ctx.varName.getText();
-		if (variables.contains(name) || stackVariables.contains(name)) {
+		if (isDefined(name)) {
 			throw new VariableAlreadyDefinedException(ctx.varName);
 		}
 		stackVariables.add(ctx.varName.getText());
-		return "";
+		return null;
 	}
 
 	@Override
-	public String visitAssignment(AssignmentContext ctx) {
-		return visit(ctx.expr) + "STORE " + getVariableNameIfExist(ctx.varName)
-				+ "\n";
+	public Void visitAssignment(AssignmentContext ctx) {
+		checkTypes(variableTypes.get(ctx.varName.getText()), ctx.expr);
+		visit(ctx.expr);
+		emitStore(ctx.varName);
+		return null;
 	}
 
 	@Override
-	public String visitAssignWithDecl(
+	public Void visitAssignWithDecl(
 			AssignWithDeclContext ctx) {
 		VarDeclarationContext varDecCtx = ctx.varDeclaration();
-		return visit(varDecCtx) + visit(ctx.expr) + "STORE "
-				+ getVariableNameToken(varDecCtx).getText() + "\n";
+		visit(varDecCtx);
+		checkTypes(variableTypes.get(getVariableNameToken(varDecCtx).getText()),
+				ctx.expr);
+		visit(ctx.expr);
+		emitStore(getVariableNameToken(varDecCtx));
+		return null;
 	}
 
 	@Override
-	public String visitVariable(VariableContext ctx) {
-		return "LOAD " + getVariableNameIfExist(ctx.varName) + "\n";
+	public Void visitVariable(VariableContext ctx) {
+		loadVariable(ctx.varName);
+		return null;
 	}
 
 	@Override
-	public String visitLogicalAND(LogicalANDContext ctx) {
-		return visitChildren(ctx) + "AND" + "\n";
+	public Void visitLogicalAND(LogicalANDContext ctx) {
+		checkTypes(BOOL, ctx.left, ctx.right);
+		return visitShortCircuit(ctx.left, ctx.right, false);
 	}
 
 	@Override
-	public String visitLogicalOR(LogicalORContext ctx) {
-		return visitChildren(ctx) + "OR" + "\n";
+	public Void visitLogicalOR(LogicalORContext ctx) {
+		checkTypes(BOOL, ctx.left, ctx.right);
+		return visitShortCircuit(ctx.left, ctx.right, true);
 	}
 
 	@Override
-	public String visitLess(LessContext ctx) {
-		return visitChildren(ctx) + "ISGE" + "\n" + "NOT" + "\n";
+	public Void visitLess(LessContext ctx) {
+		checkTypes(INT, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.ISGE, Instruction.NOT);
 	}
 
 	@Override
-	public String visitLessEq(LessEqContext ctx) {
-		return visitChildren(ctx) + "ISGT" + "\n" + "NOT" + "\n";
+	public Void visitLessEq(LessEqContext ctx) {
+		checkTypes(INT, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.ISGT, Instruction.NOT);
 	}
 
 	@Override
-	public String visitGreater(GreaterContext ctx) {
-		return visitChildren(ctx) + "ISGT" + "\n";
+	public Void visitGreater(GreaterContext ctx) {
+		checkTypes(INT, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.ISGT);
 	}
 
 	@Override
-	public String visitGreaterEq(GreaterEqContext ctx) {
-		return visitChildren(ctx) + "ISGE" + "\n";
+	public Void visitGreaterEq(GreaterEqContext ctx) {
+		checkTypes(INT, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.ISGE);
 	}
 
 	@Override
-	public String visitIsEq(IsEqContext ctx) {
-		return visitChildren(ctx) + "ISEQ" + "\n";
+	public Void visitIsEq(IsEqContext ctx) {
+		checkTypes(typeOf(ctx.left), ctx.right);
+		return visitBinary(ctx, Instruction.ISEQ);
 	}
 
 	@Override
-	public String visitNotEq(NotEqContext ctx) {
-		return visitChildren(ctx) + "ISEQ" + "\n" + "NOT" + "\n";
+	public Void visitNotEq(NotEqContext ctx) {
+		checkTypes(typeOf(ctx.left), ctx.right);
+		return visitBinary(ctx, Instruction.ISEQ, Instruction.NOT);
 	}
 
 	@Override
-	public String visitLogicalIsEq(LogicalIsEqContext ctx) {
-		return visitChildren(ctx) + "ISEQ" + "\n";
+	public Void visitLogicalIsEq(LogicalIsEqContext ctx) {
+		checkTypes(BOOL, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.ISEQ);
 	}
 
 	@Override
-	public String visitLogicalNotEq(LogicalNotEqContext ctx) {
-		return visitChildren(ctx) + "ISEQ" + "\n" + "NOT" + "\n";
+	public Void visitLogicalNotEq(LogicalNotEqContext ctx) {
+		checkTypes(BOOL, ctx.left, ctx.right);
+		return visitBinary(ctx, Instruction.ISEQ, Instruction.NOT);
 	}
 
 	@Override
-	public String visitIfStat(IfStatContext ctx) {
+	public Void visitIfStat(IfStatContext ctx) {
 		String label = generateLabel();
 		scopeEndLabel.push(label);
-		String result = visitChildren(ctx) + "LABEL " + label + "\n";
+		visitChildren(ctx);
+		emit(Instruction.LABEL, label);
 		scopeEndLabel.pop();
-		return result;
+		return null;
 	}
 
 	@Override
-	public String visitConditionBlock(ConditionBlockContext ctx) {
+	public Void visitConditionBlock(ConditionBlockContext ctx) {
 		String label = generateLabel();
-		String result = visit(ctx.expr);
-		result += "JIF " + label + "\n";
-		result += visit(ctx.statements);
-		result += "JMP " + getScopeEndLabel() + "\n";
-		result += "LABEL " + label + "\n";
-		return result;
+		emitConditionalJump(ctx.expr, false, label, false);
+		visit(ctx.statements);
+		emit(Instruction.JMP, getScopeEndLabel());
+		emit(Instruction.LABEL, label);
+		return null;
 	}
 
 	@Override
-	public String visitWhileStat(WhileStatContext ctx) {
+	public Void visitWhileStat(WhileStatContext ctx) {
 		String label = generateLabel();
 		scopeEndLabel.push(label);
-		String result = visitChildren(ctx) + "LABEL " + label + "\n";
+		visitChildren(ctx);
+		emit(Instruction.LABEL, label);
 		scopeEndLabel.pop();
-		return result;
+		return null;
 	}
 
 	@Override
-	public String visitWhileConditionBlock(WhileConditionBlockContext ctx) {
+	public Void visitWhileConditionBlock(WhileConditionBlockContext ctx) {
 		String label = generateLabel();
-		String result = "LABEL " + label + "\n";
-		result += visit(ctx.expr);
-		result += "JIF " + getScopeEndLabel() + "\n";
-		result += visit(ctx.statements);
-		result += "JMP " + label + "\n";
-		return result;
+		emit(Instruction.LABEL, label);
+		emitConditionalJump(ctx.expr, false, getScopeEndLabel(), false);
+		visit(ctx.statements);
+		emit(Instruction.JMP, label);
+		return null;
 	}
 
 	@Override
-	public String visitFunctionCall(FunctionCallContext ctx) {
-		String instructions = "";
-		String argumentsInstructions = visit(ctx.arguments);
-		if (argumentsInstructions != null) {
-			instructions += argumentsInstructions;
-		}
-		instructions += "CALL " + ctx.funcName.getText() + "\n";
-		return instructions;
+	public Void visitFunctionCall(FunctionCallContext ctx) {
+		visit(ctx.arguments);
+		emit(Instruction.CALL, ctx.funcName.getText());
+		return null;
 	}
 
 	@Override
-	public String visitFunctionDefinition(FunctionDefinitionContext ctx) {
-		Set<String> oldVariables = variables;;
-		variables = new HashSet<>();
-		//add global variables at function level
-		variables.addAll(oldVariables);
+	public Void visitFunctionDefinition(FunctionDefinitionContext ctx) {
+		String cacheKey = null;
+		Set<String> oldStackVariables = null;
+		if (cache != null) {
+			cacheKey = functionCacheKey(ctx);
+			CachedFunction cached = cache.getFunction(cacheKey);
+			if (cached != null) {
+				emitCachedFunction(cached);
+				return null;
+			}
+			oldStackVariables = new HashSet<>(stackVariables);
+		}
+		int functionStart = functionCode.size();
+		Map<String, Integer> oldVariables = variables;
+		List<String> oldFrame = frame;
+		int oldGlobalSlots = globalSlots;
+		Map<String, Integer> oldGlobalVariables = globalVariables;
+		Map<String, String> oldVariableTypes = variableTypes;
+		List<IntermediateInstruction> oldCode = code;
+		//global variables are read from the main frame, the ones the function
+		//assigns get a slot in its own frame so the change stays local
+		globalVariables = new HashMap<>(oldVariables);
+		variableTypes = new HashMap<>(oldVariableTypes);
+		variables = new HashMap<>();
+		frame = new ArrayList<>();
+		code = functionCode;
+		Set<String> assigned = new HashSet<>();
+		collectAssignedVariables(ctx.statements, assigned);
+		for (String name : oldFrame) {
+			if (assigned.contains(name)) {
+				variables.put(name, frame.size());
+				frame.add(name);
+			}
+		}
+		globalSlots = frame.size();
 		visit(ctx.params);
-		String statementInstructions = visit(ctx.statements);
-		String result = "LABEL " + ctx.funcName.getText() + "\n";
+		emit(Instruction.LABEL, ctx.funcName.getText());
+		//the frame is only known once the statements are visited
+		int frameDeclarationIndex = code.size();
 		int numberOfParameters = ctx.params.declarations.size();
 		for (int i = numberOfParameters - 1; i >= 0; i--) {
-			result += "STORE "
-					+ getVariableNameToken(ctx.params.declarations.get(i))
-							.getText() + "\n";
+			VarDeclarationContext param = ctx.params.declarations.get(i);
+			if (param instanceof StackVariableDeclarationContext) {
+				emit(Instruction.POP);
+			} else {
+				emitStore(getVariableNameToken(param));
+			}
+		}
+		visit(ctx.statements);
+		code.addAll(frameDeclarationIndex, frameDeclaration());
+		if (cacheKey != null) {
+			List<String> declaredStacks = new ArrayList<>(stackVariables);
+			declaredStacks.removeAll(oldStackVariables);
+			cache.putFunction(cacheKey, new CachedFunction(declaredStacks,
+					new ArrayList<>(code.subList(functionStart, code.size()))));
 		}
-		result += (statementInstructions == null ? "" : statementInstructions);
 		//revert to global variables
 		variables = oldVariables;
-		return result;
+		frame = oldFrame;
+		globalSlots = oldGlobalSlots;
+		globalVariables = oldGlobalVariables;
+		variableTypes = oldVariableTypes;
+		code = oldCode;
+		return null;
 	}
 
 	@Override
-	public String visitReturnStat(ReturnStatContext ctx) {
-		String result = "";
+	public Void visitReturnStat(ReturnStatContext ctx) {
 		if(ctx.returnValue != null) {
-			result += visitChildren(ctx);
+			visitChildren(ctx);
 		}
-		return result + "RET\n";
+		if (code == functionCode && !code.isEmpty()
+				&& code.get(code.size() - 1).is(Instruction.CALL)) {
+			// a call in tail position reuses the frame it would return to
+			code.set(code.size() - 1, new IntermediateInstruction(
+					Instruction.TAILCALL, code.get(code.size() - 1)
+							.getOperand()));
+		} else {
+			emit(Instruction.RET);
+		}
+		return null;
 	}
 
 	@Override
-	public String visitPostIncVar(PostIncVarContext ctx) {
-		return "LOAD " + getVariableNameIfExist(ctx.varName) + "\n" + "PUSH 1"
-				+ "\n" + "ADD" + "\n" + "STORE "
-				+ getVariableNameIfExist(ctx.varName) + "\n";
+	public Void visitPostIncVar(PostIncVarContext ctx) {
+		checkVariableType(ctx.varName, INT);
+		loadVariable(ctx.varName);
+		emit(Instruction.PUSH, "1");
+		emit(Instruction.ADD);
+		emitStore(ctx.varName);
+		return null;
 	}
 
 	@Override
-	public String visitPostDecVar(PostDecVarContext ctx) {
-		return "LOAD " + getVariableNameIfExist(ctx.varName) + "\n" + "PUSH 1"
-				+ "\n" + "SUB" + "\n" + "STORE "
-				+ getVariableNameIfExist(ctx.varName) + "\n";
+	public Void visitPostDecVar(PostDecVarContext ctx) {
+		checkVariableType(ctx.varName, INT);
+		loadVariable(ctx.varName);
+		emit(Instruction.PUSH, "1");
+		emit(Instruction.SUB);
+		emitStore(ctx.varName);
+		return null;
 	}
 
 	@Override
-	public String visitPreIncVar(PreIncVarContext ctx) {
-		return "LOAD " + getVariableNameIfExist(ctx.varName) + "\n" + "PUSH 1"
-				+ "\n" + "ADD" + "\n" + "STORE "
-				+ getVariableNameIfExist(ctx.varName) + "\n";
+	public Void visitPreIncVar(PreIncVarContext ctx) {
+		checkVariableType(ctx.varName, INT);
+		String slot = Integer.toString(getVariableSlotIfExist(ctx.varName));
+		emit(Instruction.LOAD_SLOT, slot);
+		emit(Instruction.PUSH, "1");
+		emit(Instruction.ADD);
+		emit(Instruction.STORE_SLOT, slot);
+		return null;
 	}
 
 	@Override
-	public String visitPreDecVar(PreDecVarContext ctx) {
-		return "LOAD " + getVariableNameIfExist(ctx.varName) + "\n" + "PUSH 1"
-				+ "\n" + "SUB" + "\n" + "STORE "
-				+ getVariableNameIfExist(ctx.varName) + "\n";
+	public Void visitPreDecVar(PreDecVarContext ctx) {
+		checkVariableType(ctx.varName, INT);
+		String slot = Integer.toString(getVariableSlotIfExist(ctx.varName));
+		emit(Instruction.LOAD_SLOT, slot);
+		emit(Instruction.PUSH, "1");
+		emit(Instruction.SUB);
+		emit(Instruction.STORE_SLOT, slot);
+		return null;
 	}
 
 	@Override
-	public String visitPositive(PositiveContext ctx) {
-		return visitChildren(ctx) + "\n";
+	public Void visitPositive(PositiveContext ctx) {
+		checkTypes(INT, ctx.numExpression());
+		return visitChildren(ctx);
 	}
 
 	@Override
-	public String visitNegative(NegativeContext ctx) {
-		return "PUSH 0 " + visitChildren(ctx) + "\n" + "SUB " + "\n";
+	public Void visitNegative(NegativeContext ctx) {
+		checkTypes(INT, ctx.numExpression());
+		emit(Instruction.PUSH, "0");
+		visitChildren(ctx);
+		emit(Instruction.SUB);
+		return null;
 	}
 
 	@Override
-	protected String aggregateResult(String aggregate, String nextResult) {
-		if (aggregate == null) {
-			return nextResult;
+	public Void visitProgram(ProgramContext ctx) {
+		for (int i = 0; i < ctx.getChildCount(); ++i) {
+			visit(ctx.getChild(i));
 		}
-		if (nextResult == null) {
-			return aggregate;
+		List<IntermediateInstruction> declarations = frameDeclaration();
+		instructions = new ArrayList<>(declarations.size() + mainCode.size()
+				+ 1 + functionCode.size());
+		instructions.addAll(declarations);
+		instructions.addAll(mainCode);
+		instructions.add(new IntermediateInstruction(Instruction.HALT));
+		instructions.addAll(functionCode);
+		return null;
+	}
+
+	/*
+	 * Emits the operands then the instructions of the operation.
+	 */
+	private Void visitBinary(RuleNode ctx, Instruction... operation) {
+		visitChildren(ctx);
+		for (Instruction instruction : operation) {
+			emit(instruction);
+		}
+		return null;
+	}
+
+	/*
+	 * Evaluates the right operand only when the left one does not decide the
+	 * result, jumping to push the result otherwise. As with AND and OR, both
+	 * operands are read as booleans: NOT NOT converts them, which the
+	 * optimizer removes after a comparison.
+	 */
+	private Void visitShortCircuit(BoolExpressionContext left,
+			BoolExpressionContext right, boolean result) {
+		String decided = generateLabel();
+		String end = generateLabel();
+		emitConditionalJump(left, result, decided, true);
+		visit(right);
+		emit(Instruction.NOT);
+		emit(Instruction.NOT);
+		emit(Instruction.JMP, end);
+		emit(Instruction.LABEL, decided);
+		emit(Instruction.PUSH, Boolean.toString(result));
+		emit(Instruction.LABEL, end);
+		return null;
+	}
+
+	/*
+	 * Jumps to the label when the condition has the given outcome. The
+	 * operands of && and || jump as soon as they decide it, so the right ones
+	 * only run when needed; being operands, they are read as booleans.
+	 */
+	private void emitConditionalJump(ParseTree condition, boolean outcome,
+			String label, boolean operand) {
+		if (condition instanceof BoolExprContext) {
+			condition = ((BoolExprContext) condition).boolExpression();
+		}
+		while (condition instanceof BoolExprParanContext) {
+			condition = ((BoolExprParanContext) condition).expr;
+		}
+		boolean and = condition instanceof LogicalANDContext;
+		if (!and && !(condition instanceof LogicalORContext)) {
+			visit(condition);
+			if (operand) {
+				emit(Instruction.NOT);
+				emit(Instruction.NOT);
+			}
+			emit(outcome ? Instruction.JIT : Instruction.JIF, label);
+			return;
+		}
+		ParseTree left = and ? ((LogicalANDContext) condition).left
+				: ((LogicalORContext) condition).left;
+		ParseTree right = and ? ((LogicalANDContext) condition).right
+				: ((LogicalORContext) condition).right;
+		if (and != outcome) {
+			// false for && or true for ||: either operand decides it
+			emitConditionalJump(left, outcome, label, true);
+			emitConditionalJump(right, outcome, label, true);
+		} else {
+			String skip = generateLabel();
+			emitConditionalJump(left, !outcome, skip, true);
+			emitConditionalJump(right, outcome, label, true);
+			emit(Instruction.LABEL, skip);
 		}
-		return aggregate + nextResult;
 	}
 
-	@Override
-	public String visitProgram(ProgramContext ctx) {
-		String mainCode = "";
-		String functions = "";
-		for (int i = 0; i < ctx.getChildCount(); ++i) {
-			ParseTree child = ctx.getChild(i);
-			String instructions = visit(child);
-			if (child instanceof MainStatementContext) {
-				mainCode += instructions;
-			} else {
-				functions += instructions;
+	/*
+	 * The code of a function only depends on its text, on the global
+	 * variables and their types and on the stack variables declared before
+	 * it, the code
+	 * generator being part of every key. It is cached before the optimizer
+	 * runs on the whole program, so the optimizer options are not.
+	 */
+	private String functionCacheKey(FunctionDefinitionContext ctx) {
+		String text = ctx.start.getInputStream().getText(
+				Interval.of(ctx.start.getStartIndex(), ctx.stop.getStopIndex()));
+		List<String> globals = new ArrayList<>(frame.size());
+		for (String name : frame) {
+			globals.add(variableTypes.get(name) + " " + name);
+		}
+		List<String> stacks = new ArrayList<>(stackVariables);
+		Collections.sort(stacks);
+		return CompileCache.key("function", text, String.join(" ", globals),
+				String.join(" ", stacks));
+	}
+
+	/*
+	 * Appends the cached code of a function, its labels being renamed so
+	 * that they stay unique in the program.
+	 */
+	private void emitCachedFunction(CachedFunction cached) {
+		Map<String, String> labels = new HashMap<>();
+		for (IntermediateInstruction instr : cached.getInstructions()) {
+			String[] operands = instr.getOperands();
+			Instruction.Operand[] kinds = instr.getInstruction().getOperands();
+			for (int i = 0; i < operands.length; i++) {
+				boolean label = kinds[i] == Instruction.Operand.LABEL
+						|| kinds[i] == Instruction.Operand.ADDRESS;
+				if (label && operands[i].startsWith(LABEL_PREFIX)) {
+					String renamed = labels.get(operands[i]);
+					if (renamed == null) {
+						renamed = generateLabel();
+						labels.put(operands[i], renamed);
+					}
+					operands[i] = renamed;
+				}
 			}
+			functionCode.add(instr);
+		}
+		stackVariables.addAll(cached.getStackVariables());
+	}
+
+	/*
+	 * Rejects the expressions whose type is known and differs from the
+	 * expected one, if any: the VM reads operands without checking them.
+	 */
+	private void checkTypes(String expected,
+			ParserRuleContext... expressions) {
+		for (ParserRuleContext expression : expressions) {
+			String type = typeOf(expression);
+			if (expected != null && type != null && !type.equals(expected)) {
+				throw new TypeMismatchException(expression.getStart(),
+						expected, type);
+			}
+		}
+	}
+
+	private void checkVariableType(Token varNameToken, String expected) {
+		String type = variableTypes.get(varNameToken.getText());
+		if (type != null && !type.equals(expected)) {
+			throw new TypeMismatchException(varNameToken, expected, type);
+		}
+	}
+
+	/*
+	 * @return int or bool, or null when the type is only known at run time:
+	 * input, stack values and function results are untyped
+	 */
+	private String typeOf(ParseTree expression) {
+		if (expression instanceof NumExprContext) {
+			return typeOf(((NumExprContext) expression).numExpression());
+		} else if (expression instanceof BoolExprContext) {
+			return typeOf(((BoolExprContext) expression).boolExpression());
+		} else if (expression instanceof NumExprParanContext) {
+			return typeOf(((NumExprParanContext) expression).expr);
+		} else if (expression instanceof BoolExprParanContext) {
+			return typeOf(((BoolExprParanContext) expression).expr);
+		} else if (expression instanceof BaseNumExprContext) {
+			return typeOf(((BaseNumExprContext) expression).baseExpression());
+		} else if (expression instanceof BaseBoolExprContext) {
+			return typeOf(((BaseBoolExprContext) expression).baseExpression());
+		} else if (expression instanceof VariableContext) {
+			return variableTypes.get(((VariableContext) expression).varName
+					.getText());
+		} else if (expression instanceof StackExprContext) {
+			boolean isEmpty = ((StackExprContext) expression)
+					.stackExpression() instanceof StackIsEmptyContext;
+			return isEmpty ? BOOL : null;
+		} else if (expression instanceof NumExpressionContext) {
+			return INT;
+		} else if (expression instanceof BoolExpressionContext) {
+			return BOOL;
 		}
-		return mainCode + "HALT\n" + functions;
+		return null;
+	}
+
+	private void emit(Instruction instruction, String... operands) {
+		code.add(new IntermediateInstruction(instruction, operands));
+	}
+
+	private void emitStore(Token varNameToken) {
+		emit(Instruction.STORE_SLOT,
+				Integer.toString(getVariableSlotIfExist(varNameToken)));
 	}
 
 	private Token getVariableNameToken(VarDeclarationContext varDecCtx) {
@@ -414,12 +768,68 @@ public class MyBitsyVisitor extends BitsyBaseVisitor<String> {
 		return varNameToken;
 	}
 
-	private String getVariableNameIfExist(Token varNameToken) {
+	private boolean isDefined(String name) {
+		return variables.containsKey(name) || globalVariables.containsKey(name)
+				|| stackVariables.contains(name);
+	}
+
+	/*
+	 * Variables of the function's frame are loaded from their slot, other
+	 * global variables straight from the main frame.
+	 */
+	private void loadVariable(Token varNameToken) {
 		String varName = varNameToken.getText();
-		if (!variables.contains(varName)) {
+		if (variables.containsKey(varName)) {
+			emit(Instruction.LOAD_SLOT, variables.get(varName).toString());
+		} else if (globalVariables.containsKey(varName)) {
+			emit(Instruction.LOAD_GLOBAL, globalVariables.get(varName)
+					.toString());
+		} else {
+			throw new UndeclaredVariableException(varNameToken);
+		}
+	}
+
+	/*
+	 * Collects the names of the variables assigned anywhere in the tree.
+	 */
+	private void collectAssignedVariables(ParseTree tree, Set<String> names) {
+		if (tree instanceof AssignmentContext) {
+			names.add(((AssignmentContext) tree).varName.getText());
+		} else if (tree instanceof PostIncVarContext) {
+			names.add(((PostIncVarContext) tree).varName.getText());
+		} else if (tree instanceof PostDecVarContext) {
+			names.add(((PostDecVarContext) tree).varName.getText());
+		} else if (tree instanceof PreIncVarContext) {
+			names.add(((PreIncVarContext) tree).varName.getText());
+		} else if (tree instanceof PreDecVarContext) {
+			names.add(((PreDecVarContext) tree).varName.getText());
+		}
+		for (int i = 0; i < tree.getChildCount(); i++) {
+			collectAssignedVariables(tree.getChild(i), names);
+		}
+	}
+
+	private int getVariableSlotIfExist(Token varNameToken) {
+		Integer slot = variables.get(varNameToken.getText());
+		if (slot == null) {
 			throw new UndeclaredVariableException(varNameToken);
 		}
-		return varName;
+		return slot;
+	}
+
+	/*
+	 * Names the slots of the current frame for the VM: GLOBAL slots get the
+	 * value of the main frame's variable of the same name when the function
+	 * is called.
+	 */
+	private List<IntermediateInstruction> frameDeclaration() {
+		List<IntermediateInstruction> result = new ArrayList<>(frame.size());
+		for (int i = 0; i < frame.size(); i++) {
+			result.add(new IntermediateInstruction(
+					i < globalSlots ? Instruction.GLOBAL : Instruction.VAR,
+					frame.get(i)));
+		}
+		return result;
 	}
 
 	private String getStackVariableNameIfExist(Token stackVarNameToken) {
@@ -431,7 +841,7 @@ public class MyBitsyVisitor extends BitsyBaseVisitor<String> {
 	}
 
 	private String generateLabel() {
-		String label = "label_" + labelCounter;
+		String label = LABEL_PREFIX + labelCounter;
 		labelCounter++;
 		return label;
 	}
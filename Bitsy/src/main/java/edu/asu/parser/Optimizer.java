@@ -0,0 +1,479 @@
+package edu.asu.parser;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.asu.runtime.Instruction;
+import edu.asu.runtime.ValueType;
+
+/**
+ * Optimizing pass run on the intermediate code generated by
+ * {@link MyBitsyVisitor}. At level 1 and above it folds constant
+ * expressions, turns a comparison followed by NOT into the opposite
+ * comparison, removes double negations, removes code that can never be
+ * reached and drops labels nothing jumps to. Level 2 then replaces common
+ * sequences with superinstructions: INC/DEC for incrementing a variable,
+ * compare-and-branch instructions for a comparison followed by JIF or JIT
+ * and LOAD_LOAD for two variable loads, and types the operations on
+ * integers and booleans with the {@link TypeInference}. Level 3 first
+ * inlines small functions with the {@link Inliner}. Folding follows the rules of the VM, so
+ * optimized code prints exactly what the original code prints.
+ * <p>
+ * At any level, the optimizer can finally declare the pure functions with
+ * the {@link Memoizer}, so that the VM caches their results.
+ */
+public class Optimizer {
+
+	public static final int MAX_LEVEL = 3;
+	public static final int INLINING_LEVEL = 3;
+
+	private final int level;
+	private final int inlineDepth;
+	private final int inlineBudget;
+	private final boolean memoize;
+
+	public Optimizer(int level) {
+		this(level, Inliner.DEFAULT_MAX_DEPTH, Inliner.DEFAULT_BUDGET);
+	}
+
+	public Optimizer(int level, int inlineDepth, int inlineBudget) {
+		this(level, inlineDepth, inlineBudget, false);
+	}
+
+	/**
+	 * Creates an optimizer inlining calls inlineDepth deep and at most
+	 * inlineBudget instructions at level 3, and declaring the pure
+	 * functions when memoize is true.
+	 */
+	public Optimizer(int level, int inlineDepth, int inlineBudget,
+			boolean memoize) {
+		this.level = level;
+		this.inlineDepth = inlineDepth;
+		this.inlineBudget = inlineBudget;
+		this.memoize = memoize;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return the settings changing the optimized code, for cache keys
+	 */
+	@Override
+	public String toString() {
+		return (level >= INLINING_LEVEL ? level + " " + inlineDepth + " "
+				+ inlineBudget : Integer.toString(level))
+				+ (memoize ? " memoize" : "");
+	}
+
+	public String optimize(String code) {
+		if (level <= 0 && !memoize) {
+			return code;
+		}
+		return IntermediateInstruction.toString(optimize(IntermediateInstruction
+				.parse(code)));
+	}
+
+	public List<IntermediateInstruction> optimize(
+			List<IntermediateInstruction> code) {
+		if (level > 0) {
+			code = simplify(code);
+		}
+		return memoize ? new Memoizer().memoize(code) : code;
+	}
+
+	private List<IntermediateInstruction> simplify(
+			List<IntermediateInstruction> code) {
+		if (level >= INLINING_LEVEL) {
+			code = new Inliner(inlineDepth, inlineBudget).inline(code);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = foldConstants(code);
+			changed |= simplifyNegations(code);
+			changed |= removeJumpsToNext(code);
+			changed |= removeUnreachableCode(code);
+			changed |= removeUnusedLabels(code);
+		}
+		if (level >= 2) {
+			selectSuperinstructions(code);
+			TypeInference.specialize(code);
+		}
+		return code;
+	}
+
+	/*
+	 * PUSH a PUSH b <op> becomes PUSH (a op b), NOT of a boolean constant and
+	 * JIF or JIT on a constant condition are resolved.
+	 */
+	private boolean foldConstants(List<IntermediateInstruction> code) {
+		boolean changed = false;
+		for (int i = 0; i < code.size(); i++) {
+			IntermediateInstruction instr = code.get(i);
+			if (i >= 2 && code.get(i - 1).is(Instruction.PUSH)
+					&& code.get(i - 2).is(Instruction.PUSH)) {
+				String result = foldBinary(instr.getInstruction(),
+						code.get(i - 2), code.get(i - 1));
+				if (result != null) {
+					replace(code, i - 2, 3, new IntermediateInstruction(
+							Instruction.PUSH, result));
+					i -= 2;
+					changed = true;
+					continue;
+				}
+			}
+			if (i >= 1 && code.get(i - 1).getConstantType() == ValueType.BOOL) {
+				boolean value = Boolean.parseBoolean(code.get(i - 1)
+						.getConstant());
+				if (instr.is(Instruction.NOT)) {
+					replace(code, i - 1, 2, new IntermediateInstruction(
+							Instruction.PUSH, Boolean.toString(!value)));
+					i -= 1;
+					changed = true;
+					continue;
+				}
+			}
+			if (i >= 1
+					&& (instr.is(Instruction.JIF) || instr.is(Instruction.JIT))) {
+				byte type = code.get(i - 1).getConstantType();
+				if (type == ValueType.INT || type == ValueType.BOOL) {
+					String constant = code.get(i - 1).getConstant();
+					boolean condition = type == ValueType.INT ? Integer
+							.parseInt(constant) != 0 : Boolean
+							.parseBoolean(constant);
+					if (condition != instr.is(Instruction.JIT)) {
+						replace(code, i - 1, 2);
+					} else {
+						replace(code, i - 1, 2, new IntermediateInstruction(
+								Instruction.JMP, instr.getOperand()));
+					}
+					i -= 1;
+					changed = true;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/*
+	 * @return the folded constant, null if the operation cannot be folded
+	 */
+	private String foldBinary(Instruction instruction,
+			IntermediateInstruction left, IntermediateInstruction right) {
+		byte leftType = left.getConstantType();
+		byte rightType = right.getConstantType();
+		if (leftType == ValueType.STRING || rightType == ValueType.STRING) {
+			return null;
+		}
+		String op1 = left.getConstant();
+		String op2 = right.getConstant();
+		switch (instruction) {
+		case ISEQ:
+			return Boolean.toString(op1.equals(op2));
+		case ISNE:
+			return Boolean.toString(!op1.equals(op2));
+		case AND:
+		case OR:
+			if (leftType != ValueType.BOOL || rightType != ValueType.BOOL) {
+				return null;
+			}
+			boolean b1 = Boolean.parseBoolean(op1);
+			boolean b2 = Boolean.parseBoolean(op2);
+			return Boolean.toString(instruction == Instruction.AND ? b1 && b2
+					: b1 || b2);
+		default:
+			break;
+		}
+		if (leftType != ValueType.INT || rightType != ValueType.INT) {
+			return null;
+		}
+		int n1 = Integer.parseInt(op1);
+		int n2 = Integer.parseInt(op2);
+		switch (instruction) {
+		case ADD:
+			return Integer.toString(n1 + n2);
+		case SUB:
+			return Integer.toString(n1 - n2);
+		case MUL:
+			return Integer.toString(n1 * n2);
+		case DIV:
+			// division by zero is left to fail at runtime
+			return n2 == 0 ? null : Integer.toString(n1 / n2);
+		case MOD:
+			return n2 == 0 ? null : Integer.toString(n1 % n2);
+		case POW:
+			return Integer.toString((int) Math.pow(n1, n2));
+		case ISGE:
+			return Boolean.toString(n1 >= n2);
+		case ISGT:
+			return Boolean.toString(n1 > n2);
+		case ISLE:
+			return Boolean.toString(n1 <= n2);
+		case ISLT:
+			return Boolean.toString(n1 < n2);
+		default:
+			return null;
+		}
+	}
+
+	/*
+	 * <comparison> NOT becomes the opposite comparison, NOT NOT after an
+	 * instruction producing a boolean disappears.
+	 */
+	private boolean simplifyNegations(List<IntermediateInstruction> code) {
+		boolean changed = false;
+		for (int i = 1; i < code.size(); i++) {
+			if (!code.get(i).is(Instruction.NOT)) {
+				continue;
+			}
+			IntermediateInstruction previous = code.get(i - 1);
+			Instruction opposite = opposite(previous.getInstruction());
+			if (opposite != null) {
+				replace(code, i - 1, 2, new IntermediateInstruction(opposite));
+				i -= 1;
+				changed = true;
+			} else if (i >= 2 && previous.is(Instruction.NOT)
+					&& producesBoolean(code.get(i - 2))) {
+				replace(code, i - 1, 2);
+				i -= 1;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static Instruction opposite(Instruction comparison) {
+		switch (comparison) {
+		case ISEQ:
+			return Instruction.ISNE;
+		case ISNE:
+			return Instruction.ISEQ;
+		case ISGE:
+			return Instruction.ISLT;
+		case ISLT:
+			return Instruction.ISGE;
+		case ISGT:
+			return Instruction.ISLE;
+		case ISLE:
+			return Instruction.ISGT;
+		default:
+			return null;
+		}
+	}
+
+	private static boolean producesBoolean(IntermediateInstruction instr) {
+		switch (instr.getInstruction()) {
+		case ISEQ:
+		case ISNE:
+		case ISGE:
+		case ISGT:
+		case ISLE:
+		case ISLT:
+		case AND:
+		case OR:
+		case NOT:
+		case STACK_ISEMPTY:
+			return true;
+		case PUSH:
+			return instr.getConstantType() == ValueType.BOOL;
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * A JMP to one of the labels directly following it does nothing.
+	 */
+	private boolean removeJumpsToNext(List<IntermediateInstruction> code) {
+		boolean changed = false;
+		for (int i = 0; i < code.size(); i++) {
+			if (!code.get(i).is(Instruction.JMP)) {
+				continue;
+			}
+			String target = code.get(i).getOperand();
+			for (int j = i + 1; j < code.size() && code.get(j).is(Instruction.LABEL); j++) {
+				if (code.get(j).getOperand().equals(target)) {
+					code.remove(i);
+					i--;
+					changed = true;
+					break;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/*
+	 * Nothing after a JMP, RET, TAILCALL or HALT runs until the next label.
+	 * Declarations describe the code following them and are kept.
+	 */
+	private boolean removeUnreachableCode(List<IntermediateInstruction> code) {
+		boolean changed = false;
+		for (int i = 0; i < code.size(); i++) {
+			if (!endsFlow(code.get(i).getInstruction())) {
+				continue;
+			}
+			int end = i + 1;
+			while (end < code.size()
+					&& !code.get(end).getInstruction().isPseudo()) {
+				end++;
+			}
+			if (end > i + 1) {
+				replace(code, i + 1, end - i - 1);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/*
+	 * Drops the labels nothing jumps to. A function nothing calls is dropped
+	 * as a whole, from its label to the next function, when the code before
+	 * it cannot run into it; its label is kept otherwise.
+	 */
+	private boolean removeUnusedLabels(List<IntermediateInstruction> code) {
+		Set<String> used = new HashSet<>();
+		for (IntermediateInstruction instr : code) {
+			if (isJump(instr.getInstruction())
+					|| instr.is(Instruction.CALL)
+					|| instr.is(Instruction.TAILCALL)) {
+				used.add(instr.getOperand());
+			}
+		}
+		boolean changed = false;
+		for (int i = 0; i < code.size(); i++) {
+			IntermediateInstruction instr = code.get(i);
+			if (!instr.is(Instruction.LABEL) || used.contains(instr.getOperand())) {
+				continue;
+			}
+			if (!isFunctionLabel(instr)) {
+				code.remove(i);
+				i--;
+				changed = true;
+			} else if (i > 0 && endsFlow(code.get(i - 1).getInstruction())) {
+				int end = i + 1;
+				while (end < code.size() && !isFunctionLabel(code.get(end))) {
+					end++;
+				}
+				replace(code, i, end - i);
+				i--;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private void selectSuperinstructions(List<IntermediateInstruction> code) {
+		for (int i = 0; i < code.size(); i++) {
+			IntermediateInstruction instr = code.get(i);
+			// LOAD_SLOT x PUSH 1 ADD|SUB STORE_SLOT x
+			if (i + 3 < code.size() && instr.is(Instruction.LOAD_SLOT)
+					&& code.get(i + 1).is(Instruction.PUSH)
+					&& code.get(i + 1).getOperand().equals("1")
+					&& (code.get(i + 2).is(Instruction.ADD) || code.get(i + 2)
+							.is(Instruction.SUB))
+					&& code.get(i + 3).is(Instruction.STORE_SLOT)
+					&& code.get(i + 3).getOperand().equals(instr.getOperand())) {
+				Instruction step = code.get(i + 2).is(Instruction.ADD) ? Instruction.INC
+						: Instruction.DEC;
+				replace(code, i, 4, new IntermediateInstruction(step,
+						instr.getOperand()));
+				continue;
+			}
+			// <comparison> JIF|JIT label
+			if (i + 1 < code.size()
+					&& (code.get(i + 1).is(Instruction.JIF) || code.get(i + 1)
+							.is(Instruction.JIT))) {
+				Instruction jump = code.get(i + 1).is(Instruction.JIF) ? jumpUnless(
+						instr.getInstruction()) : jumpIf(instr.getInstruction());
+				if (jump != null) {
+					replace(code, i, 2, new IntermediateInstruction(jump, code
+							.get(i + 1).getOperand()));
+					continue;
+				}
+			}
+			// LOAD_SLOT x LOAD_SLOT y
+			if (i + 1 < code.size() && instr.is(Instruction.LOAD_SLOT)
+					&& code.get(i + 1).is(Instruction.LOAD_SLOT)) {
+				replace(code, i, 2, new IntermediateInstruction(
+						Instruction.LOAD_LOAD, instr.getOperand(), code.get(
+								i + 1).getOperand()));
+			}
+		}
+	}
+
+	/*
+	 * @return the jump taken when the comparison does not hold, null if the
+	 * instruction is not a comparison
+	 */
+	private static Instruction jumpUnless(Instruction comparison) {
+		switch (comparison) {
+		case ISEQ:
+			return Instruction.JNE;
+		case ISNE:
+			return Instruction.JEQ;
+		case ISGE:
+			return Instruction.JLT;
+		case ISLT:
+			return Instruction.JGE;
+		case ISGT:
+			return Instruction.JLE;
+		case ISLE:
+			return Instruction.JGT;
+		default:
+			return null;
+		}
+	}
+
+	/*
+	 * @return the jump taken when the comparison holds, null if the
+	 * instruction is not a comparison
+	 */
+	private static Instruction jumpIf(Instruction comparison) {
+		Instruction unless = jumpUnless(comparison);
+		return unless == null ? null : jumpUnless(opposite(comparison));
+	}
+
+	private static boolean isFunctionLabel(IntermediateInstruction instr) {
+		return instr.is(Instruction.LABEL)
+				&& !instr.getOperand().startsWith(MyBitsyVisitor.LABEL_PREFIX);
+	}
+
+	private static boolean endsFlow(Instruction instruction) {
+		return instruction == Instruction.JMP || instruction == Instruction.RET
+				|| instruction == Instruction.TAILCALL
+				|| instruction == Instruction.HALT;
+	}
+
+	private static boolean isJump(Instruction instruction) {
+		switch (instruction) {
+		case JMP:
+		case JIF:
+		case JIT:
+		case JEQ:
+		case JNE:
+		case JGE:
+		case JGT:
+		case JLE:
+		case JLT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * Replaces count instructions starting at index by the given ones.
+	 */
+	private static void replace(List<IntermediateInstruction> code, int index,
+			int count, IntermediateInstruction... replacement) {
+		List<IntermediateInstruction> range = code.subList(index, index + count);
+		range.clear();
+		for (int i = replacement.length - 1; i >= 0; i--) {
+			code.add(index, replacement[i]);
+		}
+	}
+
+}
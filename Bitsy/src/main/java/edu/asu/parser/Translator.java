@@ -1,79 +1,384 @@
 package edu.asu.parser;
 
-import java.io.File;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 
-import org.antlr.v4.runtime.ANTLRFileStream;
+import org.antlr.v4.runtime.ANTLRErrorListener;
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 
 import compiler.parser.BitsyLexer;
 import compiler.parser.BitsyParser;
+import edu.asu.runtime.Batch;
+import edu.asu.runtime.BytecodeFile;
+import edu.asu.runtime.Program;
+import edu.asu.runtime.ProgramLoader;
 
 public class Translator {
 
+	private static final String CACHE_OPTION = "--cache=";
+	private static final String CACHE_SIZE_OPTION = "--cache-size=";
+	private static final String INLINE_DEPTH_OPTION = "--inline-depth=";
+	private static final String INLINE_BUDGET_OPTION = "--inline-budget=";
+	private static final String MEMOIZE_OPTION = "--memoize";
+
 	public static void main(String[] args) {
 		String srcPath = null;
 		String destPath = null;
-		if (args.length > 0) {
-			srcPath = args[0];
-			if(args.length == 2) {
-				destPath = args[1];
+		int optimizationLevel = 0;
+		String cachePath = null;
+		long cacheSize = CompileCache.DEFAULT_MAX_SIZE;
+		int inlineDepth = Inliner.DEFAULT_MAX_DEPTH;
+		int inlineBudget = Inliner.DEFAULT_BUDGET;
+		boolean batch = false;
+		boolean memoize = false;
+		int argIndex = 0;
+		while (args.length > argIndex && optimizationLevel >= 0
+				&& args[argIndex].startsWith("-")) {
+			String option = args[argIndex++];
+			if (option.startsWith("-O")) {
+				optimizationLevel = parseOptimizationLevel(option);
+			} else if (option.startsWith(CACHE_OPTION)) {
+				cachePath = option.substring(CACHE_OPTION.length());
+			} else if (option.equals(Batch.OPTION)) {
+				batch = true;
+			} else if (option.equals(MEMOIZE_OPTION)) {
+				memoize = true;
+			} else if (option.startsWith(CACHE_SIZE_OPTION)) {
+				cacheSize = parseCacheSize(option
+						.substring(CACHE_SIZE_OPTION.length()));
+				optimizationLevel = cacheSize < 0 ? -1 : optimizationLevel;
+			} else if (option.startsWith(INLINE_DEPTH_OPTION)) {
+				inlineDepth = parseCount(option.substring(INLINE_DEPTH_OPTION
+						.length()));
+				optimizationLevel = inlineDepth < 0 ? -1 : optimizationLevel;
+			} else if (option.startsWith(INLINE_BUDGET_OPTION)) {
+				inlineBudget = parseCount(option.substring(INLINE_BUDGET_OPTION
+						.length()));
+				optimizationLevel = inlineBudget < 0 ? -1 : optimizationLevel;
+			} else {
+				optimizationLevel = -1;
+			}
+		}
+		if (args.length > argIndex && optimizationLevel >= 0
+				&& !(batch && args.length > argIndex + 1)) {
+			srcPath = args[argIndex];
+			if(args.length == argIndex + 2) {
+				destPath = args[argIndex + 1];
 			}
 		} else {
 			System.out
-					.println(" Usage: <sourcepath> to specify where to find input source file");
+					.println(" Usage: [-O<level>] [--inline-depth=<count>] [--inline-budget=<instructions>] [--memoize] [--cache=<dir> [--cache-size=<MB>]] <sourcepath> to specify where to find input source file");
+			System.out
+			.println("\t -O<level> (Optional) optimization level from 0 (default) to " + Optimizer.MAX_LEVEL + ", -O for the highest");
+			System.out
+			.println("\t --inline-depth=<count>, --inline-budget=<instructions> (Optional) how deep level " + Optimizer.INLINING_LEVEL + " inlines calls, " + Inliner.DEFAULT_MAX_DEPTH + " by default, and how many instructions it can add, " + Inliner.DEFAULT_BUDGET + " by default");
+			System.out
+			.println("\t --memoize (Optional) declares the functions without side effects pure, the VM caching their results by their arguments");
+			System.out
+			.println("\t --cache=<dir> (Optional) reuses the code compiled for the same source or functions, keeping at most " + (CompileCache.DEFAULT_MAX_SIZE >> 20) + "MB by default");
 			System.out
 			.println("\t <destinationpath> (Optional) to specify where to save compiled file");
+			System.out
+			.println("\t                  a " + BytecodeFile.EXTENSION + " destination gets binary bytecode");
+			System.out
+			.println("    or [options] --batch <directory> to compile every .tsy file of the directory to a .int file");
 			return;
 		}
-		ANTLRInputStream input = null;
+		CompileCache cache = null;
+		if (cachePath != null) {
+			try {
+				cache = new CompileCache(Paths.get(cachePath), cacheSize);
+			} catch (IOException | InvalidPathException e) {
+				System.out.println("Error: Could not create cache directory "
+						+ cachePath);
+				return;
+			}
+		}
+		Optimizer optimizer = new Optimizer(optimizationLevel, inlineDepth,
+				inlineBudget, memoize);
+		if (batch) {
+			compileBatch(Paths.get(srcPath), optimizer, cache);
+			return;
+		}
+		String source = null;
 		try {
-			input = new ANTLRFileStream(srcPath);
-		} catch (IOException e) {
+			source = new String(Files.readAllBytes(Paths.get(srcPath)));
+		} catch (IOException | InvalidPathException e) {
 			System.out.println("Error: Could not find or load souce file "
 					+ srcPath);
 			return;
 		}
-		if (input != null) {
-			ParseTree tree = parse(input);
-			String intermediateCode = generateIntermediateCode(tree);
-			System.out.println(intermediateCode);
+		if (source != null) {
+			List<IntermediateInstruction> instructions = compile(source,
+					optimizer, cache, ConsoleErrorListener.INSTANCE);
+			printInstructions(instructions);
 			if(destPath == null)
 				destPath = srcPath.substring(0, srcPath.lastIndexOf('.'))
 						+ ".int";
-			createFile(intermediateCode, destPath);
+			int status = destPath.endsWith(BytecodeFile.EXTENSION) ? createBytecodeFile(
+					instructions, destPath) : createFile(instructions, destPath);
+			if (status != 0) {
+				System.exit(status);
+			}
 		}
 	}
 
 	public static ParseTree parse(ANTLRInputStream input) {
+		return parse(input, ConsoleErrorListener.INSTANCE);
+	}
+
+	/**
+	 * Parses the input, reporting syntax errors to the listener.
+	 */
+	public static ParseTree parse(ANTLRInputStream input,
+			ANTLRErrorListener errorListener) {
 		BitsyLexer lexer = new BitsyLexer(input);
+		lexer.removeErrorListeners();
+		lexer.addErrorListener(errorListener);
 		CommonTokenStream tokens = new CommonTokenStream(lexer);
 		BitsyParser parser = new BitsyParser(tokens);
-		ParseTree tree = parser.program();
+		// the faster SLL prediction parses most programs, full LL is only
+		// needed when it fails
+		parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+		parser.removeErrorListeners();
+		parser.setErrorHandler(new BailErrorStrategy());
+		ParseTree tree;
+		try {
+			tree = parser.program();
+		} catch (ParseCancellationException e) {
+			tokens.reset();
+			parser.reset();
+			parser.addErrorListener(errorListener);
+			parser.setErrorHandler(new DefaultErrorStrategy());
+			parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+			tree = parser.program();
+		}
 		//final TreeViewer view = new TreeViewer(null, tree);
 	    //view.open();
 		return tree;
 	}
 
 	public static String generateIntermediateCode(ParseTree tree) {
-		return new MyBitsyVisitor().visit(tree);
+		return generateIntermediateCode(tree, 0);
+	}
+
+	public static String generateIntermediateCode(ParseTree tree,
+			int optimizationLevel) {
+		return IntermediateInstruction.toString(generateInstructions(tree,
+				optimizationLevel));
+	}
+
+	public static List<IntermediateInstruction> generateInstructions(
+			ParseTree tree, int optimizationLevel) {
+		return generateInstructions(tree, optimizationLevel, null);
+	}
+
+	public static List<IntermediateInstruction> generateInstructions(
+			ParseTree tree, int optimizationLevel, CompileCache cache) {
+		return generateInstructions(tree, new Optimizer(optimizationLevel),
+				cache);
+	}
+
+	public static List<IntermediateInstruction> generateInstructions(
+			ParseTree tree, Optimizer optimizer, CompileCache cache) {
+		MyBitsyVisitor visitor = new MyBitsyVisitor(cache);
+		visitor.visit(tree);
+		return optimizer.optimize(visitor.getInstructions());
+	}
+
+	/**
+	 * Compiles a source, reusing the code found in the cache when it is not
+	 * null.
+	 */
+	public static List<IntermediateInstruction> compile(String source,
+			int optimizationLevel, CompileCache cache) {
+		return compile(source, optimizationLevel, cache,
+				ConsoleErrorListener.INSTANCE);
+	}
+
+	public static List<IntermediateInstruction> compile(String source,
+			int optimizationLevel, CompileCache cache,
+			ANTLRErrorListener errorListener) {
+		return compile(source, new Optimizer(optimizationLevel), cache,
+				errorListener);
+	}
+
+	public static List<IntermediateInstruction> compile(String source,
+			Optimizer optimizer, CompileCache cache,
+			ANTLRErrorListener errorListener) {
+		if (cache == null) {
+			return generateInstructions(
+					parse(new ANTLRInputStream(source), errorListener),
+					optimizer, null);
+		}
+		String key = CompileCache.key("program", source,
+				optimizer.toString());
+		List<IntermediateInstruction> instructions = cache.getProgram(key);
+		if (instructions == null) {
+			instructions = generateInstructions(
+					parse(new ANTLRInputStream(source), errorListener),
+					optimizer, cache);
+			cache.putProgram(key, instructions);
+		}
+		return instructions;
 	}
 
-	private static void createFile(String instructions, String destPath) {
-		File intrFile = new File(destPath);
+	/**
+	 * Compiles every source of the directory in parallel, next to the
+	 * source, unless it has syntax errors.
+	 * 
+	 * @return the number of sources which failed to compile
+	 */
+	public static int compileBatch(Path directory, Optimizer optimizer,
+			CompileCache cache) {
+		List<Path> files;
 		try {
-			if (!intrFile.exists()) {
-				intrFile.createNewFile();
+			files = Batch.list(directory, ".tsy");
+		} catch (IOException e) {
+			System.out.println("Error: Could not list directory " + directory);
+			return 1;
+		}
+		return Batch.run(files, (file, out, err) -> {
+			String source = new String(Files.readAllBytes(file));
+			ErrorPrinter errors = new ErrorPrinter(err);
+			List<IntermediateInstruction> instructions = compile(source,
+					optimizer, cache, errors);
+			if (!errors.failed) {
+				String name = file.getFileName().toString();
+				write(instructions, file.resolveSibling(name.substring(0,
+						name.lastIndexOf('.')) + ".int"));
 			}
-			PrintWriter writer = new PrintWriter(intrFile);
-			writer.print(instructions);
-			writer.close();
+		}, System.out);
+	}
+
+	/*
+	 * Prints syntax errors like the ConsoleErrorListener, to another stream.
+	 */
+	private static class ErrorPrinter extends BaseErrorListener {
+		private final PrintStream err;
+		private boolean failed;
+
+		private ErrorPrinter(PrintStream err) {
+			this.err = err;
+		}
+
+		@Override
+		public void syntaxError(Recognizer<?, ?> recognizer,
+				Object offendingSymbol, int line, int charPositionInLine,
+				String msg, RecognitionException e) {
+			err.println("line " + line + ":" + charPositionInLine + " " + msg);
+			failed = true;
+		}
+	}
+
+	/*
+	 * @return the level of a -O<level> option, -1 if it is not valid
+	 */
+	private static int parseOptimizationLevel(String option) {
+		if (option.equals("-O")) {
+			return Optimizer.MAX_LEVEL;
+		}
+		try {
+			int level = Integer.parseInt(option.substring(2));
+			return level <= Optimizer.MAX_LEVEL ? level : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * @return the positive or zero count, -1 if it is not valid
+	 */
+	private static int parseCount(String count) {
+		try {
+			return Math.max(Integer.parseInt(count), -1);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * @return the size in bytes of a size in megabytes, -1 if it is not valid
+	 */
+	private static long parseCacheSize(String megabytes) {
+		try {
+			long size = Long.parseLong(megabytes);
+			// a larger size does not fit in a long once in bytes
+			return size < 0 || size > Long.MAX_VALUE >> 20 ? -1 : size << 20;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void printInstructions(
+			List<IntermediateInstruction> instructions) {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(System.out));
+		try {
+			IntermediateInstruction.write(instructions, writer);
+			writer.write('\n');
+			writer.flush();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			System.err.println("Error: Could not print the compiled code");
+		}
+	}
+
+	/**
+	 * Writes the instructions as an intermediate code file.
+	 */
+	public static void write(List<IntermediateInstruction> instructions,
+			Path destPath) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(destPath)) {
+			IntermediateInstruction.write(instructions, writer);
+		}
+	}
+
+	/*
+	 * @return 0 once the file is written, 1 if it could not be
+	 */
+	private static int createFile(List<IntermediateInstruction> instructions,
+			String destPath) {
+		try {
+			write(instructions, Paths.get(destPath));
+			return 0;
+		} catch (IOException | InvalidPathException e) {
+			System.err.println("Error: Could not write intermediate code file "
+					+ destPath);
+			return 1;
+		}
+	}
+
+	/*
+	 * @return 0 once the file is written, 1 if it could not be
+	 */
+	private static int createBytecodeFile(
+			List<IntermediateInstruction> instructions, String destPath) {
+		Program program = ProgramLoader.decode(IntermediateInstruction
+				.toWords(instructions));
+		try {
+			BytecodeFile.write(program, Paths.get(destPath));
+			return 0;
+		} catch (IOException | InvalidPathException e) {
+			System.err.println("Error: Could not write bytecode file "
+					+ destPath);
+			return 1;
 		}
 	}
 }
@@ -0,0 +1,480 @@
+package edu.asu.parser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.asu.runtime.Instruction;
+import edu.asu.runtime.ValueType;
+
+/**
+ * Gives every item of the operand stack a static type and replaces the
+ * operations whose operands are known to be integers or booleans with the
+ * typed instructions, which the VM runs in place, without reading the
+ * tags of their operands. Run by the {@link Optimizer} from level 2.
+ * <p>
+ * The intermediate code is interpreted over types instead of values. An
+ * item is an integer or a boolean when every path can only push a value of
+ * this type: a constant, the result of an operation or the load of a slot
+ * only ever assigned values of this type. Everything read at run time,
+ * input, named variables and stack variables, is dynamic, as Bitsy lets a
+ * variable declared <code>int</code> hold the text read by input.
+ * <p>
+ * The types of the parameters of a function are the ones of the arguments
+ * of all its calls, and a call pushes the type of all the returned values.
+ * The items a caller pushed before a call keep their types when every
+ * return of the function leaves exactly its result in place of its
+ * arguments. The types of the items are tracked from the top of the stack,
+ * so that paths leaving different numbers of items behind can still meet.
+ */
+public class TypeInference {
+
+	private enum Type {
+		// no value reaches the item yet
+		NONE, INT, BOOL, DYNAMIC;
+
+		private Type join(Type other) {
+			if (this == other || other == NONE) {
+				return this;
+			}
+			return this == NONE ? other : DYNAMIC;
+		}
+	}
+
+	private static final int UNKNOWN_DEPTH = Integer.MIN_VALUE;
+
+	/*
+	 * Types of the items on top of the stack, the top first, the items below
+	 * being dynamic, and the depth of the stack relative to the entry of the
+	 * function when it is known.
+	 */
+	private static final class State {
+		private final int depth;
+		private final Type[] types;
+
+		private State(int depth, Type... types) {
+			this.depth = depth;
+			this.types = types;
+		}
+
+		private Type at(int depth) {
+			return depth < types.length ? types[depth] : Type.DYNAMIC;
+		}
+
+		private State pop(int count) {
+			return new State(depth == UNKNOWN_DEPTH ? depth : depth - count,
+					Arrays.copyOfRange(types, Math.min(count, types.length),
+							types.length));
+		}
+
+		private State push(Type type) {
+			Type[] pushed = new Type[types.length + 1];
+			pushed[0] = type;
+			System.arraycopy(types, 0, pushed, 1, types.length);
+			return new State(depth == UNKNOWN_DEPTH ? depth : depth + 1,
+					pushed);
+		}
+
+		private State join(State other) {
+			Type[] joined = new Type[Math.min(types.length,
+					other.types.length)];
+			for (int i = 0; i < joined.length; i++) {
+				joined[i] = types[i].join(other.types[i]);
+			}
+			return new State(depth == other.depth ? depth : UNKNOWN_DEPTH,
+					joined);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof State && depth == ((State) other).depth
+					&& Arrays.equals(types, ((State) other).types);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * depth + Arrays.hashCode(types);
+		}
+	}
+
+	private static class Function {
+		// index of the label, -1 for the main code
+		private final int label;
+		private int parameters;
+		private Type[] arguments;
+		private Type[] slots;
+		// main frame slot of every GLOBAL slot
+		private final List<Integer> globalSources = new ArrayList<>();
+		private final List<String> slotNames = new ArrayList<>();
+		// whether every return leaves exactly the result of the call
+		private boolean balanced = true;
+		private Type result = Type.NONE;
+
+		private Function(int label) {
+			this.label = label;
+		}
+	}
+
+	private final List<IntermediateInstruction> code;
+	private final Map<String, Integer> labels = new HashMap<>();
+	private final Map<String, Function> functions = new LinkedHashMap<>();
+	private final Function main = new Function(-1);
+	// function of every instruction
+	private final Function[] owners;
+	private State[] states;
+	private final Deque<Integer> work = new ArrayDeque<>();
+	// set when a function or a slot gets a new type
+	private boolean changed;
+
+	private TypeInference(List<IntermediateInstruction> code) {
+		this.code = code;
+		this.owners = new Function[code.size()];
+	}
+
+	/**
+	 * Replaces the operations on integers and booleans of the code with
+	 * typed instructions.
+	 */
+	public static void specialize(List<IntermediateInstruction> code) {
+		new TypeInference(code).run();
+	}
+
+	private void run() {
+		findFunctions();
+		do {
+			changed = false;
+			for (Function function : functions.values()) {
+				for (int i = 0; i < function.globalSources.size(); i++) {
+					int source = function.globalSources.get(i);
+					storeSlot(function, i, source < 0 ? Type.DYNAMIC
+							: main.slots[source]);
+				}
+			}
+			states = new State[code.size()];
+			flow(0, new State(0));
+			while (!work.isEmpty()) {
+				interpret(work.pop());
+			}
+		} while (changed);
+		for (int i = 0; i < code.size(); i++) {
+			if (states[i] != null) {
+				Instruction typed = typedInstruction(code.get(i)
+						.getInstruction(), states[i]);
+				if (typed != null) {
+					code.set(i, new IntermediateInstruction(typed));
+				}
+			}
+		}
+	}
+
+	private void findFunctions() {
+		Function current = main;
+		for (int i = 0; i < code.size(); i++) {
+			IntermediateInstruction instr = code.get(i);
+			if (instr.is(Instruction.LABEL)) {
+				labels.put(instr.getOperand(), i);
+				if (!instr.getOperand().startsWith(MyBitsyVisitor.LABEL_PREFIX)) {
+					current = new Function(i);
+					functions.put(instr.getOperand(), current);
+				}
+			} else if (instr.is(Instruction.VAR)) {
+				current.slotNames.add(instr.getOperand());
+			} else if (instr.is(Instruction.GLOBAL)) {
+				current.globalSources.add(main.slotNames.indexOf(instr
+						.getOperand()));
+				current.slotNames.add(instr.getOperand());
+			}
+			owners[i] = current;
+		}
+		main.slots = newSlots(main);
+		for (Function function : functions.values()) {
+			function.slots = newSlots(function);
+			// the code starts by storing the arguments, which no statement
+			// starts with
+			int i = function.label + 1;
+			while (i < code.size()
+					&& (isDeclaration(code.get(i))
+							|| code.get(i).is(Instruction.STORE_SLOT) || code
+							.get(i).is(Instruction.POP))) {
+				if (!isDeclaration(code.get(i))) {
+					function.parameters++;
+				}
+				i++;
+			}
+			function.arguments = new Type[function.parameters];
+			Arrays.fill(function.arguments, Type.NONE);
+		}
+	}
+
+	private static boolean isDeclaration(IntermediateInstruction instr) {
+		return instr.is(Instruction.VAR) || instr.is(Instruction.GLOBAL)
+				|| instr.is(Instruction.PURE);
+	}
+
+	private Type[] newSlots(Function function) {
+		int size = function.slotNames.size();
+		for (int i = function.label + 1; i < code.size()
+				&& owners[i] == function; i++) {
+			IntermediateInstruction instr = code.get(i);
+			Instruction.Operand[] operands = instr.getInstruction()
+					.getOperands();
+			for (int j = 0; j < operands.length; j++) {
+				if (operands[j] == Instruction.Operand.SLOT) {
+					size = Math.max(size,
+							Integer.parseInt(instr.getOperands()[j]) + 1);
+				}
+			}
+		}
+		Type[] slots = new Type[size];
+		Arrays.fill(slots, Type.NONE);
+		return slots;
+	}
+
+	private void flow(int index, State state) {
+		if (index >= code.size()) {
+			return;
+		}
+		State joined = states[index] == null ? state : states[index]
+				.join(state);
+		if (!joined.equals(states[index])) {
+			states[index] = joined;
+			work.push(index);
+		}
+	}
+
+	/*
+	 * Flows to the next instruction, which runs a function with an unknown
+	 * depth when control falls into it.
+	 */
+	private void next(int index, State state) {
+		int next = index + 1;
+		if (next < code.size() && owners[next] != owners[index]) {
+			state = new State(UNKNOWN_DEPTH, state.types);
+		}
+		flow(next, state);
+	}
+
+	private void interpret(int index) {
+		State state = states[index];
+		IntermediateInstruction instr = code.get(index);
+		Function function = owners[index];
+		switch (instr.getInstruction()) {
+		case HALT:
+			return;
+		case PUSH: {
+			byte type = ValueType.typeOf(instr.getOperand());
+			next(index, state.push(type == ValueType.INT ? Type.INT
+					: type == ValueType.BOOL ? Type.BOOL : Type.DYNAMIC));
+			return;
+		}
+		case LOAD_SLOT:
+			next(index, state.push(function.slots[slot(instr, 0)]));
+			return;
+		case LOAD_LOAD:
+			next(index, state.push(function.slots[slot(instr, 0)]).push(
+					function.slots[slot(instr, 1)]));
+			return;
+		case LOAD_GLOBAL:
+			next(index, state.push(main.slots[slot(instr, 0)]));
+			return;
+		case STORE_SLOT:
+			storeSlot(function, slot(instr, 0), state.at(0));
+			next(index, state.pop(1));
+			return;
+		case INC:
+		case DEC:
+			storeSlot(function, slot(instr, 0), Type.INT);
+			next(index, state);
+			return;
+		case JMP:
+			flow(labels.get(instr.getOperand()), state);
+			return;
+		case JIF:
+		case JIT:
+			state = state.pop(1);
+			flow(labels.get(instr.getOperand()), state);
+			next(index, state);
+			return;
+		case JEQ:
+		case JNE:
+		case JGE:
+		case JGT:
+		case JLE:
+		case JLT:
+			state = state.pop(2);
+			flow(labels.get(instr.getOperand()), state);
+			next(index, state);
+			return;
+		case CALL:
+		case TAILCALL: {
+			Function called = functions.get(instr.getOperand());
+			if (called == null) {
+				return;
+			}
+			passArguments(called, state);
+			if (instr.is(Instruction.CALL)) {
+				next(index, called.balanced ? state.pop(called.parameters)
+						.push(called.result) : new State(UNKNOWN_DEPTH,
+						called.result));
+			} else {
+				returns(function, called.result, called.balanced
+						&& state.depth == called.parameters);
+			}
+			return;
+		}
+		case RET:
+			returns(function, state.at(0), state.depth == 1);
+			return;
+		case PRINT:
+		case LABEL:
+		case VAR:
+		case GLOBAL:
+		case PURE:
+			next(index, state);
+			return;
+		default: {
+			state = state.pop(pops(instr.getInstruction()));
+			Type result = result(instr.getInstruction());
+			next(index, result == null ? state : state.push(result));
+			return;
+		}
+		}
+	}
+
+	private static int slot(IntermediateInstruction instr, int operand) {
+		return Integer.parseInt(instr.getOperands()[operand]);
+	}
+
+	private void storeSlot(Function function, int slot, Type type) {
+		Type joined = function.slots[slot].join(type);
+		if (joined != function.slots[slot]) {
+			function.slots[slot] = joined;
+			changed = true;
+		}
+	}
+
+	private void passArguments(Function called, State state) {
+		boolean passed = false;
+		for (int i = 0; i < called.parameters; i++) {
+			// the last argument is on top
+			Type joined = called.arguments[i].join(state.at(called.parameters
+					- 1 - i));
+			if (joined != called.arguments[i]) {
+				called.arguments[i] = joined;
+				passed = true;
+			}
+		}
+		Type[] entry = new Type[called.parameters];
+		for (int i = 0; i < entry.length; i++) {
+			entry[i] = called.arguments[called.parameters - 1 - i];
+		}
+		flow(called.label, new State(called.parameters, entry));
+		changed |= passed;
+	}
+
+	private void returns(Function function, Type result, boolean balanced) {
+		Type joined = function.result.join(result);
+		if (joined != function.result || function.balanced && !balanced) {
+			function.result = joined;
+			function.balanced &= balanced;
+			changed = true;
+		}
+	}
+
+	/*
+	 * Number of items popped by the instructions without special flow.
+	 */
+	private static int pops(Instruction instruction) {
+		switch (instruction) {
+		case POP:
+		case NOT:
+		case STORE:
+		case STACK_PUSH:
+			return 1;
+		case LOAD:
+		case INPUT:
+		case STACK_POP:
+		case STACK_PEEK:
+		case STACK_ISEMPTY:
+			return 0;
+		default:
+			return 2;
+		}
+	}
+
+	/*
+	 * @return the type of the item pushed by the instruction, null if it
+	 *         pushes none
+	 */
+	private static Type result(Instruction instruction) {
+		switch (instruction) {
+		case POP:
+		case STORE:
+		case STACK_PUSH:
+			return null;
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case MOD:
+		case POW:
+			return Type.INT;
+		case LOAD:
+		case INPUT:
+		case STACK_POP:
+		case STACK_PEEK:
+			return Type.DYNAMIC;
+		default:
+			return Type.BOOL;
+		}
+	}
+
+	/*
+	 * @return the typed instruction computing the same result from the
+	 * operands of the state, null if there is none
+	 */
+	private static Instruction typedInstruction(Instruction instruction,
+			State state) {
+		boolean ints = state.at(0) == Type.INT && state.at(1) == Type.INT;
+		boolean bools = state.at(0) == Type.BOOL && state.at(1) == Type.BOOL;
+		switch (instruction) {
+		case ADD:
+			return ints ? Instruction.IADD : null;
+		case SUB:
+			return ints ? Instruction.ISUB : null;
+		case MUL:
+			return ints ? Instruction.IMUL : null;
+		case DIV:
+			return ints ? Instruction.IDIV : null;
+		case MOD:
+			return ints ? Instruction.IMOD : null;
+		case POW:
+			return ints ? Instruction.IPOW : null;
+		case ISEQ:
+			return ints ? Instruction.ICMPEQ : null;
+		case ISNE:
+			return ints ? Instruction.ICMPNE : null;
+		case ISGE:
+			return ints ? Instruction.ICMPGE : null;
+		case ISGT:
+			return ints ? Instruction.ICMPGT : null;
+		case ISLE:
+			return ints ? Instruction.ICMPLE : null;
+		case ISLT:
+			return ints ? Instruction.ICMPLT : null;
+		case AND:
+			return bools ? Instruction.BAND : null;
+		case OR:
+			return bools ? Instruction.BOR : null;
+		case NOT:
+			return state.at(0) == Type.BOOL ? Instruction.BNOT : null;
+		default:
+			return null;
+		}
+	}
+}
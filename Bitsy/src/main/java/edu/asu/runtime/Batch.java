@@ -0,0 +1,130 @@
+package edu.asu.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs a task on every file of a directory on a fork-join pool, so that many
+ * programs are compiled or executed in a single JVM. Each file gets its own
+ * output and error streams, printed in the order of the file names once all
+ * of them are done, followed by a timing summary.
+ */
+public class Batch {
+
+	public static final String OPTION = "--batch";
+
+	/**
+	 * Work done for one file, writing to the given streams only. A task
+	 * fails when it throws, errors included, or writes any error.
+	 */
+	public interface Task {
+		void run(Path file, PrintStream out, PrintStream err) throws Exception;
+	}
+
+	private static class Result {
+		private final Path file;
+		private final String output;
+		private final String errors;
+		private final long nanos;
+
+		private Result(Path file, String output, String errors, long nanos) {
+			this.file = file;
+			this.output = output;
+			this.errors = errors;
+			this.nanos = nanos;
+		}
+
+		private boolean failed() {
+			return !errors.isEmpty();
+		}
+	}
+
+	/**
+	 * @return the files of the directory with one of the extensions, sorted
+	 *         by name
+	 */
+	public static List<Path> list(Path directory, String... extensions)
+			throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				for (String extension : extensions) {
+					if (name.endsWith(extension) && Files.isRegularFile(entry)) {
+						files.add(entry);
+						break;
+					}
+				}
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Runs the task on every file and prints their output to out.
+	 *
+	 * @return the number of files whose task failed
+	 */
+	public static int run(List<Path> files, Task task, PrintStream out) {
+		ForkJoinPool pool = new ForkJoinPool();
+		long start = System.nanoTime();
+		List<ForkJoinTask<Result>> results = new ArrayList<>();
+		for (Path file : files) {
+			results.add(pool.submit(() -> runTask(file, task)));
+		}
+		int failures = 0;
+		long fileNanos = 0;
+		for (ForkJoinTask<Result> pending : results) {
+			Result result = pending.join();
+			out.println("== " + result.file.getFileName() + " ("
+					+ millis(result.nanos) + " ms"
+					+ (result.failed() ? ", failed" : "") + ") ==");
+			out.print(result.output);
+			if (!result.output.isEmpty() && !result.output.endsWith("\n")) {
+				out.println();
+			}
+			out.print(result.errors);
+			failures += result.failed() ? 1 : 0;
+			fileNanos += result.nanos;
+		}
+		pool.shutdown();
+		out.println("Batch: " + files.size() + " files, "
+				+ (files.size() - failures) + " succeeded, " + failures
+				+ " failed in " + millis(System.nanoTime() - start) + " ms ("
+				+ millis(fileNanos) + " ms of file time on "
+				+ pool.getParallelism() + " threads)");
+		return failures;
+	}
+
+	private static Result runTask(Path file, Task task) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		long start = System.nanoTime();
+		try (PrintStream out = new PrintStream(output);
+				PrintStream err = new PrintStream(errors)) {
+			try {
+				task.run(file, out, err);
+			} catch (Throwable e) {
+				// even a StackOverflowError only fails the file
+				err.println("Error: "
+						+ (e.getMessage() != null ? e.getMessage() : e));
+			}
+		}
+		return new Result(file, output.toString(), errors.toString(),
+				System.nanoTime() - start);
+	}
+
+	private static long millis(long nanos) {
+		return nanos / 1000000;
+	}
+}
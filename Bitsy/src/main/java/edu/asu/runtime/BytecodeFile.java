@@ -0,0 +1,202 @@
+package edu.asu.runtime;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import edu.asu.runtime.exceptions.ProgramExecutionException;
+
+/**
+ * Binary form of a decoded {@link Program} (.bbc files), loaded without any
+ * tokenizing. All numbers are big-endian ints unless noted:
+ * 
+ * <pre>
+ * header     magic "BBC1", format version, instruction set hash
+ * constants  count, then per constant its type (byte) followed by an int
+ *            for INT, a byte for BOOL or a string for STRING
+ * names      count, then the strings
+ * frames     count, then per frame its address, function name, slot count,
+ *            slot names, global slot count, their main frame slots and
+ *            the number of parameters of a PURE function, -1 if it is not
+ * code       length, then the opcodes and operands
+ * </pre>
+ * 
+ * Strings are stored as their UTF-8 length followed by the bytes. The hash
+ * of the instruction names makes files compiled for another instruction set
+ * fail to load instead of running the wrong opcodes.
+ */
+public class BytecodeFile {
+
+	public static final String EXTENSION = ".bbc";
+
+	private static final int MAGIC = 0x42424331; // "BBC1"
+	private static final int VERSION = 2;
+	private static final int INSTRUCTION_SET = instructionSetHash();
+
+	public static void write(Program program, Path path) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(path.toFile())))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(INSTRUCTION_SET);
+
+			String[] constants = program.getConstants();
+			byte[] types = program.getConstantTypes();
+			long[] values = program.getConstantValues();
+			out.writeInt(constants.length);
+			for (int i = 0; i < constants.length; i++) {
+				out.writeByte(types[i]);
+				switch (types[i]) {
+				case ValueType.INT:
+					out.writeInt((int) values[i]);
+					break;
+				case ValueType.BOOL:
+					out.writeByte((int) values[i]);
+					break;
+				default:
+					writeString(out, constants[i]);
+				}
+			}
+
+			String[] names = program.getNames();
+			out.writeInt(names.length);
+			for (String name : names) {
+				writeString(out, name);
+			}
+
+			FrameLayout[] layouts = program.getFrameLayouts();
+			int frameCount = 0;
+			for (FrameLayout layout : layouts) {
+				if (layout != null) {
+					frameCount++;
+				}
+			}
+			out.writeInt(frameCount);
+			for (int address = 0; address < layouts.length; address++) {
+				FrameLayout layout = layouts[address];
+				if (layout == null) {
+					continue;
+				}
+				out.writeInt(address);
+				writeString(out, layout.getFuncName());
+				out.writeInt(layout.getSize());
+				for (int slot = 0; slot < layout.getSize(); slot++) {
+					writeString(out, layout.getSlotName(slot));
+				}
+				int[] globalSources = layout.getGlobalSources();
+				out.writeInt(globalSources.length);
+				for (int source : globalSources) {
+					out.writeInt(source);
+				}
+				out.writeInt(layout.getMemoParameters());
+			}
+
+			int[] code = program.getCode();
+			out.writeInt(code.length);
+			for (int word : code) {
+				out.writeInt(word);
+			}
+		}
+	}
+
+	public static Program load(Path path) throws IOException {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		}
+		if (buffer.remaining() < 12 || buffer.getInt() != MAGIC) {
+			throw new ProgramExecutionException(path
+					+ " is not a Bitsy bytecode file");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new ProgramExecutionException(String.format(
+					"Unsupported bytecode version %d in %s", version, path));
+		}
+		if (buffer.getInt() != INSTRUCTION_SET) {
+			throw new ProgramExecutionException(path
+					+ " was compiled for another instruction set");
+		}
+
+		int constantCount = buffer.getInt();
+		String[] constants = new String[constantCount];
+		byte[] types = new byte[constantCount];
+		long[] values = new long[constantCount];
+		for (int i = 0; i < constantCount; i++) {
+			types[i] = buffer.get();
+			switch (types[i]) {
+			case ValueType.INT:
+				values[i] = buffer.getInt();
+				constants[i] = Integer.toString((int) values[i]);
+				break;
+			case ValueType.BOOL:
+				values[i] = buffer.get();
+				constants[i] = Boolean.toString(values[i] != 0);
+				break;
+			default:
+				constants[i] = readString(buffer);
+			}
+		}
+
+		String[] names = new String[buffer.getInt()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = readString(buffer);
+		}
+
+		int frameCount = buffer.getInt();
+		int[] frameAddresses = new int[frameCount];
+		FrameLayout[] frames = new FrameLayout[frameCount];
+		for (int i = 0; i < frameCount; i++) {
+			frameAddresses[i] = buffer.getInt();
+			String funcName = readString(buffer);
+			String[] slotNames = new String[buffer.getInt()];
+			for (int slot = 0; slot < slotNames.length; slot++) {
+				slotNames[slot] = readString(buffer);
+			}
+			int[] globalSources = new int[buffer.getInt()];
+			buffer.asIntBuffer().get(globalSources);
+			buffer.position(buffer.position() + 4 * globalSources.length);
+			frames[i] = new FrameLayout(funcName, slotNames, globalSources,
+					buffer.getInt());
+		}
+
+		int[] code = new int[buffer.getInt()];
+		buffer.asIntBuffer().get(code);
+		FrameLayout[] frameLayouts = new FrameLayout[code.length];
+		for (int i = 0; i < frameCount; i++) {
+			frameLayouts[frameAddresses[i]] = frames[i];
+		}
+		return new Program(code, constants, types, values, names,
+				frameLayouts);
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int instructionSetHash() {
+		int hash = 0;
+		for (Instruction instruction : Instruction.values()) {
+			hash = 31 * hash + instruction.name().hashCode();
+		}
+		return hash;
+	}
+}
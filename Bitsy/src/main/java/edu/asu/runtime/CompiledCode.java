@@ -0,0 +1,155 @@
+package edu.asu.runtime;
+
+/**
+ * Base class of the code generated by the {@link JitCompiler} for a region
+ * of a program. The generated classes are loaded by their own class loader
+ * and only see the protected helpers below, which take the machine and
+ * primitive operands: the stack, the frames and the slots stay private to
+ * the runtime.
+ */
+public abstract class CompiledCode {
+
+	/**
+	 * Runs the region from the current address of the machine until control
+	 * leaves it, leaving the address of the next instruction to interpret in
+	 * the machine.
+	 */
+	protected abstract void execute(StackMachine m);
+
+	protected static int address(StackMachine m) {
+		return m.instructionAddress;
+	}
+
+	protected static void pushInt(StackMachine m, int value) {
+		m.executionStack.pushInt(value);
+	}
+
+	protected static void pushBool(StackMachine m, boolean value) {
+		m.executionStack.pushBool(value);
+	}
+
+	protected static void pushConstant(StackMachine m, int constant) {
+		m.executionStack.pushString(m.constants[constant]);
+	}
+
+	protected static void pop(StackMachine m) {
+		m.checkStackHasAtLeastOneItem("POP");
+		m.executionStack.drop(1);
+	}
+
+	protected static void load(StackMachine m, int name) {
+		m.executionStack.pushObject(m.currentFrame.getVariable(m.names[name]));
+	}
+
+	protected static void store(StackMachine m, int name) {
+		m.checkStackHasAtLeastOneItem("STORE");
+		m.currentFrame.setVariable(m.names[name], m.executionStack.popObject());
+	}
+
+	protected static void loadSlot(StackMachine m, int slot) {
+		m.executionStack.load(m.currentFrame.getDefinedSlots(slot), slot);
+	}
+
+	protected static void loadGlobal(StackMachine m, int slot) {
+		m.executionStack.load(m.currentFrame.getDefinedGlobalSlots(slot), slot);
+	}
+
+	protected static void storeSlot(StackMachine m, int slot) {
+		m.checkStackHasAtLeastOneItem("STORE_SLOT");
+		m.executionStack.store(m.currentFrame.getSlots(), slot);
+	}
+
+	protected static void increment(StackMachine m, int slot, int delta) {
+		m.currentFrame.increment(slot, delta);
+	}
+
+	protected static void stackPush(StackMachine m, int name) {
+		m.checkStackHasAtLeastOneItem("STACK_PUSH");
+		m.currentFrame.pushOnStackVariable(m.names[name], m.executionStack);
+	}
+
+	protected static void stackPop(StackMachine m, int name) {
+		m.currentFrame.popOnStackVariable(m.names[name], m.executionStack);
+	}
+
+	protected static void stackPeek(StackMachine m, int name) {
+		m.currentFrame.peekOnStackVariable(m.names[name], m.executionStack);
+	}
+
+	protected static void stackIsEmpty(StackMachine m, int name) {
+		m.currentFrame.isEmptyStackVariable(m.names[name], m.executionStack);
+	}
+
+	protected static void not(StackMachine m, Instruction instruction) {
+		m.checkStackHasAtLeastOneItem(instruction.name());
+		m.executionStack.not();
+	}
+
+	protected static void arithmetic(StackMachine m, Instruction instruction) {
+		m.checkStackHasAtLeastTwoItems();
+		m.executionStack.arithmetic(instruction);
+	}
+
+	protected static void compare(StackMachine m, Instruction instruction) {
+		m.checkStackHasAtLeastTwoItems();
+		m.executionStack.compare(instruction);
+	}
+
+	protected static void logical(StackMachine m, Instruction instruction) {
+		m.checkStackHasAtLeastTwoItems();
+		m.executionStack.logical(instruction);
+	}
+
+	protected static void equal(StackMachine m, boolean expected) {
+		m.checkStackHasAtLeastTwoItems();
+		m.executionStack.equal(expected);
+	}
+
+	/**
+	 * Pops the condition of the JIF or JIT instruction.
+	 */
+	protected static boolean condition(StackMachine m, Instruction instruction) {
+		m.checkStackHasAtLeastOneItem(instruction.name());
+		return m.executionStack.popCondition();
+	}
+
+	/**
+	 * Pops the operands of the compare-and-branch instruction.
+	 */
+	protected static boolean comparison(StackMachine m, Instruction instruction) {
+		m.checkStackHasAtLeastTwoItems();
+		return m.executionStack.popComparison(instruction);
+	}
+
+	protected static void exit(StackMachine m, int address) {
+		m.instructionAddress = address;
+	}
+
+	protected static void halt(StackMachine m, int next) {
+		m.instructionAddress = next;
+		m.halted = true;
+	}
+
+	protected static void call(StackMachine m, int next, int address) {
+		m.instructionAddress = next;
+		m.call(address);
+	}
+
+	protected static void tailCall(StackMachine m, int next, int address) {
+		m.instructionAddress = next;
+		m.tailCall(address);
+	}
+
+	protected static void ret(StackMachine m, int next) {
+		m.instructionAddress = next;
+		m.ret();
+	}
+
+	protected static void print(StackMachine m) {
+		m.print();
+	}
+
+	protected static void input(StackMachine m) {
+		m.input();
+	}
+}
@@ -0,0 +1,51 @@
+package edu.asu.runtime;
+
+import edu.asu.runtime.exceptions.ProgramExecutionException;
+
+/**
+ * Interpreter engines the {@link VM} can run a program with.
+ */
+public enum Engine {
+	/** Decodes every instruction with a switch, see {@link StackMachine} */
+	SWITCH,
+	/** Dispatches through a handler table, see {@link TableStackMachine} */
+	TABLE,
+	/**
+	 * Runs the lowered register code, see {@link RegisterMachine}, when the
+	 * program can be verified and the switch engine otherwise
+	 */
+	REGISTER;
+
+	public StackMachine createMachine(Program program) {
+		return createMachine(program, ExecutionContext.system());
+	}
+
+	public StackMachine createMachine(Program program, ExecutionContext context) {
+		switch (this) {
+		case TABLE:
+			return new TableStackMachine(program, context);
+		case REGISTER:
+			try {
+				return new RegisterMachine(RegisterProgram.lower(program),
+						context);
+			} catch (ProgramExecutionException e) {
+				return new StackMachine(program, context);
+			}
+		default:
+			return new StackMachine(program, context);
+		}
+	}
+
+	/**
+	 * @return the engine with the given case insensitive name, null if there
+	 *         is none
+	 */
+	public static Engine fromName(String name) {
+		for (Engine engine : values()) {
+			if (engine.name().equalsIgnoreCase(name)) {
+				return engine;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,50 @@
+package edu.asu.runtime;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import edu.asu.runtime.io.BufferedInput;
+import edu.asu.runtime.io.BufferedOutput;
+import edu.asu.runtime.io.Input;
+import edu.asu.runtime.io.Output;
+
+/**
+ * Channels one execution of a program reads from with INPUT and writes to
+ * with PRINT. Giving each execution its own context lets programs run
+ * concurrently without sharing the console, and embedders can plug in their
+ * own {@link Input} and {@link Output}.
+ */
+public class ExecutionContext {
+
+	private final Input input;
+	private final Output output;
+
+	public ExecutionContext(Input input, Output output) {
+		this.input = input;
+		this.output = output;
+	}
+
+	/**
+	 * Creates a context reading lines from the input stream and buffering
+	 * the output written to the output stream.
+	 */
+	public ExecutionContext(InputStream input, OutputStream output) {
+		this(new BufferedInput(input), new BufferedOutput(output));
+	}
+
+	/**
+	 * @return a context on the current {@link System#in} and
+	 *         {@link System#out}
+	 */
+	public static ExecutionContext system() {
+		return new ExecutionContext(System.in, System.out);
+	}
+
+	public Input getInput() {
+		return input;
+	}
+
+	public Output getOutput() {
+		return output;
+	}
+}
@@ -0,0 +1,68 @@
+package edu.asu.runtime;
+
+/**
+ * Variable slots of a function as declared by the VAR and GLOBAL
+ * pseudo-instructions following its label. Global slots come first and are
+ * initialized from the main frame on every call, so that the function can
+ * assign a global variable without changing it for the rest of the program.
+ * A function declared PURE also tells how many parameters its results are
+ * cached by, see {@link MemoTable}.
+ */
+public final class FrameLayout {
+
+	private final String funcName;
+	private final String[] slotNames;
+	// main frame slot each global slot is initialized from
+	private final int[] globalSources;
+	// parameters of a pure function, -1 for the other functions
+	private final int memoParameters;
+
+	FrameLayout(String funcName, String[] slotNames,
+			int[] globalSources) {
+		this(funcName, slotNames, globalSources, -1);
+	}
+
+	FrameLayout(String funcName, String[] slotNames, int[] globalSources,
+			int memoParameters) {
+		this.funcName = funcName;
+		this.slotNames = slotNames;
+		this.globalSources = globalSources;
+		this.memoParameters = memoParameters;
+	}
+
+	public String getFuncName() {
+		return funcName;
+	}
+
+	public int getSize() {
+		return slotNames.length;
+	}
+
+	public String getSlotName(int slot) {
+		return slotNames[slot];
+	}
+
+	int[] getGlobalSources() {
+		return globalSources;
+	}
+
+	/**
+	 * @return the number of parameters of a function declared PURE, -1 if
+	 *         its calls are not memoized
+	 */
+	public int getMemoParameters() {
+		return memoParameters;
+	}
+
+	/**
+	 * @return the slot holding the variable, -1 if there is none
+	 */
+	public int getSlot(String name) {
+		for (int i = 0; i < slotNames.length; i++) {
+			if (slotNames[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
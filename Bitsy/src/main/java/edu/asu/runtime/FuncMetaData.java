@@ -1,84 +1,223 @@
 package edu.asu.runtime;
 
 import java.util.HashMap;
-import java.util.Stack;
 
 import edu.asu.runtime.exceptions.ProgramExecutionException;
 
-public class FuncMetaData {
+class FuncMetaData {
 
-	private HashMap<String, String> variables = null;
-	private HashMap<String, Stack<String>> stackVariables = null;
+	private HashMap<String, Object> variables = null;
+	private HashMap<String, OperandStack> stackVariables = null;
+	private final Slots slots;
+	private FrameLayout layout;
+	// frame of the main method, null for the main method itself
+	private final FuncMetaData globals;
 	private int returnAddress;
 	private String funcName = "";
+	// table caching the result of the call, null if it is not memoized
+	private MemoTable memoTable;
+	private MemoTable.Values memoArguments;
+	// size of the operand stack the call should return with
+	private int memoStackSize;
 
-	@SuppressWarnings("unchecked")
-	public FuncMetaData(int returnAddress, String funcName,
-			HashMap<String, String> variables,
-			HashMap<String, Stack<String>> stackVariables) {
+	/**
+	 * Creates the frame of the main method.
+	 */
+	public FuncMetaData(FrameLayout layout) {
+		this(0, layout, null);
+		variables = new HashMap<>();
+		stackVariables = new HashMap<>();
+	}
+
+	/**
+	 * Creates the frame of a function call. Global variables are shared with
+	 * the main frame: a global slot is copied only if the function assigns
+	 * it, and named variables and stack variables are looked up in the main
+	 * frame when the function did not define its own.
+	 */
+	public FuncMetaData(int returnAddress, FrameLayout layout,
+			FuncMetaData globals) {
 		this.returnAddress = returnAddress;
-		this.funcName = funcName;
-		this.variables = (HashMap<String, String>) variables.clone();
-		this.stackVariables = (HashMap<String, Stack<String>>) stackVariables
-				.clone();
+		this.layout = layout;
+		this.globals = globals;
+		this.funcName = layout.getFuncName();
+		this.slots = new Slots(layout.getSize());
+		if (globals != null) {
+			slots.copyFrom(globals.slots, layout.getGlobalSources());
+		}
 	}
 
-	public String getVariable(String var) {
-		if (variables.containsKey(var)) {
+	/**
+	 * Turns this frame of a finished call into the frame of a new call, so
+	 * that the frames of a {@link StackMachine} are allocated only once per
+	 * call depth.
+	 */
+	void reset(int returnAddress, FrameLayout layout) {
+		this.returnAddress = returnAddress;
+		this.layout = layout;
+		this.funcName = layout.getFuncName();
+		if (variables != null) {
+			variables.clear();
+		}
+		if (stackVariables != null) {
+			stackVariables.clear();
+		}
+		slots.reset(layout.getSize());
+		slots.copyFrom(globals.slots, layout.getGlobalSources());
+	}
+
+	public Object getVariable(String var) {
+		if (variables != null && variables.containsKey(var)) {
 			return variables.get(var);
 		}
+		if (globals != null && globals.variables.containsKey(var)) {
+			return globals.variables.get(var);
+		}
 		throw new ProgramExecutionException("Undefined Variable: " + var
 				+ " inside function: " + funcName);
 	}
 
-	public Stack<String> getStackVariable(String var) {
-		if (stackVariables.containsKey(var)) {
-			return stackVariables.get(var);
+	public OperandStack getStackVariable(String var) {
+		OperandStack s = findStackVariable(var);
+		if (s != null) {
+			return s;
 		}
 		throw new ProgramExecutionException("Undefined Stack Variable: " + var
 				+ " inside function: " + funcName);
 	}
 
-	public void setVariable(String var, String value) {
+	public void setVariable(String var, Object value) {
+		if (variables == null) {
+			variables = new HashMap<>();
+		}
 		variables.put(var, value);
 	}
 
-	public void pushOnStackVariable(String var, String value) {
-		if (stackVariables.containsKey(var)) {
-			stackVariables.get(var).push(value);
-		} else {
-			stackVariables.put(var, new Stack<String>() {
-				{
-					push(value);
-				}
-			});
+	/**
+	 * Moves the top of the operand stack to the stack variable.
+	 */
+	public void pushOnStackVariable(String var, OperandStack operands) {
+		OperandStack s = findStackVariable(var);
+		if (s == null) {
+			if (stackVariables == null) {
+				stackVariables = new HashMap<>();
+			}
+			s = new OperandStack();
+			stackVariables.put(var, s);
 		}
+		operands.moveTopTo(s);
 	}
 
-	public String popOnStackVariable(String var) {
-		Stack<String> s = getStackVariable(var);
-		return s.pop();
+	/**
+	 * Moves the top of the stack variable to the operand stack.
+	 */
+	public void popOnStackVariable(String var, OperandStack operands) {
+		OperandStack s = getNonEmptyStackVariable(var);
+		s.moveTopTo(operands);
+		s.trim();
 	}
 
-	public String peekOnStackVariable(String var) {
-		Stack<String> s = getStackVariable(var);
-		return s.peek();
+	/**
+	 * Copies the top of the stack variable to the operand stack.
+	 */
+	public void peekOnStackVariable(String var, OperandStack operands) {
+		getNonEmptyStackVariable(var).copyTopTo(operands);
 	}
 
 	public boolean isEmptyStackVariable(String var) {
-		Stack<String> s = getStackVariable(var);
-		return s.isEmpty();
+		OperandStack s = getStackVariable(var);
+		return s.size() == 0;
+	}
+
+	/**
+	 * Pushes whether the stack variable is empty on the operand stack.
+	 */
+	public void isEmptyStackVariable(String var, OperandStack operands) {
+		operands.pushBool(isEmptyStackVariable(var));
+	}
+
+	/**
+	 * Adds delta to the integer of a defined slot, as INC and DEC.
+	 */
+	public void increment(int slot, int delta) {
+		Slots slots = getDefinedSlots(slot);
+		slots.setInt(slot, slots.intAt(slot) + delta);
+	}
+
+	/**
+	 * @return the slots of the frame after checking the slot is defined
+	 */
+	public Slots getDefinedSlots(int slot) {
+		if (!slots.isDefined(slot)) {
+			throw new ProgramExecutionException("Undefined Variable: "
+					+ layout.getSlotName(slot) + " inside function: "
+					+ funcName);
+		}
+		return slots;
+	}
+
+	/**
+	 * @return the slots of the main frame after checking the slot is defined
+	 */
+	public Slots getDefinedGlobalSlots(int slot) {
+		if (globals == null) {
+			return getDefinedSlots(slot);
+		}
+		if (!globals.slots.isDefined(slot)) {
+			throw new ProgramExecutionException("Undefined Variable: "
+					+ globals.layout.getSlotName(slot) + " inside function: "
+					+ funcName);
+		}
+		return globals.slots;
+	}
+
+	public Slots getSlots() {
+		return slots;
+	}
+
+	public String getFuncName() {
+		return funcName;
 	}
 
 	public int getReturnAddress() {
 		return returnAddress;
 	}
 
-	public HashMap<String, String> getVariables() {
-		return variables;
+	/**
+	 * Caches the result of the call in the table when it returns, a null
+	 * table leaving the call uncached. Tail calls keep the table of the
+	 * frame, their result being the result of the call.
+	 */
+	void memoize(MemoTable table, MemoTable.Values arguments, int stackSize) {
+		this.memoTable = table;
+		this.memoArguments = arguments;
+		this.memoStackSize = stackSize;
 	}
 
-	public HashMap<String, Stack<String>> getStackVariables() {
-		return stackVariables;
+	void memoizeResult(OperandStack stack) {
+		if (memoTable != null) {
+			memoTable.put(memoArguments, stack, memoStackSize);
+			memoTable = null;
+			memoArguments = null;
+		}
+	}
+
+	private OperandStack getNonEmptyStackVariable(String var) {
+		OperandStack s = getStackVariable(var);
+		if (s.size() == 0) {
+			throw new ProgramExecutionException("Empty Stack Variable: " + var
+					+ " inside function: " + funcName);
+		}
+		return s;
+	}
+
+	private OperandStack findStackVariable(String var) {
+		if (stackVariables != null && stackVariables.containsKey(var)) {
+			return stackVariables.get(var);
+		}
+		if (globals != null) {
+			return globals.stackVariables.get(var);
+		}
+		return null;
 	}
-}
\ No newline at end of file
+}
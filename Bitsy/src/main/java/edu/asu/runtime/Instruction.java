@@ -1,5 +1,150 @@
 package edu.asu.runtime;
 
 public enum Instruction {
-	HALT, PUSH, ADD, SUB, MUL, DIV, MOD, POW, NOT, AND, OR, POP, ISEQ, ISGE, ISGT, JIF, JMP, LOAD, STORE, CALL, RET, LABEL, PRINT, INPUT, STACK_PUSH, STACK_POP, STACK_PEEK, STACK_ISEMPTY
+	HALT, PUSH(Operand.CONSTANT), ADD, SUB, MUL, DIV, MOD, POW, NOT, AND, OR, POP,
+	ISEQ, ISGE, ISGT, ISNE, ISLE, ISLT,
+	JIF(Operand.ADDRESS), JMP(Operand.ADDRESS),
+	// jump if the item on top of the stack is true, for short-circuit ||
+	JIT(Operand.ADDRESS),
+	// compare the two items on top of the stack and jump if the comparison holds
+	JEQ(Operand.ADDRESS), JNE(Operand.ADDRESS), JGE(Operand.ADDRESS),
+	JGT(Operand.ADDRESS), JLE(Operand.ADDRESS), JLT(Operand.ADDRESS),
+	LOAD(Operand.NAME), STORE(Operand.NAME),
+	LOAD_SLOT(Operand.SLOT), STORE_SLOT(Operand.SLOT),
+	LOAD_GLOBAL(Operand.GLOBAL_SLOT), LOAD_LOAD(Operand.SLOT, Operand.SLOT),
+	INC(Operand.SLOT), DEC(Operand.SLOT),
+	CALL(Operand.ADDRESS), RET,
+	// call replacing the frame of the current function, as CALL then RET
+	TAILCALL(Operand.ADDRESS),
+	LABEL(Operand.LABEL), VAR(Operand.DECLARATION), GLOBAL(Operand.DECLARATION),
+	// the function can be memoized, its result depending on its arguments only
+	PURE(Operand.COUNT),
+	PRINT, INPUT,
+	STACK_PUSH(Operand.NAME), STACK_POP(Operand.NAME), STACK_PEEK(Operand.NAME),
+	STACK_ISEMPTY(Operand.NAME),
+	// operations on items the compiler proved to be integers or booleans,
+	// run in place without reading their tags
+	IADD, ISUB, IMUL, IDIV, IMOD, IPOW,
+	ICMPEQ, ICMPNE, ICMPGE, ICMPGT, ICMPLE, ICMPLT,
+	BAND, BOR, BNOT;
+
+	/**
+	 * Kind of the word following an instruction in the intermediate code and
+	 * what it is decoded into.
+	 */
+	public enum Operand {
+		/** literal value, decoded into an index of the constant pool */
+		CONSTANT("value"),
+		/** variable name, decoded into an index of the name pool */
+		NAME("variable name"),
+		/** label to jump to, decoded into a code address */
+		ADDRESS("address"),
+		/** index of a variable in the frame of the current function */
+		SLOT("slot number"),
+		/** index of a variable in the main frame */
+		GLOBAL_SLOT("global slot number"),
+		/** label definition, removed from the decoded code */
+		LABEL("label name"),
+		/**
+		 * name of the next slot of the frame starting at the current address,
+		 * removed from the decoded code
+		 */
+		DECLARATION("variable name"),
+		/**
+		 * number of parameters of the function starting at the current
+		 * address, removed from the decoded code
+		 */
+		COUNT("parameter count");
+
+		private final String description;
+
+		private Operand(String description) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+
+	private static final Instruction[] OPCODES = values();
+
+	private final Operand[] operands;
+
+	private Instruction(Operand... operands) {
+		this.operands = operands;
+	}
+
+	/**
+	 * @return the kind of every word following the instruction
+	 */
+	public Operand[] getOperands() {
+		return operands;
+	}
+
+	/**
+	 * @return true for LABEL, VAR, GLOBAL and PURE, which only describe the
+	 *         code and are removed from the decoded program
+	 */
+	public boolean isPseudo() {
+		return operands.length == 1
+				&& (operands[0] == Operand.LABEL
+						|| operands[0] == Operand.DECLARATION || operands[0] == Operand.COUNT);
+	}
+
+	/**
+	 * @return number of ints the instruction takes in decoded code
+	 */
+	public int getSize() {
+		return 1 + operands.length;
+	}
+
+	/**
+	 * @return the untyped instruction a typed one specializes, the
+	 *         instruction itself for the others
+	 */
+	public Instruction getUntyped() {
+		switch (this) {
+		case IADD:
+			return ADD;
+		case ISUB:
+			return SUB;
+		case IMUL:
+			return MUL;
+		case IDIV:
+			return DIV;
+		case IMOD:
+			return MOD;
+		case IPOW:
+			return POW;
+		case ICMPEQ:
+			return ISEQ;
+		case ICMPNE:
+			return ISNE;
+		case ICMPGE:
+			return ISGE;
+		case ICMPGT:
+			return ISGT;
+		case ICMPLE:
+			return ISLE;
+		case ICMPLT:
+			return ISLT;
+		case BAND:
+			return AND;
+		case BOR:
+			return OR;
+		case BNOT:
+			return NOT;
+		default:
+			return this;
+		}
+	}
+
+	public int getOpcode() {
+		return ordinal();
+	}
+
+	public static Instruction fromOpcode(int opcode) {
+		return OPCODES[opcode];
+	}
 }
@@ -0,0 +1,473 @@
+package edu.asu.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles the hot regions of a program to JVM classes. A region is the code
+ * of a function, from its first instruction to the start of the next
+ * function, the main code being the region at address 0.
+ * <p>
+ * The {@link StackMachine} counts how many times control enters an address
+ * through a CALL, a TAILCALL, a RET or a backward JMP. Once an address reaches the
+ * threshold, its whole region is translated to Java source and compiled
+ * with the system {@link JavaCompiler} on a background thread, the machine
+ * interpreting the region meanwhile; the compiled code is then used for
+ * every later entry at the start of the region, at a jump target or at a
+ * return address. The generated code performs the same operations as the
+ * interpreter in the same order, so it fails with the same
+ * {@link edu.asu.runtime.exceptions.ProgramExecutionException}s. It hands
+ * control back to the interpreter on calls, RET, HALT and jumps out of the
+ * region, so the call stack is never kept on the JVM stack.
+ * <p>
+ * A region that cannot be compiled, because it is too large or because no
+ * compiler is available (JRE without javac), simply stays interpreted.
+ */
+class JitCompiler {
+
+	static final int DEFAULT_THRESHOLD = 1000;
+	// keeps the generated methods small enough to be compiled by HotSpot
+	private static final int MAX_REGION_SIZE = 2000;
+
+	// shared by every program, so that compiling never slows the machines
+	private static final ExecutorService COMPILER = Executors
+			.newSingleThreadExecutor(task -> {
+				Thread thread = new Thread(task, "Bitsy JIT compiler");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private final Program program;
+	private final int[] code;
+	private final int threshold;
+	// start address of every region, sorted
+	private final int[] regionStarts;
+	// regions queued for compilation, only touched by the machine thread
+	private final BitSet translatedRegions = new BitSet();
+	private final int[] counters;
+	// published by the compiler thread
+	private final AtomicReferenceArray<CompiledCode> compiledCode;
+	// only touched by the compiler thread
+	private RegionClassLoader classLoader;
+
+	JitCompiler(Program program, int threshold) {
+		this.program = program;
+		this.code = program.getCode();
+		this.threshold = threshold;
+		this.counters = new int[code.length];
+		this.compiledCode = new AtomicReferenceArray<>(code.length);
+		this.regionStarts = findRegionStarts(program);
+	}
+
+	static boolean isAvailable() {
+		return ToolProvider.getSystemJavaCompiler() != null;
+	}
+
+	/**
+	 * Counts an entry at the address.
+	 *
+	 * @return the compiled code to run from the address, null to keep
+	 *         interpreting
+	 */
+	CompiledCode enter(int address) {
+		if (address >= code.length) {
+			return null;
+		}
+		CompiledCode compiled = compiledCode.get(address);
+		if (compiled == null && ++counters[address] == threshold) {
+			int region = regionOf(address);
+			if (!translatedRegions.get(region)) {
+				translatedRegions.set(region);
+				COMPILER.execute(() -> translateRegion(region));
+			}
+		}
+		return compiled;
+	}
+
+	private void translateRegion(int region) {
+		int start = regionStarts[region];
+		int end = region + 1 < regionStarts.length ? regionStarts[region + 1]
+				: code.length;
+		BitSet entries = findEntries(start, end);
+		if (entries == null) {
+			return;
+		}
+		String className = "BitsyRegion" + start;
+		CompiledCode compiled = compile(className,
+				generateSource(className, start, end, entries));
+		if (compiled != null) {
+			for (int address = entries.nextSetBit(0); address >= 0; address = entries
+					.nextSetBit(address + 1)) {
+				compiledCode.set(address, compiled);
+			}
+		}
+	}
+
+	private int regionOf(int address) {
+		int index = Arrays.binarySearch(regionStarts, address);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	private static int[] findRegionStarts(Program program) {
+		FrameLayout[] layouts = program.getFrameLayouts();
+		int[] starts = new int[layouts.length + 1];
+		int count = 0;
+		starts[count++] = 0;
+		for (int address = 1; address < layouts.length; address++) {
+			if (layouts[address] != null) {
+				starts[count++] = address;
+			}
+		}
+		return Arrays.copyOf(starts, count);
+	}
+
+	/*
+	 * @return the addresses control can enter the region at, null if the
+	 * region cannot be compiled
+	 */
+	private BitSet findEntries(int start, int end) {
+		if (end - start > MAX_REGION_SIZE) {
+			return null;
+		}
+		BitSet entries = new BitSet();
+		entries.set(start);
+		int address = start;
+		while (address < end) {
+			int opcode = code[address];
+			if (opcode < 0 || opcode >= Instruction.values().length) {
+				return null;
+			}
+			Instruction instruction = Instruction.fromOpcode(opcode);
+			int next = address + instruction.getSize();
+			if (instruction.isPseudo() || next > end) {
+				return null;
+			}
+			Instruction.Operand[] operands = instruction.getOperands();
+			for (int i = 0; i < operands.length; i++) {
+				if (operands[i] != Instruction.Operand.ADDRESS) {
+					continue;
+				}
+				int target = code[address + 1 + i];
+				if (target < 0 || target >= code.length) {
+					return null;
+				}
+				if (instruction == Instruction.CALL) {
+					entries.set(next);
+				} else if (target >= start && target < end) {
+					entries.set(target);
+				}
+			}
+			address = next;
+		}
+		entries.clear(end);
+		return entries;
+	}
+
+	private String generateSource(String className, int start, int end,
+			BitSet entries) {
+		StringBuilder source = new StringBuilder();
+		source.append("import edu.asu.runtime.*;\n");
+		source.append("public final class ").append(className)
+				.append(" extends CompiledCode {\n");
+		source.append("protected void execute(StackMachine m) {\n");
+		source.append("int pc = address(m);\n");
+		source.append("while (true) {\nswitch (pc) {\n");
+		boolean reachable = false;
+		int address = start;
+		while (address < end) {
+			Instruction instruction = Instruction.fromOpcode(code[address]);
+			int next = address + instruction.getSize();
+			if (entries.get(address)) {
+				source.append("case ").append(address).append(":\n");
+				reachable = true;
+			}
+			if (reachable) {
+				reachable = generateInstruction(source, instruction, address,
+						next, start, end);
+			}
+			address = next;
+		}
+		if (reachable) {
+			source.append("exit(m, ").append(end).append(");\nreturn;\n");
+		}
+		source.append("default:\n");
+		source.append("throw new IllegalStateException(\"No entry at \" + pc);\n");
+		source.append("}\n}\n}\n}\n");
+		return source.toString();
+	}
+
+	/*
+	 * @return whether the instruction can complete normally
+	 */
+	private boolean generateInstruction(StringBuilder source,
+			Instruction instruction, int address, int next, int start, int end) {
+		int operand = instruction.getOperands().length > 0 ? code[address + 1]
+				: 0;
+		switch (instruction) {
+		case HALT:
+			source.append("halt(m, ").append(next).append(");\nreturn;\n");
+			return false;
+		case PUSH:
+			switch (program.getConstantTypes()[operand]) {
+			case ValueType.INT:
+				appendCall(source, "pushInt",
+						(int) program.getConstantValues()[operand]);
+				break;
+			case ValueType.BOOL:
+				appendCall(source, "pushBool",
+						program.getConstantValues()[operand] != 0);
+				break;
+			default:
+				appendCall(source, "pushConstant", operand);
+				break;
+			}
+			return true;
+		case POP:
+			source.append("pop(m);\n");
+			return true;
+		case LOAD:
+			appendCall(source, "load", operand);
+			return true;
+		case STORE:
+			appendCall(source, "store", operand);
+			return true;
+		case LOAD_SLOT:
+			appendCall(source, "loadSlot", operand);
+			return true;
+		case LOAD_LOAD:
+			appendCall(source, "loadSlot", operand);
+			appendCall(source, "loadSlot", code[address + 2]);
+			return true;
+		case LOAD_GLOBAL:
+			appendCall(source, "loadGlobal", operand);
+			return true;
+		case STORE_SLOT:
+			appendCall(source, "storeSlot", operand);
+			return true;
+		case INC:
+			appendCall(source, "increment", operand + ", 1");
+			return true;
+		case DEC:
+			appendCall(source, "increment", operand + ", -1");
+			return true;
+		case STACK_PUSH:
+			appendCall(source, "stackPush", operand);
+			return true;
+		case STACK_POP:
+			appendCall(source, "stackPop", operand);
+			return true;
+		case STACK_PEEK:
+			appendCall(source, "stackPeek", operand);
+			return true;
+		case STACK_ISEMPTY:
+			appendCall(source, "stackIsEmpty", operand);
+			return true;
+		case NOT:
+		case BNOT:
+			appendCall(source, "not", "Instruction." + instruction);
+			return true;
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case MOD:
+		case POW:
+		case IADD:
+		case ISUB:
+		case IMUL:
+		case IDIV:
+		case IMOD:
+		case IPOW:
+			appendCall(source, "arithmetic", "Instruction." + instruction);
+			return true;
+		case ISGE:
+		case ISGT:
+		case ISLE:
+		case ISLT:
+		case ICMPEQ:
+		case ICMPNE:
+		case ICMPGE:
+		case ICMPGT:
+		case ICMPLE:
+		case ICMPLT:
+			appendCall(source, "compare", "Instruction." + instruction);
+			return true;
+		case AND:
+		case OR:
+		case BAND:
+		case BOR:
+			appendCall(source, "logical", "Instruction." + instruction);
+			return true;
+		case ISEQ:
+		case ISNE:
+			appendCall(source, "equal", instruction == Instruction.ISEQ);
+			return true;
+		case JMP:
+			appendJump(source, operand, start, end);
+			return false;
+		case JIF:
+		case JIT:
+			source.append("if (")
+					.append(instruction == Instruction.JIF ? "!" : "")
+					.append("condition(m, Instruction.").append(instruction)
+					.append(")) {\n");
+			appendJump(source, operand, start, end);
+			source.append("}\n");
+			return true;
+		case JEQ:
+		case JNE:
+		case JGE:
+		case JGT:
+		case JLE:
+		case JLT:
+			source.append("if (comparison(m, Instruction.")
+					.append(instruction).append(")) {\n");
+			appendJump(source, operand, start, end);
+			source.append("}\n");
+			return true;
+		case CALL:
+			source.append("call(m, ").append(next).append(", ")
+					.append(operand).append(");\nreturn;\n");
+			return false;
+		case RET:
+			source.append("ret(m, ").append(next).append(");\nreturn;\n");
+			return false;
+		case TAILCALL:
+			source.append("tailCall(m, ").append(next).append(", ")
+					.append(operand).append(");\nreturn;\n");
+			return false;
+		case PRINT:
+			source.append("print(m);\n");
+			return true;
+		case INPUT:
+			source.append("input(m);\n");
+			return true;
+		default:
+			throw new AssertionError(instruction);
+		}
+	}
+
+	/*
+	 * Calls a helper of CompiledCode on the machine and the operand.
+	 */
+	private static void appendCall(StringBuilder source, String helper,
+			Object operand) {
+		source.append(helper).append("(m, ").append(operand).append(");\n");
+	}
+
+	private static void appendJump(StringBuilder source, int target,
+			int start, int end) {
+		if (target >= start && target < end) {
+			source.append("pc = ").append(target).append(";\ncontinue;\n");
+		} else {
+			source.append("exit(m, ").append(target).append(");\nreturn;\n");
+		}
+	}
+
+	/*
+	 * @return an instance of the compiled class, null if it does not compile
+	 */
+	private CompiledCode compile(String className, String source) {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			return null;
+		}
+		try {
+			String classPath = Paths.get(
+					CompiledCode.class.getProtectionDomain().getCodeSource()
+							.getLocation().toURI()).toString();
+			MemoryFileManager fileManager = new MemoryFileManager(
+					compiler.getStandardFileManager(null, null, null));
+			boolean success = compiler.getTask(null, fileManager,
+					diagnostic -> {
+					},
+					Arrays.asList("-classpath", classPath, "-g:none",
+							"-proc:none"), null,
+					Arrays.asList(new SourceFile(className, source))).call();
+			if (!success) {
+				return null;
+			}
+			if (classLoader == null) {
+				classLoader = new RegionClassLoader(
+						CompiledCode.class.getClassLoader());
+			}
+			for (Map.Entry<String, ByteArrayOutputStream> entry : fileManager.classes
+					.entrySet()) {
+				classLoader.define(entry.getKey(), entry.getValue()
+						.toByteArray());
+			}
+			return (CompiledCode) classLoader.loadClass(className)
+					.getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			// keep interpreting the region
+			return null;
+		}
+	}
+
+	private static class SourceFile extends SimpleJavaFileObject {
+		private final String source;
+
+		SourceFile(String className, String source) {
+			super(URI.create("string:///" + className + Kind.SOURCE.extension),
+					Kind.SOURCE);
+			this.source = source;
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return source;
+		}
+	}
+
+	private static class MemoryFileManager extends
+			ForwardingJavaFileManager<JavaFileManager> {
+		final Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+
+		MemoryFileManager(JavaFileManager fileManager) {
+			super(fileManager);
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput(Location location,
+				String className, Kind kind, FileObject sibling) {
+			return new SimpleJavaFileObject(URI.create("mem:///" + className
+					+ kind.extension), kind) {
+				@Override
+				public OutputStream openOutputStream() {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					classes.put(className, bytes);
+					return bytes;
+				}
+			};
+		}
+	}
+
+	private static class RegionClassLoader extends ClassLoader {
+
+		RegionClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		void define(String className, byte[] bytes) {
+			defineClass(className, bytes, 0, bytes.length);
+		}
+	}
+}
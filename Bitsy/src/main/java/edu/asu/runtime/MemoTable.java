@@ -0,0 +1,157 @@
+package edu.asu.runtime;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of the calls of a function declared PURE, keyed by the values of
+ * its arguments. A {@link StackMachine} replaces a call whose arguments are
+ * in the table with its result; the least recently used results are evicted
+ * once the table holds its capacity.
+ * <p>
+ * A result is only kept when the call left exactly one item in place of its
+ * arguments. A call leaving anything else disables the table, as replacing
+ * such a call would change the operand stack.
+ */
+public class MemoTable {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Items of the operand stack, compared by type and value.
+	 */
+	static final class Values {
+		private final byte[] tags;
+		private final long[] values;
+		private final Object[] strings;
+		private final int hash;
+
+		/*
+		 * Copies the count items on top of the stack.
+		 */
+		Values(OperandStack stack, int count) {
+			tags = new byte[count];
+			values = new long[count];
+			strings = new Object[count];
+			for (int i = 0; i < count; i++) {
+				int depth = count - 1 - i;
+				tags[i] = stack.typeAt(depth);
+				if (tags[i] == ValueType.STRING) {
+					strings[i] = stack.stringAt(depth);
+				} else {
+					values[i] = stack.valueAt(depth);
+				}
+			}
+			hash = 31
+					* (31 * Arrays.hashCode(tags) + Arrays.hashCode(values))
+					+ Arrays.hashCode(strings);
+		}
+
+		private void pushOn(OperandStack stack) {
+			for (int i = 0; i < tags.length; i++) {
+				stack.push(tags[i], values[i], strings[i]);
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Values)) {
+				return false;
+			}
+			Values values = (Values) other;
+			return hash == values.hash && Arrays.equals(tags, values.tags)
+					&& Arrays.equals(this.values, values.values)
+					&& Arrays.equals(strings, values.strings);
+		}
+	}
+
+	private final String funcName;
+	private final int parameters;
+	private final Map<Values, Values> results;
+	private boolean enabled = true;
+	private long hits = 0;
+	private long misses = 0;
+
+	public MemoTable(String funcName, int parameters, int capacity) {
+		this.funcName = funcName;
+		this.parameters = parameters;
+		this.results = new LinkedHashMap<Values, Values>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Values, Values> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public String getFuncName() {
+		return funcName;
+	}
+
+	public int getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * @return the number of calls replaced by a cached result
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of calls run because their result was not cached
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	public int size() {
+		return results.size();
+	}
+
+	/**
+	 * @return false once a call of the function did not leave exactly its
+	 *         result on the stack
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Replaces the arguments on top of the stack with their cached result.
+	 *
+	 * @return true if there was one, the call being done otherwise
+	 */
+	boolean replaceCall(Values arguments, OperandStack stack) {
+		Values result = results.get(arguments);
+		if (result == null) {
+			misses++;
+			return false;
+		}
+		hits++;
+		stack.drop(parameters);
+		result.pushOn(stack);
+		return true;
+	}
+
+	/**
+	 * Caches the item on top of the stack as the result of the call with the
+	 * arguments, when the stack has the size the call should leave.
+	 */
+	void put(Values arguments, OperandStack stack, int expectedSize) {
+		if (stack.size() != expectedSize) {
+			enabled = false;
+			results.clear();
+			return;
+		}
+		results.put(arguments, new Values(stack, 1));
+	}
+}
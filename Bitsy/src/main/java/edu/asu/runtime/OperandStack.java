@@ -0,0 +1,429 @@
+package edu.asu.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Operand stack of the {@link StackMachine}. Integers and booleans are kept
+ * unboxed in a <code>long</code> array next to a tag array telling the type
+ * of every entry; only text (string literals and input) is stored as an
+ * object. Values are turned into strings only when they are printed.
+ * <p>
+ * Bitsy stack variables are operand stacks as well, so that values move
+ * between them and the machine without locking, boxing or conversion.
+ */
+class OperandStack {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] values;
+	private byte[] tags;
+	private Object[] strings;
+	private int size = 0;
+
+	public OperandStack() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Creates a stack holding capacity items, at least one, before it grows.
+	 */
+	public OperandStack(int capacity) {
+		capacity = Math.max(capacity, 1);
+		values = new long[capacity];
+		tags = new byte[capacity];
+		strings = new Object[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void pushInt(int value) {
+		ensureCapacity();
+		tags[size] = ValueType.INT;
+		values[size++] = value;
+	}
+
+	public void pushBool(boolean value) {
+		ensureCapacity();
+		tags[size] = ValueType.BOOL;
+		values[size++] = value ? 1 : 0;
+	}
+
+	public void pushString(String value) {
+		ensureCapacity();
+		tags[size] = ValueType.STRING;
+		strings[size++] = value;
+	}
+
+	/**
+	 * Pushes a value read as text, keeping it as an integer or a boolean when
+	 * the text is the canonical form of one.
+	 */
+	public void pushText(String text) {
+		byte type = ValueType.typeOf(text);
+		push(type, ValueType.valueOf(type, text), text);
+	}
+
+	/**
+	 * Pushes an entry given by its tag, its primitive value and its text, the
+	 * last being used only for {@link ValueType#STRING} entries.
+	 */
+	public void push(byte type, long value, Object text) {
+		ensureCapacity();
+		tags[size] = type;
+		values[size] = value;
+		if (type == ValueType.STRING) {
+			strings[size] = text;
+		}
+		size++;
+	}
+
+	/**
+	 * Pushes a boxed value as returned by {@link #popObject()}.
+	 */
+	public void pushObject(Object value) {
+		if (value instanceof Integer) {
+			pushInt((Integer) value);
+		} else if (value instanceof Boolean) {
+			pushBool((Boolean) value);
+		} else {
+			pushString((String) value);
+		}
+	}
+
+	public Object popObject() {
+		int top = size - 1;
+		Object value;
+		switch (tags[top]) {
+		case ValueType.INT:
+			value = (int) values[top];
+			break;
+		case ValueType.BOOL:
+			value = values[top] != 0;
+			break;
+		default:
+			value = strings[top];
+		}
+		drop(1);
+		return value;
+	}
+
+	/**
+	 * Pushes the value of a variable slot, which must be defined.
+	 */
+	public void load(Slots slots, int slot) {
+		push(slots.tags[slot], slots.values[slot], slots.strings[slot]);
+	}
+
+	/**
+	 * Pops the top of the stack into a variable slot.
+	 */
+	public void store(Slots slots, int slot) {
+		int top = size - 1;
+		slots.tags[slot] = tags[top];
+		slots.values[slot] = values[top];
+		slots.strings[slot] = strings[top];
+		drop(1);
+	}
+
+	/**
+	 * Pops the top of this stack and pushes it on another one.
+	 */
+	public void moveTopTo(OperandStack other) {
+		copyTopTo(other);
+		drop(1);
+	}
+
+	/**
+	 * Pushes the top of this stack on another one.
+	 */
+	public void copyTopTo(OperandStack other) {
+		int top = size - 1;
+		other.push(tags[top], values[top], strings[top]);
+	}
+
+	/**
+	 * Halves the capacity of the stack when it is at most a quarter full, so
+	 * that a stack variable used as a work list gives its memory back once it
+	 * empties.
+	 */
+	public void trim() {
+		int capacity = values.length;
+		if (capacity > INITIAL_CAPACITY && size <= capacity / 4) {
+			capacity /= 2;
+			values = Arrays.copyOf(values, capacity);
+			tags = Arrays.copyOf(tags, capacity);
+			strings = Arrays.copyOf(strings, capacity);
+		}
+	}
+
+	public void drop(int count) {
+		for (int i = size - count; i < size; i++) {
+			strings[i] = null;
+		}
+		size -= count;
+	}
+
+	/**
+	 * Reads an integer without checking its type, the compiler rejecting
+	 * the programs mixing types; text reads as 0.
+	 *
+	 * @param depth
+	 *            0 for the top of the stack, 1 for the item below it...
+	 */
+	public int intAt(int depth) {
+		return (int) values[size - 1 - depth];
+	}
+
+	/**
+	 * Reads a boolean, or a jump condition, without checking its type:
+	 * integers are true when not zero and text is false.
+	 */
+	public boolean boolAt(int depth) {
+		return isTrue(values[size - 1 - depth]);
+	}
+
+	/**
+	 * Replaces the two operands on top of the stack, the item below the top
+	 * being the left one, with the result of an arithmetic instruction,
+	 * typed or not.
+	 */
+	public void arithmetic(Instruction instruction) {
+		replaceTwoWithInt(arithmetic(instruction, intAt(1), intAt(0)));
+	}
+
+	/**
+	 * Replaces the two operands on top of the stack with the result of an
+	 * integer comparison, typed or not.
+	 */
+	public void compare(Instruction instruction) {
+		replaceTwoWithBool(compare(instruction, intAt(1), intAt(0)));
+	}
+
+	/**
+	 * Replaces the two operands on top of the stack with the result of AND
+	 * or OR, typed or not; both operands are always evaluated.
+	 */
+	public void logical(Instruction instruction) {
+		replaceTwoWithBool(logical(instruction, boolAt(1), boolAt(0)));
+	}
+
+	/**
+	 * Replaces the two operands on top of the stack with whether their
+	 * equality is the expected one, as ISEQ or ISNE.
+	 */
+	public void equal(boolean expected) {
+		replaceTwoWithBool(equalsAt(1, 0) == expected);
+	}
+
+	/**
+	 * Replaces the item on top of the stack with its negation.
+	 */
+	public void not() {
+		replaceTopWithBool(!boolAt(0));
+	}
+
+	/**
+	 * Pops the condition of JIF or JIT.
+	 */
+	public boolean popCondition() {
+		boolean condition = boolAt(0);
+		drop(1);
+		return condition;
+	}
+
+	/**
+	 * Pops the two operands of a comparing jump, JEQ to JLT, and tells
+	 * whether the comparison holds.
+	 */
+	public boolean popComparison(Instruction instruction) {
+		boolean holds;
+		if (instruction == Instruction.JEQ || instruction == Instruction.JNE) {
+			holds = equalsAt(1, 0) == (instruction == Instruction.JEQ);
+		} else {
+			holds = compare(instruction, intAt(1), intAt(0));
+		}
+		drop(2);
+		return holds;
+	}
+
+	/**
+	 * Replaces the two items on top of the stack with an integer.
+	 */
+	public void replaceTwoWithInt(int value) {
+		int top = --size - 1;
+		tags[top] = ValueType.INT;
+		values[top] = value;
+		strings[top] = null;
+		strings[size] = null;
+	}
+
+	/**
+	 * Replaces the two items on top of the stack with a boolean.
+	 */
+	public void replaceTwoWithBool(boolean value) {
+		int top = --size - 1;
+		tags[top] = ValueType.BOOL;
+		values[top] = value ? 1 : 0;
+		strings[top] = null;
+		strings[size] = null;
+	}
+
+	/**
+	 * Replaces the item on top of the stack with a boolean.
+	 */
+	public void replaceTopWithBool(boolean value) {
+		tags[size - 1] = ValueType.BOOL;
+		values[size - 1] = value ? 1 : 0;
+		strings[size - 1] = null;
+	}
+
+	public boolean equalsAt(int depth1, int depth2) {
+		int i = size - 1 - depth1;
+		int j = size - 1 - depth2;
+		return equal(tags[i], values[i], strings[i], tags[j], values[j],
+				strings[j]);
+	}
+
+	public String stringAt(int depth) {
+		int i = size - 1 - depth;
+		return text(tags[i], values[i], strings[i]);
+	}
+
+	/*
+	 * The semantics of the operations on values, shared by the stack
+	 * operations above and the RegisterMachine. Every engine reaches them
+	 * through these, so that they agree on every result.
+	 */
+
+	/**
+	 * @return the result of ADD to POW or of IADD to IPOW
+	 */
+	static int arithmetic(Instruction instruction, int left, int right) {
+		switch (instruction) {
+		case ADD:
+		case IADD:
+			return left + right;
+		case SUB:
+		case ISUB:
+			return left - right;
+		case MUL:
+		case IMUL:
+			return left * right;
+		case DIV:
+		case IDIV:
+			return left / right;
+		case MOD:
+		case IMOD:
+			return left % right;
+		case POW:
+		case IPOW:
+			return (int) Math.pow(left, right);
+		default:
+			throw new AssertionError(instruction);
+		}
+	}
+
+	/**
+	 * @return the result of an integer comparison: ISGE to ISLT, ICMPEQ to
+	 *         ICMPLT or JGE to JLT
+	 */
+	static boolean compare(Instruction instruction, int left, int right) {
+		switch (instruction) {
+		case ICMPEQ:
+			return left == right;
+		case ICMPNE:
+			return left != right;
+		case ISGE:
+		case ICMPGE:
+		case JGE:
+			return left >= right;
+		case ISGT:
+		case ICMPGT:
+		case JGT:
+			return left > right;
+		case ISLE:
+		case ICMPLE:
+		case JLE:
+			return left <= right;
+		case ISLT:
+		case ICMPLT:
+		case JLT:
+			return left < right;
+		default:
+			throw new AssertionError(instruction);
+		}
+	}
+
+	/**
+	 * @return the result of AND, OR, BAND or BOR
+	 */
+	static boolean logical(Instruction instruction, boolean left,
+			boolean right) {
+		switch (instruction) {
+		case AND:
+		case BAND:
+			return left && right;
+		case OR:
+		case BOR:
+			return left || right;
+		default:
+			throw new AssertionError(instruction);
+		}
+	}
+
+	/**
+	 * @return whether two values are equal: integers and booleans by value,
+	 *         anything else by text
+	 */
+	static boolean equal(byte tag1, long value1, Object text1, byte tag2,
+			long value2, Object text2) {
+		if (tag1 == tag2 && tag1 != ValueType.STRING) {
+			return value1 == value2;
+		}
+		return text(tag1, value1, text1).equals(text(tag2, value2, text2));
+	}
+
+	/**
+	 * @return whether a value is true as a boolean or a condition: integers
+	 *         are true when not zero and text is false
+	 */
+	static boolean isTrue(long value) {
+		return value != 0;
+	}
+
+	/**
+	 * @return the text a value is printed as
+	 */
+	static String text(byte tag, long value, Object text) {
+		switch (tag) {
+		case ValueType.INT:
+			return Integer.toString((int) value);
+		case ValueType.BOOL:
+			return Boolean.toString(value != 0);
+		default:
+			return (String) text;
+		}
+	}
+
+	/**
+	 * @return the integer or boolean item as stored, 1 for true
+	 */
+	long valueAt(int depth) {
+		return values[size - 1 - depth];
+	}
+
+	public byte typeAt(int depth) {
+		return tags[size - 1 - depth];
+	}
+
+	private void ensureCapacity() {
+		if (size == values.length) {
+			int capacity = size * 2;
+			values = Arrays.copyOf(values, capacity);
+			tags = Arrays.copyOf(tags, capacity);
+			strings = Arrays.copyOf(strings, capacity);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package edu.asu.runtime;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Execution profile of a program run by {@link StackMachine#run(Profiler)}:
+ * how many times every opcode was executed, the calls and the inclusive and
+ * exclusive time of every function, how many times every loop header, the
+ * target of a backward jump, was jumped to and the hits and misses of the
+ * {@link MemoTable} of every pure function.
+ * <p>
+ * The inclusive time of a recursive function only counts its outermost
+ * calls, so that it is never longer than the whole run.
+ */
+public class Profiler {
+
+	private static class Function {
+		private final String name;
+		private long calls;
+		// calls in progress
+		private int active;
+		private long inclusiveNanos;
+		private long exclusiveNanos;
+
+		private Function(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class Call {
+		private final Function function;
+		private final long start;
+		private long childNanos;
+
+		private Call(Function function, long start) {
+			this.function = function;
+			this.start = start;
+		}
+	}
+
+	private static class Loop {
+		private final String function;
+		private final int address;
+		private long iterations;
+
+		private Loop(String function, int address) {
+			this.function = function;
+			this.address = address;
+		}
+	}
+
+	private final long[] opcodeCounts = new long[Instruction.values().length];
+	private final Map<String, Function> functions = new LinkedHashMap<>();
+	private final Map<Integer, Loop> loops = new TreeMap<>();
+	private final Deque<Call> calls = new ArrayDeque<>();
+	private final List<MemoTable> memoTables = new ArrayList<>();
+
+	void instruction(int opcode) {
+		opcodeCounts[opcode]++;
+	}
+
+	void enter(String function) {
+		Function f = functions.get(function);
+		if (f == null) {
+			f = new Function(function);
+			functions.put(function, f);
+		}
+		f.calls++;
+		f.active++;
+		calls.push(new Call(f, System.nanoTime()));
+	}
+
+	void exit() {
+		Call call = calls.pop();
+		long nanos = System.nanoTime() - call.start;
+		Function f = call.function;
+		f.exclusiveNanos += nanos - call.childNanos;
+		if (--f.active == 0) {
+			f.inclusiveNanos += nanos;
+		}
+		if (!calls.isEmpty()) {
+			calls.peek().childNanos += nanos;
+		}
+	}
+
+	/**
+	 * Ends the calls still in progress, when the program halts or fails.
+	 */
+	void stop() {
+		while (!calls.isEmpty()) {
+			exit();
+		}
+	}
+
+	void loop(String function, int address) {
+		Loop loop = loops.get(address);
+		if (loop == null) {
+			loop = new Loop(function, address);
+			loops.put(address, loop);
+		}
+		loop.iterations++;
+	}
+
+	void memoTable(MemoTable table) {
+		memoTables.add(table);
+	}
+
+	/**
+	 * @return the result tables of the pure functions the run called
+	 */
+	public List<MemoTable> getMemoTables() {
+		return memoTables;
+	}
+
+	public long getOpcodeCount(Instruction instruction) {
+		return opcodeCounts[instruction.getOpcode()];
+	}
+
+	/**
+	 * @return the number of calls of the function, the main method being
+	 *         called once
+	 */
+	public long getCalls(String function) {
+		Function f = functions.get(function);
+		return f == null ? 0 : f.calls;
+	}
+
+	/**
+	 * @return the number of jumps back to the loop header at the address
+	 */
+	public long getIterations(int address) {
+		Loop loop = loops.get(address);
+		return loop == null ? 0 : loop.iterations;
+	}
+
+	/**
+	 * Prints the opcodes by count, the functions by exclusive time, the
+	 * loops by iterations and the memoized functions.
+	 */
+	public void printReport(PrintStream out) {
+		long total = 0;
+		for (long count : opcodeCounts) {
+			total += count;
+		}
+		out.printf("%-16s %14s %7s%n", "Opcode", "Count", "%");
+		for (Instruction instruction : sortedOpcodes()) {
+			long count = getOpcodeCount(instruction);
+			out.printf("%-16s %14d %6.2f%%%n", instruction, count,
+					100.0 * count / total);
+		}
+		out.printf("%-16s %14d%n", "total", total);
+
+		out.println();
+		out.printf("%-16s %14s %14s %14s%n", "Function", "Calls",
+				"Inclusive ms", "Exclusive ms");
+		for (Function f : sortedFunctions()) {
+			out.printf("%-16s %14d %14.3f %14.3f%n", f.name, f.calls,
+					f.inclusiveNanos / 1e6, f.exclusiveNanos / 1e6);
+		}
+
+		if (!loops.isEmpty()) {
+			out.println();
+			out.printf("%-16s %14s %14s%n", "Loop function", "Address",
+					"Iterations");
+			for (Loop loop : sortedLoops()) {
+				out.printf("%-16s %14d %14d%n", loop.function, loop.address,
+						loop.iterations);
+			}
+		}
+
+		if (!memoTables.isEmpty()) {
+			out.println();
+			out.printf("%-16s %14s %14s %14s%n", "Memoized", "Hits", "Misses",
+					"Entries");
+			for (MemoTable table : memoTables) {
+				out.printf("%-16s %14d %14d %14d%n", table.getFuncName(),
+						table.getHits(), table.getMisses(), table.size());
+			}
+		}
+	}
+
+	/**
+	 * Writes the report as a JSON object with the same order as
+	 * {@link #printReport(PrintStream)}.
+	 */
+	public void writeJson(Appendable out) throws IOException {
+		out.append("{\n  \"opcodes\": {");
+		String separator = "\n";
+		for (Instruction instruction : sortedOpcodes()) {
+			out.append(separator).append("    \"").append(instruction.name())
+					.append("\": ")
+					.append(Long.toString(getOpcodeCount(instruction)));
+			separator = ",\n";
+		}
+		out.append("\n  },\n  \"functions\": [");
+		separator = "\n";
+		for (Function f : sortedFunctions()) {
+			out.append(separator).append("    {\"name\": \"").append(f.name)
+					.append("\", \"calls\": ").append(Long.toString(f.calls))
+					.append(", \"inclusiveNanos\": ")
+					.append(Long.toString(f.inclusiveNanos))
+					.append(", \"exclusiveNanos\": ")
+					.append(Long.toString(f.exclusiveNanos)).append("}");
+			separator = ",\n";
+		}
+		out.append("\n  ],\n  \"loops\": [");
+		separator = "\n";
+		for (Loop loop : sortedLoops()) {
+			out.append(separator).append("    {\"function\": \"")
+					.append(loop.function).append("\", \"address\": ")
+					.append(Integer.toString(loop.address))
+					.append(", \"iterations\": ")
+					.append(Long.toString(loop.iterations)).append("}");
+			separator = ",\n";
+		}
+		out.append("\n  ],\n  \"memoized\": [");
+		separator = "\n";
+		for (MemoTable table : memoTables) {
+			out.append(separator).append("    {\"name\": \"")
+					.append(table.getFuncName()).append("\", \"hits\": ")
+					.append(Long.toString(table.getHits()))
+					.append(", \"misses\": ")
+					.append(Long.toString(table.getMisses()))
+					.append(", \"entries\": ")
+					.append(Integer.toString(table.size())).append("}");
+			separator = ",\n";
+		}
+		out.append("\n  ]\n}\n");
+	}
+
+	private List<Instruction> sortedOpcodes() {
+		List<Instruction> executed = new ArrayList<>();
+		for (Instruction instruction : Instruction.values()) {
+			if (getOpcodeCount(instruction) > 0) {
+				executed.add(instruction);
+			}
+		}
+		executed.sort((a, b) -> Long.compare(getOpcodeCount(b),
+				getOpcodeCount(a)));
+		return executed;
+	}
+
+	private List<Function> sortedFunctions() {
+		List<Function> sorted = new ArrayList<>(functions.values());
+		sorted.sort((a, b) -> Long.compare(b.exclusiveNanos, a.exclusiveNanos));
+		return sorted;
+	}
+
+	private List<Loop> sortedLoops() {
+		List<Loop> sorted = new ArrayList<>(loops.values());
+		sorted.sort((a, b) -> Long.compare(b.iterations, a.iterations));
+		return sorted;
+	}
+}
@@ -0,0 +1,90 @@
+package edu.asu.runtime;
+
+/**
+ * Decoded form of the intermediate code. Instructions are stored as their
+ * opcode followed by an optional operand, which is already resolved into an
+ * index of the constant pool, an index of the name pool, a variable slot or
+ * a code address.
+ * <p>
+ * A program is immutable once loaded: its arrays never leave the runtime
+ * package, where they are only read, so a single program can be executed by
+ * many threads at the same time.
+ */
+public final class Program {
+
+	private final int[] code;
+	private final String[] constants;
+	private final byte[] constantTypes;
+	private final long[] constantValues;
+	private final String[] names;
+	// frame of the function starting at each code address, null if none
+	private final FrameLayout[] frameLayouts;
+
+	Program(int[] code, String[] constants, String[] names,
+			FrameLayout[] frameLayouts) {
+		this(code, constants, typesOf(constants), valuesOf(constants), names,
+				frameLayouts);
+	}
+
+	Program(int[] code, String[] constants, byte[] constantTypes,
+			long[] constantValues, String[] names, FrameLayout[] frameLayouts) {
+		this.code = code;
+		this.constants = constants;
+		this.constantTypes = constantTypes;
+		this.constantValues = constantValues;
+		this.names = names;
+		this.frameLayouts = frameLayouts;
+	}
+
+	int[] getCode() {
+		return code;
+	}
+
+	String[] getConstants() {
+		return constants;
+	}
+
+	/**
+	 * @return the {@link ValueType} of every constant
+	 */
+	byte[] getConstantTypes() {
+		return constantTypes;
+	}
+
+	long[] getConstantValues() {
+		return constantValues;
+	}
+
+	String[] getNames() {
+		return names;
+	}
+
+	/**
+	 * @return the frame of the function starting at the address, the main
+	 *         frame being at address 0
+	 */
+	public FrameLayout getFrameLayout(int address) {
+		return frameLayouts[address];
+	}
+
+	FrameLayout[] getFrameLayouts() {
+		return frameLayouts;
+	}
+
+	private static byte[] typesOf(String[] constants) {
+		byte[] types = new byte[constants.length];
+		for (int i = 0; i < constants.length; i++) {
+			types[i] = ValueType.typeOf(constants[i]);
+		}
+		return types;
+	}
+
+	private static long[] valuesOf(String[] constants) {
+		long[] values = new long[constants.length];
+		for (int i = 0; i < constants.length; i++) {
+			values[i] = ValueType.valueOf(ValueType.typeOf(constants[i]),
+					constants[i]);
+		}
+		return values;
+	}
+}
@@ -0,0 +1,274 @@
+package edu.asu.runtime;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.asu.runtime.Instruction.Operand;
+import edu.asu.runtime.exceptions.ProgramExecutionException;
+
+/**
+ * Turns the words of the intermediate code into a {@link Program}. Labels
+ * are resolved into code addresses, values and variable names into pool
+ * indexes, so the machine never looks at a string to dispatch.
+ */
+public class ProgramLoader {
+
+	private final HashMap<String, Integer> labelMap = new HashMap<>();
+	// first label defined at each address
+	private final HashMap<Integer, String> addressLabels = new HashMap<>();
+	// slots declared by VAR and GLOBAL at each address
+	private final HashMap<Integer, List<String>> frameSlots = new HashMap<>();
+	private final HashMap<Integer, Integer> frameGlobalSlots = new HashMap<>();
+	// parameters of the functions declared PURE at each address
+	private final HashMap<Integer, Integer> memoParameters = new HashMap<>();
+	private FrameLayout mainFrame;
+	private final List<String> constants = new ArrayList<>();
+	private final HashMap<String, Integer> constantIndexes = new HashMap<>();
+	private final List<String> names = new ArrayList<>();
+	private final HashMap<String, Integer> nameIndexes = new HashMap<>();
+
+	private static final Pattern WORD = Pattern.compile("(\"[^\"]+\")|\\S+");
+
+	/**
+	 * Loads a program from a bytecode or an intermediate code file.
+	 */
+	public static Program load(Path path) throws IOException {
+		if (path.toString().endsWith(BytecodeFile.EXTENSION)) {
+			return BytecodeFile.load(path);
+		}
+		return decode(tokenize(new String(Files.readAllBytes(path))));
+	}
+
+	public static Program decode(String[] instr) {
+		return new ProgramLoader().decodeInstructions(instr);
+	}
+
+	/**
+	 * Splits intermediate code into words, a quoted string being a single
+	 * word without its quotes.
+	 */
+	public static String[] tokenize(String code) {
+		List<String> instr = new ArrayList<>();
+		Matcher m = WORD.matcher(code);
+		while (m.find()) {
+			instr.add(m.group().replaceAll("\"", ""));
+		}
+		return instr.toArray(new String[0]);
+	}
+
+	private Program decodeInstructions(String[] instr) {
+		int size = resolveLabels(instr);
+		if (size == 0) {
+			throw new ProgramExecutionException(
+					"A program should have at least an instruction");
+		}
+		int[] code = new int[size];
+		FrameLayout[] frameLayouts = new FrameLayout[size];
+		frameLayouts[0] = mainFrame;
+		FrameLayout currentFrame = mainFrame;
+		Set<Integer> entries = findFunctionEntries(instr);
+		int address = 0;
+		for (int i = 0; i < instr.length; i++) {
+			if (instr[i].isEmpty()) {
+				continue;
+			}
+			if (address > 0 && frameLayouts[address] == null
+					&& entries.contains(address)) {
+				currentFrame = createFrameLayout(address,
+						addressLabels.get(address));
+				frameLayouts[address] = currentFrame;
+			}
+			Instruction instruction = Instruction.valueOf(instr[i]);
+			if (instruction.isPseudo()) {
+				i++;
+				continue;
+			}
+			code[address++] = instruction.getOpcode();
+			for (Operand operand : instruction.getOperands()) {
+				String word = instr[++i];
+				switch (operand) {
+				case CONSTANT:
+					code[address++] = indexOf(word, constants, constantIndexes);
+					break;
+				case NAME:
+					code[address++] = indexOf(word, names, nameIndexes);
+					break;
+				case SLOT:
+					code[address++] = parseSlot(word, currentFrame);
+					break;
+				case GLOBAL_SLOT:
+					code[address++] = parseSlot(word, mainFrame);
+					break;
+				case ADDRESS:
+					code[address++] = getLabelAddress(word);
+					break;
+				default:
+					throw new AssertionError();
+				}
+			}
+		}
+		return new Program(code, constants.toArray(new String[0]),
+				names.toArray(new String[0]), frameLayouts);
+	}
+
+	/*
+	 * @return the addresses starting the frame of a function: the ones with
+	 * declarations and the targets of the calls, a function declaring no
+	 * variable getting an empty frame
+	 */
+	private Set<Integer> findFunctionEntries(String[] instr) {
+		Set<Integer> entries = new HashSet<>(frameSlots.keySet());
+		entries.addAll(memoParameters.keySet());
+		for (int i = 0; i < instr.length; i++) {
+			if (instr[i].isEmpty()) {
+				continue;
+			}
+			Instruction instruction = Instruction.valueOf(instr[i]);
+			if (instruction == Instruction.CALL
+					|| instruction == Instruction.TAILCALL) {
+				entries.add(getLabelAddress(instr[i + 1]));
+			}
+			i += instruction.getOperands().length;
+		}
+		return entries;
+	}
+
+	/*
+	 * First pass: computes the address of every label, collects the frame
+	 * declarations, validates the words and returns the size of the decoded
+	 * code.
+	 */
+	private int resolveLabels(String[] instr) {
+		int address = 0;
+		for (int i = 0; i < instr.length; i++) {
+			String s = instr[i];
+			if (s.isEmpty()) {
+				continue;
+			}
+			Instruction instruction = parseInstruction(s);
+			for (Operand operand : instruction.getOperands()) {
+				i++;
+				if (i >= instr.length) {
+					throw new ProgramExecutionException(String.format(
+							"Should have the %s after the %s instruction",
+							operand.getDescription(), instruction));
+				}
+			}
+			if (instruction == Instruction.LABEL) {
+				labelMap.put(instr[i], address);
+				addressLabels.putIfAbsent(address, instr[i]);
+			} else if (instruction == Instruction.PURE) {
+				memoParameters.put(address, parseCount(instr[i]));
+			} else if (instruction.isPseudo()) {
+				declareSlot(address, instr[i], instruction == Instruction.GLOBAL);
+			} else {
+				address += instruction.getSize();
+			}
+		}
+		mainFrame = createFrameLayout(0, "main");
+		return address;
+	}
+
+	private void declareSlot(int address, String name, boolean global) {
+		List<String> slots = frameSlots.get(address);
+		if (slots == null) {
+			slots = new ArrayList<>();
+			frameSlots.put(address, slots);
+			frameGlobalSlots.put(address, 0);
+		}
+		if (global) {
+			if (slots.size() != frameGlobalSlots.get(address)) {
+				throw new ProgramExecutionException(String.format(
+						"GLOBAL %s should be declared before any VAR", name));
+			}
+			frameGlobalSlots.put(address, slots.size() + 1);
+		}
+		slots.add(name);
+	}
+
+	private FrameLayout createFrameLayout(int address, String funcName) {
+		List<String> slots = frameSlots.get(address);
+		int parameters = memoParameters.getOrDefault(address, -1);
+		if (slots == null) {
+			return new FrameLayout(funcName, new String[0], new int[0],
+					parameters);
+		}
+		int[] globalSources = new int[frameGlobalSlots.get(address)];
+		for (int i = 0; i < globalSources.length; i++) {
+			globalSources[i] = address == 0 ? i : mainFrame.getSlot(slots
+					.get(i));
+			if (globalSources[i] < 0) {
+				throw new ProgramExecutionException(String.format(
+						"Undefined global variable %s inside function: %s",
+						slots.get(i), funcName));
+			}
+		}
+		return new FrameLayout(funcName, slots.toArray(new String[0]),
+				globalSources, parameters);
+	}
+
+	private Instruction parseInstruction(String s) {
+		try {
+			return Instruction.valueOf(s);
+		} catch (IllegalArgumentException e) {
+			throw new ProgramExecutionException("Unknown instruction: " + s);
+		}
+	}
+
+	private int getLabelAddress(String label) {
+		if (!labelMap.containsKey(label)) {
+			throw new ProgramExecutionException(String.format(
+					"Invalid label %s", label));
+		}
+		return labelMap.get(label);
+	}
+
+	private int parseSlot(String word, FrameLayout frame) {
+		int slot;
+		try {
+			slot = Integer.parseInt(word);
+		} catch (NumberFormatException e) {
+			slot = -1;
+		}
+		if (slot < 0 || slot >= frame.getSize()) {
+			throw new ProgramExecutionException(String.format(
+					"Invalid slot %s inside function: %s", word,
+					frame.getFuncName()));
+		}
+		return slot;
+	}
+
+	private static int parseCount(String word) {
+		int count;
+		try {
+			count = Integer.parseInt(word);
+		} catch (NumberFormatException e) {
+			count = -1;
+		}
+		if (count < 0) {
+			throw new ProgramExecutionException(String.format(
+					"Invalid parameter count %s of PURE", word));
+		}
+		return count;
+	}
+
+	private static int indexOf(String value, List<String> pool,
+			Map<String, Integer> indexes) {
+		Integer index = indexes.get(value);
+		if (index == null) {
+			index = pool.size();
+			pool.add(value);
+			indexes.put(value, index);
+		}
+		return index;
+	}
+}
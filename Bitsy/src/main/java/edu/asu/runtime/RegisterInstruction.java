@@ -0,0 +1,121 @@
+package edu.asu.runtime;
+
+/**
+ * Three-address instructions of a {@link RegisterProgram}. Values are read
+ * from and written to locations, which are registers of the current frame,
+ * variable slots, global slots or constants; see {@link RegisterProgram}
+ * for how they are encoded.
+ */
+public enum RegisterInstruction {
+	HALT,
+	// dst <- src
+	MOVE(Operand.LOCATION, Operand.LOCATION),
+	// dst <- a op b
+	ADD(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	SUB(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	MUL(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	DIV(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	MOD(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	POW(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	AND(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	OR(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	ISEQ(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	ISNE(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	ISGE(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	ISGT(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	ISLE(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	ISLT(Operand.LOCATION, Operand.LOCATION, Operand.LOCATION),
+	// dst <- !a
+	NOT(Operand.LOCATION, Operand.LOCATION),
+	INC(Operand.SLOT), DEC(Operand.SLOT),
+	JMP(Operand.ADDRESS),
+	// jump unless a holds
+	JIF(Operand.LOCATION, Operand.ADDRESS),
+	// jump if a holds
+	JIT(Operand.LOCATION, Operand.ADDRESS),
+	// jump if a compares with b
+	JEQ(Operand.LOCATION, Operand.LOCATION, Operand.ADDRESS),
+	JNE(Operand.LOCATION, Operand.LOCATION, Operand.ADDRESS),
+	JGE(Operand.LOCATION, Operand.LOCATION, Operand.ADDRESS),
+	JGT(Operand.LOCATION, Operand.LOCATION, Operand.ADDRESS),
+	JLE(Operand.LOCATION, Operand.LOCATION, Operand.ADDRESS),
+	JLT(Operand.LOCATION, Operand.LOCATION, Operand.ADDRESS),
+	// the registers of the called function start at the given register
+	CALL(Operand.ADDRESS, Operand.FUNCTION, Operand.REGISTER),
+	TAILCALL(Operand.ADDRESS, Operand.FUNCTION, Operand.REGISTER),
+	RET,
+	PRINT(Operand.LOCATION),
+	INPUT(Operand.LOCATION),
+	// dst <- variable, variable <- src
+	LOAD(Operand.LOCATION, Operand.NAME),
+	STORE(Operand.NAME, Operand.LOCATION),
+	STACK_PUSH(Operand.NAME, Operand.LOCATION),
+	STACK_POP(Operand.LOCATION, Operand.NAME),
+	STACK_PEEK(Operand.LOCATION, Operand.NAME),
+	STACK_ISEMPTY(Operand.LOCATION, Operand.NAME);
+
+	/**
+	 * Kind of the words following an instruction.
+	 */
+	public enum Operand {
+		/** encoded location of a value */
+		LOCATION,
+		/** variable slot of the current frame */
+		SLOT,
+		/** register code address */
+		ADDRESS,
+		/** stack code address of a function, giving its frame layout */
+		FUNCTION,
+		/** register relative to the registers of the current frame */
+		REGISTER,
+		/** index of the name pool */
+		NAME
+	}
+
+	private static final RegisterInstruction[] OPCODES = values();
+
+	static {
+		for (RegisterInstruction instruction : OPCODES) {
+			for (Instruction operation : Instruction.values()) {
+				if (operation.name().equals(instruction.name())) {
+					instruction.operation = operation;
+				}
+			}
+		}
+	}
+
+	private final Operand[] operands;
+	// stack instruction of the same name, null for MOVE
+	private Instruction operation;
+
+	private RegisterInstruction(Operand... operands) {
+		this.operands = operands;
+	}
+
+	public Operand[] getOperands() {
+		return operands;
+	}
+
+	/**
+	 * @return number of ints the instruction takes in the code
+	 */
+	public int getSize() {
+		return 1 + operands.length;
+	}
+
+	/**
+	 * @return the stack instruction this one does the operation of, null
+	 *         for MOVE
+	 */
+	public Instruction getOperation() {
+		return operation;
+	}
+
+	public int getOpcode() {
+		return ordinal();
+	}
+
+	public static RegisterInstruction fromOpcode(int opcode) {
+		return OPCODES[opcode];
+	}
+}
@@ -0,0 +1,359 @@
+package edu.asu.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Interpreter of the {@link RegisterProgram} lowered from a program, which
+ * dispatches one three-address instruction where the {@link StackMachine}
+ * dispatches the loads, the operation and the store of an expression.
+ * <p>
+ * The registers of all the calls in progress are one array, the registers of
+ * a call starting where the arguments its caller pushed are, so that
+ * arguments and returned values are passed without copies. Frames and calls
+ * are the ones of the stack machine. Regions are never compiled by the JIT.
+ */
+public class RegisterMachine extends StackMachine {
+
+	private final int[] registerCode;
+	private final int frameSize;
+	private long[] values;
+	private byte[] tags;
+	private Object[] strings;
+	// first register of the current call
+	private int base = 0;
+	private int[] callerBases = new int[16];
+	private int callDepth = 0;
+	// operands of the stack variable instructions
+	private final OperandStack stackOperand = new OperandStack(1);
+	// value read by fetch
+	private byte tag;
+	private long value;
+	private Object text;
+	private long executedInstructions = 0;
+
+	public RegisterMachine(RegisterProgram registerProgram,
+			ExecutionContext context) {
+		super(registerProgram.getProgram(), context);
+		this.registerCode = registerProgram.getCode();
+		this.frameSize = registerProgram.getFrameSize();
+		this.values = new long[frameSize * 4];
+		this.tags = new byte[values.length];
+		this.strings = new Object[values.length];
+	}
+
+	@Override
+	public void enableJit(int threshold) {
+		// the JIT compiles stack code only
+	}
+
+	/**
+	 * @return the number of instructions dispatched so far
+	 */
+	public long getExecutedInstructions() {
+		return executedInstructions;
+	}
+
+	@Override
+	public void run() {
+		checkState();
+		try {
+			while (!halted) {
+				executedInstructions++;
+				execute();
+			}
+		} finally {
+			flushOutput();
+		}
+	}
+
+	private void execute() {
+		final int[] code = registerCode;
+		int pc = instructionAddress;
+		RegisterInstruction instruction = RegisterInstruction
+				.fromOpcode(code[pc]);
+		instructionAddress = pc + instruction.getSize();
+		switch (instruction) {
+		case HALT:
+			halted = true;
+			break;
+
+		case MOVE:
+			fetch(code[pc + 2]);
+			write(code[pc + 1]);
+			break;
+
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case MOD:
+		case POW:
+			writeInt(code[pc + 1], OperandStack.arithmetic(
+					instruction.getOperation(), intAt(code[pc + 2]),
+					intAt(code[pc + 3])));
+			break;
+
+		case ISGE:
+		case ISGT:
+		case ISLE:
+		case ISLT:
+			writeBool(code[pc + 1], OperandStack.compare(
+					instruction.getOperation(), intAt(code[pc + 2]),
+					intAt(code[pc + 3])));
+			break;
+
+		case AND:
+		case OR:
+			writeBool(code[pc + 1], OperandStack.logical(
+					instruction.getOperation(), boolAt(code[pc + 2]),
+					boolAt(code[pc + 3])));
+			break;
+
+		case ISEQ:
+		case ISNE:
+			writeBool(code[pc + 1], equal(code[pc + 2], code[pc + 3])
+					== (instruction == RegisterInstruction.ISEQ));
+			break;
+
+		case NOT:
+			writeBool(code[pc + 1], !boolAt(code[pc + 2]));
+			break;
+
+		case INC:
+			currentFrame.increment(code[pc + 1], 1);
+			break;
+
+		case DEC:
+			currentFrame.increment(code[pc + 1], -1);
+			break;
+
+		case JMP:
+			instructionAddress = code[pc + 1];
+			break;
+
+		case JIF:
+			if (!boolAt(code[pc + 1])) {
+				instructionAddress = code[pc + 2];
+			}
+			break;
+
+		case JIT:
+			if (boolAt(code[pc + 1])) {
+				instructionAddress = code[pc + 2];
+			}
+			break;
+
+		case JEQ:
+		case JNE:
+			if (equal(code[pc + 1], code[pc + 2])
+					== (instruction == RegisterInstruction.JEQ)) {
+				instructionAddress = code[pc + 3];
+			}
+			break;
+
+		case JGE:
+		case JGT:
+		case JLE:
+		case JLT:
+			if (OperandStack.compare(instruction.getOperation(),
+					intAt(code[pc + 1]), intAt(code[pc + 2]))) {
+				instructionAddress = code[pc + 3];
+			}
+			break;
+
+		case CALL:
+			call(code[pc + 1], program.getFrameLayout(code[pc + 2]));
+			if (callDepth == callerBases.length) {
+				callerBases = Arrays.copyOf(callerBases, callDepth * 2);
+			}
+			callerBases[callDepth++] = base;
+			enter(code[pc + 3]);
+			break;
+
+		case TAILCALL:
+			tailCall(code[pc + 1], program.getFrameLayout(code[pc + 2]));
+			enter(code[pc + 3]);
+			break;
+
+		case RET:
+			ret();
+			base = callerBases[--callDepth];
+			break;
+
+		case PRINT:
+			fetch(code[pc + 1]);
+			print(tag, OperandStack.text(tag, value, text));
+			break;
+
+		case INPUT: {
+			String line = readLine();
+			byte type = ValueType.typeOf(line);
+			tag = type;
+			value = ValueType.valueOf(type, line);
+			text = line;
+			write(code[pc + 1]);
+			break;
+		}
+
+		case LOAD: {
+			Object variable = currentFrame.getVariable(names[code[pc + 2]]);
+			if (variable instanceof Integer) {
+				writeInt(code[pc + 1], (Integer) variable);
+			} else if (variable instanceof Boolean) {
+				writeBool(code[pc + 1], (Boolean) variable);
+			} else {
+				tag = ValueType.STRING;
+				text = variable;
+				write(code[pc + 1]);
+			}
+			break;
+		}
+
+		case STORE:
+			fetch(code[pc + 2]);
+			currentFrame.setVariable(names[code[pc + 1]],
+					tag == ValueType.INT ? Integer.valueOf((int) value)
+							: tag == ValueType.BOOL ? Boolean
+									.valueOf(value != 0) : text);
+			break;
+
+		case STACK_PUSH:
+			fetch(code[pc + 2]);
+			stackOperand.push(tag, value, text);
+			currentFrame.pushOnStackVariable(names[code[pc + 1]], stackOperand);
+			break;
+
+		case STACK_POP:
+		case STACK_PEEK:
+			if (instruction == RegisterInstruction.STACK_POP) {
+				currentFrame.popOnStackVariable(names[code[pc + 2]],
+						stackOperand);
+			} else {
+				currentFrame.peekOnStackVariable(names[code[pc + 2]],
+						stackOperand);
+			}
+			moveStackOperand(code[pc + 1]);
+			break;
+
+		case STACK_ISEMPTY:
+			currentFrame.isEmptyStackVariable(names[code[pc + 2]],
+					stackOperand);
+			moveStackOperand(code[pc + 1]);
+			break;
+
+		default:
+			throw new AssertionError(instruction);
+		}
+	}
+
+	/*
+	 * Moves the registers of the current call to the given register.
+	 */
+	private void enter(int register) {
+		base += register;
+		if (base + frameSize > values.length) {
+			int capacity = Math.max(values.length * 2, base + frameSize);
+			values = Arrays.copyOf(values, capacity);
+			tags = Arrays.copyOf(tags, capacity);
+			strings = Arrays.copyOf(strings, capacity);
+		}
+	}
+
+	/*
+	 * Reads the value at the location into tag, value and text.
+	 */
+	private void fetch(int location) {
+		int index = location >> 2;
+		switch (location & 3) {
+		case RegisterProgram.REGISTER: {
+			int i = base + index;
+			tag = tags[i];
+			value = values[i];
+			text = strings[i];
+			return;
+		}
+		case RegisterProgram.SLOT: {
+			Slots slots = currentFrame.getDefinedSlots(index);
+			tag = slots.tags[index];
+			value = slots.values[index];
+			text = slots.strings[index];
+			return;
+		}
+		case RegisterProgram.GLOBAL: {
+			Slots slots = currentFrame.getDefinedGlobalSlots(index);
+			tag = slots.tags[index];
+			value = slots.values[index];
+			text = slots.strings[index];
+			return;
+		}
+		default:
+			tag = constantTypes[index];
+			value = constantValues[index];
+			text = constants[index];
+		}
+	}
+
+	/*
+	 * Writes tag, value and text to a register or a slot.
+	 */
+	private void write(int location) {
+		int index = location >> 2;
+		if ((location & 3) == RegisterProgram.REGISTER) {
+			int i = base + index;
+			tags[i] = tag;
+			values[i] = value;
+			strings[i] = tag == ValueType.STRING ? text : null;
+		} else {
+			Slots slots = currentFrame.getSlots();
+			slots.tags[index] = tag;
+			slots.values[index] = value;
+			slots.strings[index] = tag == ValueType.STRING ? text : null;
+		}
+	}
+
+	private void writeInt(int location, int result) {
+		tag = ValueType.INT;
+		value = result;
+		write(location);
+	}
+
+	private void writeBool(int location, boolean result) {
+		tag = ValueType.BOOL;
+		value = result ? 1 : 0;
+		write(location);
+	}
+
+	/*
+	 * Moves the value a stack variable instruction left on the operand stack
+	 * to the location.
+	 */
+	private void moveStackOperand(int location) {
+		tag = stackOperand.typeAt(0);
+		value = stackOperand.valueAt(0);
+		text = tag == ValueType.STRING ? stackOperand.stringAt(0) : null;
+		stackOperand.drop(1);
+		write(location);
+	}
+
+	/*
+	 * Same reads as OperandStack.intAt and boolAt.
+	 */
+	private int intAt(int location) {
+		fetch(location);
+		return (int) value;
+	}
+
+	private boolean boolAt(int location) {
+		fetch(location);
+		return OperandStack.isTrue(value);
+	}
+
+	private boolean equal(int location1, int location2) {
+		fetch(location1);
+		byte tag1 = tag;
+		long value1 = value;
+		Object text1 = text;
+		fetch(location2);
+		return OperandStack.equal(tag1, value1, text1, tag, value, text);
+	}
+}
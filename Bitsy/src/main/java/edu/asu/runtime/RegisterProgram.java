@@ -0,0 +1,411 @@
+package edu.asu.runtime;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.asu.runtime.exceptions.ProgramExecutionException;
+
+/**
+ * Register code of a {@link Program}, run by a {@link RegisterMachine}. It
+ * is lowered from the stack code of a program accepted by the
+ * {@link Verifier}, which knows the depth of the operand stack at every
+ * instruction: the item at depth d of a function becomes its register d,
+ * registers being numbered from the first argument its caller pushed.
+ * <p>
+ * Loads and constants are not moved to registers: the instruction using
+ * the value reads it from its slot or from the constant pool, so that
+ * <code>a = b + c</code> becomes a single ADD of two slots into a slot.
+ * A load is only moved to its register before its slot is written, at the
+ * end of a basic block and before an instruction that prints, reads or can
+ * fail, so that errors are reported in the same order as by the stack
+ * machine.
+ * <p>
+ * A location is encoded in an int as its index shifted left by two bits
+ * and its kind, one of {@link #REGISTER}, {@link #SLOT}, {@link #GLOBAL}
+ * or {@link #CONSTANT}.
+ */
+public final class RegisterProgram {
+
+	static final int REGISTER = 0;
+	static final int SLOT = 1;
+	static final int GLOBAL = 2;
+	static final int CONSTANT = 3;
+
+	private final Program program;
+	private final int[] code;
+	// highest register of a frame plus one
+	private final int frameSize;
+
+	private RegisterProgram(Program program, int[] code, int frameSize) {
+		this.program = program;
+		this.code = code;
+		this.frameSize = frameSize;
+	}
+
+	Program getProgram() {
+		return program;
+	}
+
+	int[] getCode() {
+		return code;
+	}
+
+	int getFrameSize() {
+		return frameSize;
+	}
+
+	static int location(int kind, int index) {
+		return index << 2 | kind;
+	}
+
+	/**
+	 * @return the register code of the program
+	 * @throws ProgramExecutionException
+	 *             when the program cannot be verified
+	 */
+	public static RegisterProgram lower(Program program) {
+		return new Lowering(program).lower();
+	}
+
+	/**
+	 * @return the code, one instruction per line
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (int address = 0; address < code.length;) {
+			RegisterInstruction instruction = RegisterInstruction
+					.fromOpcode(code[address]);
+			text.append(address).append(": ").append(instruction);
+			for (RegisterInstruction.Operand operand : instruction
+					.getOperands()) {
+				int word = code[++address];
+				text.append(' ');
+				if (operand == RegisterInstruction.Operand.LOCATION) {
+					text.append("rsgc".charAt(word & 3)).append(word >> 2);
+				} else {
+					text.append(word);
+				}
+			}
+			address++;
+			text.append('\n');
+		}
+		return text.toString();
+	}
+
+	private static class Lowering {
+		private final Program program;
+		private final int[] stackCode;
+		private final Verifier verifier;
+		private final List<Integer> code = new ArrayList<>();
+		// register code address of every stack code address
+		private final int[] addresses;
+		private final boolean[] targets;
+		// register code indexes of the stack code addresses to replace
+		private final List<Integer> jumps = new ArrayList<>();
+		// location of the values not moved to their register yet
+		private final TreeMap<Integer, Integer> pending = new TreeMap<>();
+		// index of the destination written by the last instruction, -1 if
+		// it cannot be changed
+		private int lastDestination = -1;
+		private int frameSize = 1;
+
+		private Lowering(Program program) {
+			this.program = program;
+			this.stackCode = program.getCode();
+			this.verifier = Verifier.analyze(program);
+			this.addresses = new int[stackCode.length];
+			this.targets = new boolean[stackCode.length];
+		}
+
+		private RegisterProgram lower() {
+			for (int address = 0; address < stackCode.length; address += Instruction
+					.fromOpcode(stackCode[address]).getSize()) {
+				Instruction instruction = Instruction
+						.fromOpcode(stackCode[address]);
+				if (instruction.getOperands().length > 0
+						&& instruction.getOperands()[0] == Instruction.Operand.ADDRESS) {
+					targets[stackCode[address + 1]] = true;
+				}
+			}
+			for (int address = 0; address < stackCode.length; address += Instruction
+					.fromOpcode(stackCode[address]).getSize()) {
+				if (!verifier.isReached(address)) {
+					continue;
+				}
+				if (targets[address]) {
+					// jumps to the address find every value in its register
+					moveAll();
+					lastDestination = -1;
+				}
+				addresses[address] = code.size();
+				int depth = verifier.getDepth(address);
+				frameSize = Math.max(frameSize, depth + 2);
+				lower(address, depth);
+			}
+			int[] words = new int[code.size()];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = code.get(i);
+			}
+			for (int jump : jumps) {
+				words[jump] = addresses[words[jump]];
+			}
+			return new RegisterProgram(program, words, frameSize);
+		}
+
+		/*
+		 * Lowers an instruction found with depth items on the stack, the top
+		 * being the register depth - 1.
+		 */
+		private void lower(int address, int depth) {
+			// registers are read with their types checked, which the typed
+			// operations need no more than the others
+			Instruction instruction = Instruction.fromOpcode(
+					stackCode[address]).getUntyped();
+			int operand = instruction.getSize() > 1 ? stackCode[address + 1]
+					: 0;
+			int top = depth - 1;
+			switch (instruction) {
+			case PUSH:
+				pending.put(depth, location(CONSTANT, operand));
+				break;
+			case LOAD_SLOT:
+				pending.put(depth, location(SLOT, operand));
+				break;
+			case LOAD_LOAD:
+				pending.put(depth, location(SLOT, operand));
+				pending.put(depth + 1, location(SLOT, stackCode[address + 2]));
+				break;
+			case LOAD_GLOBAL:
+				pending.put(depth, location(GLOBAL, operand));
+				break;
+			case POP: {
+				Integer popped = pending.remove(top);
+				if (popped != null && (popped & 3) != CONSTANT) {
+					// the stack machine fails when the variable is undefined
+					emit(RegisterInstruction.MOVE, register(top), popped);
+				}
+				break;
+			}
+			case STORE_SLOT: {
+				int value = take(top);
+				moveLoadsOf(operand);
+				int destination = location(SLOT, operand);
+				if (lastDestination >= 0 && value == register(top)
+						&& code.get(lastDestination) == value) {
+					code.set(lastDestination, destination);
+				} else {
+					emit(RegisterInstruction.MOVE, destination, value);
+				}
+				lastDestination = -1;
+				break;
+			}
+			case INC:
+			case DEC:
+				moveLoadsBelow(depth);
+				emit(RegisterInstruction.valueOf(instruction.name()), operand);
+				break;
+			case ADD:
+			case SUB:
+			case MUL:
+			case DIV:
+			case MOD:
+			case POW:
+			case ISGE:
+			case ISGT:
+			case ISLE:
+			case ISLT:
+			case AND:
+			case OR:
+			case ISEQ:
+			case ISNE: {
+				int right = take(top);
+				int left = take(top - 1);
+				if (canFail(instruction)) {
+					moveLoadsBelow(top - 1);
+				}
+				emitResult(RegisterInstruction.valueOf(instruction.name()),
+						top - 1, left, right);
+				break;
+			}
+			case NOT:
+				emitResult(RegisterInstruction.NOT, top, take(top));
+				break;
+			case JIF:
+			case JIT: {
+				int condition = take(top);
+				moveAll();
+				emitJump(RegisterInstruction.valueOf(instruction.name()),
+						operand, condition);
+				break;
+			}
+			case JEQ:
+			case JNE:
+			case JGE:
+			case JGT:
+			case JLE:
+			case JLT: {
+				int right = take(top);
+				int left = take(top - 1);
+				moveAll();
+				emitJump(RegisterInstruction.valueOf(instruction.name()),
+						operand, left, right);
+				break;
+			}
+			case JMP:
+				moveAll();
+				emitJump(RegisterInstruction.JMP, operand);
+				break;
+			case CALL:
+			case TAILCALL:
+				moveAll();
+				emitJump(RegisterInstruction.valueOf(instruction.name()),
+						operand);
+				code.add(operand);
+				code.add(depth);
+				break;
+			case RET:
+				moveAll();
+				emit(RegisterInstruction.RET);
+				break;
+			case HALT:
+				moveAll();
+				emit(RegisterInstruction.HALT);
+				break;
+			case PRINT: {
+				// the printed item stays on the stack
+				Integer printed = pending.get(top);
+				moveLoadsBelow(top);
+				emit(RegisterInstruction.PRINT,
+						printed != null ? printed : register(top));
+				break;
+			}
+			case INPUT:
+				moveLoadsBelow(depth);
+				emitResult(RegisterInstruction.INPUT, depth);
+				break;
+			case LOAD:
+				moveLoadsBelow(depth);
+				emitResult(RegisterInstruction.LOAD, depth, operand);
+				break;
+			case STORE:
+			case STACK_PUSH: {
+				int value = take(top);
+				moveLoadsBelow(top);
+				emit(RegisterInstruction.valueOf(instruction.name()), operand,
+						value);
+				break;
+			}
+			case STACK_POP:
+			case STACK_PEEK:
+			case STACK_ISEMPTY:
+				moveLoadsBelow(depth);
+				emitResult(RegisterInstruction.valueOf(instruction.name()),
+						depth, operand);
+				break;
+			default:
+				throw new ProgramExecutionException("Unknown instruction: "
+						+ instruction);
+			}
+		}
+
+		private static boolean canFail(Instruction instruction) {
+			switch (instruction) {
+			case AND:
+			case OR:
+			case ISEQ:
+			case ISNE:
+				return false;
+			default:
+				return true;
+			}
+		}
+
+		private static int register(int index) {
+			return location(REGISTER, index);
+		}
+
+		/*
+		 * @return the location of the item, which leaves the stack
+		 */
+		private int take(int index) {
+			Integer location = pending.remove(index);
+			return location != null ? location : register(index);
+		}
+
+		private void move(Map.Entry<Integer, Integer> entry) {
+			emit(RegisterInstruction.MOVE, register(entry.getKey()),
+					entry.getValue());
+		}
+
+		private void moveAll() {
+			for (Map.Entry<Integer, Integer> entry : pending.entrySet()) {
+				move(entry);
+			}
+			pending.clear();
+		}
+
+		/*
+		 * Moves the loads below the index, the constants staying where they
+		 * are as reading them cannot fail.
+		 */
+		private void moveLoadsBelow(int index) {
+			Iterator<Map.Entry<Integer, Integer>> entries = pending.headMap(
+					index).entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<Integer, Integer> entry = entries.next();
+				if ((entry.getValue() & 3) != CONSTANT) {
+					move(entry);
+					entries.remove();
+				}
+			}
+		}
+
+		/*
+		 * Moves the loads of the slot about to be written.
+		 */
+		private void moveLoadsOf(int slot) {
+			Iterator<Map.Entry<Integer, Integer>> entries = pending.entrySet()
+					.iterator();
+			while (entries.hasNext()) {
+				Map.Entry<Integer, Integer> entry = entries.next();
+				if (entry.getValue() == location(SLOT, slot)) {
+					move(entry);
+					entries.remove();
+				}
+			}
+		}
+
+		private void emit(RegisterInstruction instruction, int... operands) {
+			code.add(instruction.getOpcode());
+			for (int operand : operands) {
+				code.add(operand);
+			}
+			lastDestination = -1;
+		}
+
+		/*
+		 * Emits an instruction writing the register, which a following
+		 * STORE_SLOT can replace with its slot.
+		 */
+		private void emitResult(RegisterInstruction instruction, int index,
+				int... operands) {
+			code.add(instruction.getOpcode());
+			lastDestination = code.size();
+			code.add(register(index));
+			for (int operand : operands) {
+				code.add(operand);
+			}
+		}
+
+		private void emitJump(RegisterInstruction instruction, int target,
+				int... operands) {
+			emit(instruction, operands);
+			jumps.add(code.size());
+			code.add(target);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package edu.asu.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Variables of a function frame, addressed by the slot numbers the compiler
+ * gave them. Values are stored like on the {@link OperandStack}; a slot that
+ * was never stored to is undefined. The arrays only grow, so that the slots
+ * of a reused frame are not allocated again.
+ */
+class Slots {
+
+	private static final byte UNDEFINED = 0;
+
+	long[] values;
+	byte[] tags;
+	Object[] strings;
+	private int size;
+
+	public Slots(int size) {
+		values = new long[size];
+		tags = new byte[size];
+		strings = new Object[size];
+		this.size = size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Undefines every slot and resizes the frame, growing the arrays only if
+	 * they are too small.
+	 */
+	void reset(int newSize) {
+		Arrays.fill(tags, 0, size, UNDEFINED);
+		Arrays.fill(strings, 0, size, null);
+		if (newSize > tags.length) {
+			values = new long[newSize];
+			tags = new byte[newSize];
+			strings = new Object[newSize];
+		}
+		size = newSize;
+	}
+
+	public boolean isDefined(int slot) {
+		return tags[slot] != UNDEFINED;
+	}
+
+	/**
+	 * @return the slot as an integer, read like {@link OperandStack#intAt(int)}
+	 */
+	public int intAt(int slot) {
+		return (int) values[slot];
+	}
+
+	public void setInt(int slot, int value) {
+		tags[slot] = ValueType.INT;
+		values[slot] = value;
+		strings[slot] = null;
+	}
+
+	/**
+	 * Copies the slots of another frame given by <code>sources</code> into
+	 * the first slots of this one.
+	 */
+	public void copyFrom(Slots other, int[] sources) {
+		for (int i = 0; i < sources.length; i++) {
+			int source = sources[i];
+			values[i] = other.values[source];
+			tags[i] = other.tags[source];
+			strings[i] = other.strings[source];
+		}
+	}
+}
@@ -1,114 +1,269 @@
 package edu.asu.runtime;
 
-import java.util.HashMap;
-import java.util.Scanner;
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.lang.StringEscapeUtils;
 
 import edu.asu.runtime.exceptions.ProgramExecutionException;
-
+import edu.asu.runtime.io.Input;
+import edu.asu.runtime.io.Output;
+
+/**
+ * Interpreter decoding each instruction with a switch over the opcodes. The
+ * state and the helpers are package visible so that other engines such as
+ * {@link TableStackMachine} can share them.
+ */
 public class StackMachine {
-	private final String[] program;
-	private int instructionAddress = 0;
-	private final Stack<String> executionStack = new Stack<>();
-	private boolean halted = false;
-	private Stack<FuncMetaData> callStack = new Stack<>();
-	private HashMap<String, Integer> labelMap = new HashMap<String, Integer>();
-	private FuncMetaData mainMethod = new FuncMetaData(0, "main",
-			new HashMap<>(), new HashMap<>());
-
-	public StackMachine(String[] instructions,
-			HashMap<String, Integer> labelsMap) {
-		if (instructions.length == 0) {
+	public static final int DEFAULT_MAX_CALL_DEPTH = 100000;
+
+	final Program program;
+	final int[] code;
+	final byte[] constantTypes;
+	final long[] constantValues;
+	final String[] constants;
+	final String[] names;
+	int instructionAddress = 0;
+	final OperandStack executionStack;
+	boolean halted = false;
+	// frames of the calls in progress from the main method at index 0 up to
+	// depth, the frames above are reused by the next calls
+	private FuncMetaData[] frames = new FuncMetaData[16];
+	private int depth = 0;
+	private int maxCallDepth = DEFAULT_MAX_CALL_DEPTH;
+	private final FuncMetaData mainMethod;
+	// frame on top of the call stack
+	FuncMetaData currentFrame;
+	// null when the JIT is disabled
+	private JitCompiler jit;
+	// results of the pure functions by their address, created on their
+	// first call
+	private MemoTable[] memoTables;
+	private final Input input;
+	private final Output output;
+
+	public StackMachine(Program program) {
+		this(program, ExecutionContext.system());
+	}
+
+	public StackMachine(Program program, ExecutionContext context) {
+		this(program, context, new OperandStack());
+	}
+
+	StackMachine(Program program, ExecutionContext context,
+			OperandStack executionStack) {
+		if (program.getCode().length == 0) {
 			throw new ProgramExecutionException(
 					"A program should have at least an instruction");
 		}
-		this.program = instructions;
-		this.labelMap = labelsMap;
-		this.callStack.push(mainMethod); // Prepare the main method with 0 as
-											// retAddr
+		this.program = program;
+		this.executionStack = executionStack;
+		this.input = context.getInput();
+		this.output = context.getOutput();
+		this.code = program.getCode();
+		this.constantTypes = program.getConstantTypes();
+		this.constantValues = program.getConstantValues();
+		this.constants = program.getConstants();
+		this.names = program.getNames();
+		this.mainMethod = new FuncMetaData(program.getFrameLayout(0));
+		this.frames[0] = mainMethod; // Prepare the main method with 0 as
+										// retAddr
+		this.currentFrame = mainMethod;
+	}
+
+	/**
+	 * Sets how many function calls can be in progress at the same time, a
+	 * deeper call failing with a {@link ProgramExecutionException}.
+	 */
+	public void setMaxCallDepth(int maxCallDepth) {
+		this.maxCallDepth = maxCallDepth;
 	}
 
+	/**
+	 * Compiles the regions of the program entered at least threshold times
+	 * to JVM classes, when a Java compiler is available.
+	 */
+	public void enableJit(int threshold) {
+		if (JitCompiler.isAvailable()) {
+			this.jit = new JitCompiler(program, threshold);
+		}
+	}
+
+	/**
+	 * Runs the program until HALT, then writes the buffered output.
+	 */
 	public void run() {
-		while (!halted) {
-			step();
+		try {
+			while (!halted) {
+				step();
+			}
+		} finally {
+			flushOutput();
+		}
+	}
+
+	/**
+	 * Runs the program like {@link #run()}, reporting every instruction,
+	 * call, return and backward jump to the profiler. This loop is kept
+	 * apart so that profiling costs nothing to the other runs. It never
+	 * enters JIT compiled code, whose instructions it could not count.
+	 */
+	public void run(Profiler profiler) {
+		jit = null;
+		profiler.enter(currentFrame.getFuncName());
+		try {
+			while (!halted) {
+				checkState();
+				checkNextInstruction();
+				int address = instructionAddress;
+				int opcode = code[instructionAddress++];
+				FuncMetaData frame = currentFrame;
+				profiler.instruction(opcode);
+				decodeInstruction(opcode);
+				switch (Instruction.fromOpcode(opcode)) {
+				case CALL:
+					// unless the call was replaced by its memoized result
+					if (currentFrame != frame) {
+						profiler.enter(currentFrame.getFuncName());
+					}
+					break;
+				case TAILCALL:
+					profiler.exit();
+					profiler.enter(currentFrame.getFuncName());
+					break;
+				case RET:
+					profiler.exit();
+					break;
+				default:
+					if (instructionAddress <= address) {
+						profiler.loop(frame.getFuncName(), instructionAddress);
+					}
+				}
+			}
+		} finally {
+			profiler.stop();
+			for (MemoTable table : getMemoTables()) {
+				profiler.memoTable(table);
+			}
+			flushOutput();
 		}
 	}
 
 	private void step() {
 		checkState();
-		String nextInstruction = getNextInstruction("Should have a next instruction");
-		decodeInstruction(nextInstruction);
+		checkNextInstruction();
+		decodeInstruction(code[instructionAddress++]);
+	}
+
+	void checkNextInstruction() {
+		if (instructionAddress >= code.length) {
+			throw new ProgramExecutionException("Should have a next instruction");
+		}
 	}
 
-	private void checkState() {
+	void checkState() {
 		if (halted) {
 			throw new ProgramExecutionException(
 					"An halted CPU cannot execute the program");
 		}
 	}
 
-	private void decodeInstruction(String instruction) {
-
-		switch (Instruction.valueOf(instruction)) {
+	private void decodeInstruction(int opcode) {
+		Instruction instruction = Instruction.fromOpcode(opcode);
+		switch (instruction) {
 
 		case HALT:
 			this.halted = true;
 			break;
 
 		case PUSH: {
-			// The word after the instruction will contain the value to push
-			String value = getNextInstruction("Should have the value after the PUSH instruction");
-			executionStack.push(value);
+			// The word after the instruction will contain the constant to push
+			int constant = nextOperand();
+			executionStack.push(constantTypes[constant],
+					constantValues[constant], constants[constant]);
 			break;
 		}
 
 		case POP: {
 			checkStackHasAtLeastOneItem("POP");
-			executionStack.pop();
+			executionStack.drop(1);
 			break;
 		}
 
 		case LOAD: {
-			String var = getNextInstruction("Should have the variable name after the LOAD instruction");
-			executionStack.push(getCurrFuncContext().getVariable(var));
+			String var = names[nextOperand()];
+			executionStack.pushObject(getCurrFuncContext().getVariable(var));
 			break;
 		}
 
 		case STORE: {
-			String var = getNextInstruction("Should have the variable name after the STORE instruction");
+			String var = names[nextOperand()];
 			checkStackHasAtLeastOneItem("STORE");
-			getCurrFuncContext().setVariable(var, executionStack.pop());
+			getCurrFuncContext().setVariable(var, executionStack.popObject());
+			break;
+		}
+
+		case LOAD_SLOT: {
+			int slot = nextOperand();
+			executionStack.load(currentFrame.getDefinedSlots(slot), slot);
+			break;
+		}
+
+		case LOAD_LOAD: {
+			int slot1 = nextOperand();
+			int slot2 = nextOperand();
+			executionStack.load(currentFrame.getDefinedSlots(slot1), slot1);
+			executionStack.load(currentFrame.getDefinedSlots(slot2), slot2);
+			break;
+		}
+
+		case INC:
+			currentFrame.increment(nextOperand(), 1);
+			break;
+
+		case DEC:
+			currentFrame.increment(nextOperand(), -1);
+			break;
+
+		case LOAD_GLOBAL: {
+			int slot = nextOperand();
+			executionStack.load(currentFrame.getDefinedGlobalSlots(slot), slot);
+			break;
+		}
+
+		case STORE_SLOT: {
+			int slot = nextOperand();
+			checkStackHasAtLeastOneItem("STORE_SLOT");
+			executionStack.store(currentFrame.getSlots(), slot);
 			break;
 		}
 
 		case STACK_PUSH: {
-			String var = getNextInstruction("Should have the variable name after the STACK_PUSH instruction");
+			String var = names[nextOperand()];
 			checkStackHasAtLeastOneItem("STACK_PUSH");
-			getCurrFuncContext().pushOnStackVariable(var, executionStack.pop());
+			getCurrFuncContext().pushOnStackVariable(var, executionStack);
 			break;
 		}
 		case STACK_POP: {
-			String var = getNextInstruction("Should have the variable name after the STACK_POP instruction");
-			executionStack.push(getCurrFuncContext().popOnStackVariable(var));
+			String var = names[nextOperand()];
+			getCurrFuncContext().popOnStackVariable(var, executionStack);
 			break;
 		}
 		case STACK_PEEK: {
-			String var = getNextInstruction("Should have the variable name after the STACK_PEEK instruction");
-			executionStack.push(getCurrFuncContext().peekOnStackVariable(var));
+			String var = names[nextOperand()];
+			getCurrFuncContext().peekOnStackVariable(var, executionStack);
 			break;
 		}
 		case STACK_ISEMPTY: {
-			String var = getNextInstruction("Should have the variable name after the STACK_ISEMPTY instruction");
-			executionStack.push(Boolean.toString(getCurrFuncContext()
-					.isEmptyStackVariable(var)));
+			String var = names[nextOperand()];
+			getCurrFuncContext().isEmptyStackVariable(var, executionStack);
 			break;
 		}
-		case NOT: {
-			checkStackHasAtLeastOneItem("NOT");
-			String v = executionStack.pop();
-			executionStack.push(Boolean.toString(!Boolean.parseBoolean(v)));
+		case NOT:
+		case BNOT: {
+			checkStackHasAtLeastOneItem(instruction.name());
+			executionStack.not();
 			break;
 		}
 
@@ -118,29 +273,71 @@ public class StackMachine {
 		case DIV:
 		case MOD:
 		case POW:
-		case ISEQ:
+		case IADD:
+		case ISUB:
+		case IMUL:
+		case IDIV:
+		case IMOD:
+		case IPOW:
+			checkStackHasAtLeastTwoItems();
+			executionStack.arithmetic(instruction);
+			break;
 		case ISGE:
 		case ISGT:
+		case ISLE:
+		case ISLT:
+		case ICMPEQ:
+		case ICMPNE:
+		case ICMPGE:
+		case ICMPGT:
+		case ICMPLE:
+		case ICMPLT:
+			checkStackHasAtLeastTwoItems();
+			executionStack.compare(instruction);
+			break;
+		case ISEQ:
+		case ISNE:
+			checkStackHasAtLeastTwoItems();
+			executionStack.equal(instruction == Instruction.ISEQ);
+			break;
 		case AND:
-		case OR: {
-			if (executionStack.size() < 2) {
-				throw new ProgramExecutionException(
-						"There should be at least two items on the stack to execute a binary instruction");
+		case OR:
+		case BAND:
+		case BOR:
+			checkStackHasAtLeastTwoItems();
+			executionStack.logical(instruction);
+			break;
+		case JEQ:
+		case JNE:
+		case JGE:
+		case JGT:
+		case JLE:
+		case JLT: {
+			// Compare the two items on top of the stack and jump if the
+			// comparison holds
+			int address = nextAddress();
+			checkStackHasAtLeastTwoItems();
+			if (executionStack.popComparison(instruction)) {
+				this.instructionAddress = address;
 			}
-			String v1 = executionStack.pop();
-			String v2 = executionStack.pop();
-			executionStack.push(doBinaryOp(instruction, v2, v1).toString());
 			break;
 		}
 		case JIF: {
 			// JMP if stack top value is false
 			// The word after the instruction will contain the address to jump
 			// to
-			String label = getNextInstruction("Should have the address after the JIF instruction");
-			int address = getLabelAddress(label);
+			int address = nextAddress();
 			checkStackHasAtLeastOneItem("JIF");
-			String stackValue = executionStack.pop();
-			if (!toBool(stackValue)) {
+			if (!executionStack.popCondition()) {
+				this.instructionAddress = address;
+			}
+			break;
+		}
+		case JIT: {
+			// JMP if stack top value is true
+			int address = nextAddress();
+			checkStackHasAtLeastOneItem("JIT");
+			if (executionStack.popCondition()) {
 				this.instructionAddress = address;
 			}
 			break;
@@ -149,45 +346,41 @@ public class StackMachine {
 		case JMP: {
 			// The word after the instruction will contain the address to jump
 			// to
-			String label = getNextInstruction("Should have the address after the JIF instruction");
-			int address = getLabelAddress(label);
+			int address = nextAddress();
+			boolean backward = address < instructionAddress;
 			this.instructionAddress = address;
+			if (backward) {
+				runCompiledCode();
+			}
 			break;
 		}
 
 		case CALL: {
 			// The word after the instruction will contain the function address
-			String label = getNextInstruction("Should have the address after the CALL instruction");
-			int address = getLabelAddress(label);
-			// Push a new stack frame
-			this.callStack.push(new FuncMetaData(this.instructionAddress,
-					label, mainMethod.getVariables(), mainMethod
-							.getStackVariables()));
-			this.instructionAddress = address; // and jump!
+			call(nextAddress());
+			runCompiledCode();
 			break;
 		}
 
 		case RET: {
-			// Pop the stack frame and return to the previous address
-			checkThereIsAReturnAddress();
-			int returnAddress = getCurrFuncContext().getReturnAddress();
-			this.callStack.pop();
-			this.instructionAddress = returnAddress;
+			ret();
+			runCompiledCode();
+			break;
+		}
+
+		case TAILCALL: {
+			tailCall(nextAddress());
+			runCompiledCode();
 			break;
 		}
 
 		case PRINT: {
-			checkStackHasAtLeastOneItem("PRINT");
-			String escapedStr = executionStack.peek();
-			System.out.print(StringEscapeUtils.unescapeJava(escapedStr));
+			print();
 			break;
 		}
 
 		case INPUT: {
-			Scanner sc = new Scanner(System.in);
-			String input = sc.nextLine();
-			sc.close();
-			executionStack.push(input);
+			input();
 			break;
 		}
 
@@ -198,88 +391,202 @@ public class StackMachine {
 		}
 	}
 
-	private int getLabelAddress(String label) {
-		if (!labelMap.containsKey(label)) {
+	/*
+	 * Calls the function at the address, or replaces the call with its
+	 * result when the function is pure and was already called with the same
+	 * arguments.
+	 */
+	void call(int address) {
+		FrameLayout layout = program.getFrameLayout(address);
+		int parameters = layout.getMemoParameters();
+		if (parameters < 0 || executionStack.size() < parameters) {
+			call(address, layout);
+			return;
+		}
+		MemoTable table = memoTable(address, layout);
+		if (!table.isEnabled()) {
+			call(address, layout);
+			return;
+		}
+		MemoTable.Values arguments = new MemoTable.Values(executionStack,
+				parameters);
+		if (!table.replaceCall(arguments, executionStack)) {
+			call(address, layout);
+			currentFrame.memoize(table, arguments, executionStack.size()
+					- parameters + 1);
+		}
+	}
+
+	private MemoTable memoTable(int address, FrameLayout layout) {
+		if (memoTables == null) {
+			memoTables = new MemoTable[code.length];
+		}
+		MemoTable table = memoTables[address];
+		if (table == null) {
+			table = new MemoTable(layout.getFuncName(),
+					layout.getMemoParameters(), MemoTable.DEFAULT_CAPACITY);
+			memoTables[address] = table;
+		}
+		return table;
+	}
+
+	/**
+	 * @return the result tables of the pure functions called so far, in the
+	 *         order of their code
+	 */
+	public List<MemoTable> getMemoTables() {
+		List<MemoTable> tables = new ArrayList<>();
+		if (memoTables != null) {
+			for (MemoTable table : memoTables) {
+				if (table != null) {
+					tables.add(table);
+				}
+			}
+		}
+		return tables;
+	}
+
+	/*
+	 * Calls the function with the layout, whose code starts at the address.
+	 */
+	void call(int address, FrameLayout layout) {
+		if (depth >= maxCallDepth) {
 			throw new ProgramExecutionException(String.format(
-					"Invalid label %s", label));
+					"Maximum call depth %d exceeded calling %s at %d",
+					maxCallDepth, layout.getFuncName(), instructionAddress));
+		}
+		// Push a new stack frame, reusing the one of a previous call
+		if (++depth == frames.length) {
+			frames = Arrays.copyOf(frames, depth * 2);
+		}
+		FuncMetaData frame = frames[depth];
+		if (frame == null) {
+			frame = new FuncMetaData(this.instructionAddress, layout,
+					mainMethod);
+			frames[depth] = frame;
+		} else {
+			frame.reset(this.instructionAddress, layout);
+		}
+		frame.memoize(null, null, 0);
+		this.currentFrame = frame;
+		this.instructionAddress = address; // and jump!
+	}
+
+	/*
+	 * Reuses the frame of the current function for the called one, which
+	 * returns directly to the caller of the current function.
+	 */
+	void tailCall(int address) {
+		tailCall(address, program.getFrameLayout(address));
+	}
+
+	void tailCall(int address, FrameLayout layout) {
+		checkThereIsAReturnAddress("TAILCALL");
+		currentFrame.reset(currentFrame.getReturnAddress(), layout);
+		this.instructionAddress = address;
+	}
+
+	void ret() {
+		// Pop the stack frame and return to the previous address
+		checkThereIsAReturnAddress("RET");
+		currentFrame.memoizeResult(executionStack);
+		int returnAddress = getCurrFuncContext().getReturnAddress();
+		this.currentFrame = frames[--depth];
+		this.instructionAddress = returnAddress;
+	}
+
+	/*
+	 * Runs the compiled code of the current address for as long as control
+	 * stays in compiled regions.
+	 */
+	void runCompiledCode() {
+		if (jit == null) {
+			return;
+		}
+		CompiledCode compiled;
+		while (!halted
+				&& (compiled = jit.enter(instructionAddress)) != null) {
+			compiled.execute(this);
+		}
+	}
+
+	void print() {
+		checkStackHasAtLeastOneItem("PRINT");
+		print(executionStack.typeAt(0), executionStack.stringAt(0));
+	}
+
+	/*
+	 * Prints a value given by its type and its text, string literals being
+	 * unescaped.
+	 */
+	void print(byte type, String text) {
+		if (type == ValueType.STRING) {
+			output.print(StringEscapeUtils.unescapeJava(text));
+		} else {
+			output.print(text);
+		}
+	}
+
+	void input() {
+		executionStack.pushText(readLine());
+	}
+
+	String readLine() {
+		// a prompt printed before must be visible while waiting
+		output.flush();
+		String line = input.readLine();
+		if (line == null) {
+			throw new ProgramExecutionException("No line found");
 		}
-		int address = labelMap.get(label);
+		return line;
+	}
+
+	void flushOutput() {
+		output.flush();
+	}
+
+	int nextAddress() {
+		int address = nextOperand();
 		checkJumpAddress(address);
 		return address;
 	}
 
 	private void checkJumpAddress(int address) {
-		if (address < 0 || address >= program.length) {
+		if (address < 0 || address >= code.length) {
 			throw new ProgramExecutionException(String.format(
 					"Invalid jump address %d at %d", address,
 					instructionAddress));
 		}
 	}
 
-	private void checkThereIsAReturnAddress() {
-		if (this.callStack.size() == 1) {
+	private void checkThereIsAReturnAddress(String instruction) {
+		if (depth == 0) {
 			throw new ProgramExecutionException(String.format(
-					"Invalid RET instruction: no current function call %d",
-					instructionAddress));
+					"Invalid %s instruction: no current function call %d",
+					instruction, instructionAddress));
 		}
 	}
 
-	private void checkStackHasAtLeastOneItem(String instruction) {
-		if (executionStack.size() < 1) {
+	void checkStackHasAtLeastTwoItems() {
+		if (executionStack.size() < 2) {
 			throw new ProgramExecutionException(
-					"There should be at least one item on the stack to execute an "
-							+ instruction + " instruction");
+					"There should be at least two items on the stack to execute a binary instruction");
 		}
 	}
 
-	private Object doBinaryOp(String instruction, String op1, String op2) {
-		switch (Instruction.valueOf(instruction)) {
-		case ADD:
-			return Integer.parseInt(op1) + Integer.parseInt(op2);
-		case SUB:
-			return Integer.parseInt(op1) - Integer.parseInt(op2);
-		case MUL:
-			return Integer.parseInt(op1) * Integer.parseInt(op2);
-		case DIV:
-			return Integer.parseInt(op1) / Integer.parseInt(op2);
-		case MOD:
-			return Integer.parseInt(op1) % Integer.parseInt(op2);
-		case POW:
-			return (int) Math.pow(Integer.parseInt(op1), Integer.parseInt(op2));
-		case ISEQ:
-			return op1.equals(op2);
-		case ISGE:
-			return Integer.parseInt(op1) >= Integer.parseInt(op2);
-		case ISGT:
-			return Integer.parseInt(op1) > Integer.parseInt(op2);
-		case AND:
-			return Boolean.parseBoolean(op1) && Boolean.parseBoolean(op2);
-		case OR:
-			return Boolean.parseBoolean(op1) || Boolean.parseBoolean(op2);
-		default:
-			throw new AssertionError();
-		}
-	}
-
-	private boolean toBool(String val) {
-		try {
-			int n = Integer.parseInt(val);
-			return n != 0;
-		} catch (NumberFormatException e) {
-			return Boolean.parseBoolean(val);
+	void checkStackHasAtLeastOneItem(String instruction) {
+		if (executionStack.size() < 1) {
+			throw new ProgramExecutionException(
+					"There should be at least one item on the stack to execute an "
+							+ instruction + " instruction");
 		}
 	}
 
-	private String getNextInstruction(String errorMessage) {
-		if (instructionAddress >= program.length) {
-			throw new ProgramExecutionException(errorMessage);
-		}
-		String nextWord = program[instructionAddress];
-		++instructionAddress;
-		return nextWord;
+	int nextOperand() {
+		return code[instructionAddress++];
 	}
 
-	private FuncMetaData getCurrFuncContext() {
-		return callStack.peek();
+	FuncMetaData getCurrFuncContext() {
+		return currentFrame;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+package edu.asu.runtime;
+
+import edu.asu.runtime.exceptions.ProgramExecutionException;
+
+/**
+ * Interpreter dispatching every opcode to a small handler looked up in a table
+ * indexed by opcode, instead of the switch of {@link StackMachine}. Each
+ * handler only does the work of one instruction so the JIT can inline and
+ * profile them separately.
+ */
+public class TableStackMachine extends StackMachine {
+
+	interface Handler {
+		void execute(StackMachine m);
+	}
+
+	private static final Handler[] HANDLERS = createHandlers();
+
+	public TableStackMachine(Program program) {
+		super(program);
+	}
+
+	public TableStackMachine(Program program, ExecutionContext context) {
+		super(program, context);
+	}
+
+	@Override
+	public void run() {
+		if (halted) {
+			throw new ProgramExecutionException(
+					"An halted CPU cannot execute the program");
+		}
+		final Handler[] handlers = HANDLERS;
+		final int[] code = this.code;
+		try {
+			while (!halted) {
+				checkNextInstruction();
+				handlers[code[instructionAddress++]].execute(this);
+			}
+		} finally {
+			flushOutput();
+		}
+	}
+
+	private static Handler[] createHandlers() {
+		Handler[] handlers = new Handler[Instruction.values().length];
+		for (Instruction instruction : Instruction.values()) {
+			handlers[instruction.getOpcode()] = m -> {
+				throw new ProgramExecutionException("Unknown instruction: "
+						+ instruction);
+			};
+		}
+		set(handlers, Instruction.HALT, m -> m.halted = true);
+		set(handlers, Instruction.PUSH, m -> {
+			int constant = m.nextOperand();
+			m.executionStack.push(m.constantTypes[constant],
+					m.constantValues[constant], m.constants[constant]);
+		});
+		set(handlers, Instruction.POP, m -> {
+			m.checkStackHasAtLeastOneItem("POP");
+			m.executionStack.drop(1);
+		});
+
+		set(handlers, Instruction.LOAD, m -> {
+			String var = m.names[m.nextOperand()];
+			m.executionStack.pushObject(m.currentFrame.getVariable(var));
+		});
+		set(handlers, Instruction.STORE, m -> {
+			String var = m.names[m.nextOperand()];
+			m.checkStackHasAtLeastOneItem("STORE");
+			m.currentFrame.setVariable(var, m.executionStack.popObject());
+		});
+		set(handlers, Instruction.LOAD_SLOT, m -> {
+			int slot = m.nextOperand();
+			m.executionStack.load(m.currentFrame.getDefinedSlots(slot), slot);
+		});
+		set(handlers, Instruction.LOAD_LOAD, m -> {
+			int slot1 = m.nextOperand();
+			int slot2 = m.nextOperand();
+			m.executionStack.load(m.currentFrame.getDefinedSlots(slot1), slot1);
+			m.executionStack.load(m.currentFrame.getDefinedSlots(slot2), slot2);
+		});
+		set(handlers, Instruction.LOAD_GLOBAL, m -> {
+			int slot = m.nextOperand();
+			m.executionStack.load(m.currentFrame.getDefinedGlobalSlots(slot),
+					slot);
+		});
+		set(handlers, Instruction.STORE_SLOT, m -> {
+			int slot = m.nextOperand();
+			m.checkStackHasAtLeastOneItem("STORE_SLOT");
+			m.executionStack.store(m.currentFrame.getSlots(), slot);
+		});
+		set(handlers, Instruction.INC,
+				m -> m.currentFrame.increment(m.nextOperand(), 1));
+		set(handlers, Instruction.DEC,
+				m -> m.currentFrame.increment(m.nextOperand(), -1));
+
+		set(handlers, Instruction.STACK_PUSH, m -> {
+			String var = m.names[m.nextOperand()];
+			m.checkStackHasAtLeastOneItem("STACK_PUSH");
+			m.currentFrame.pushOnStackVariable(var, m.executionStack);
+		});
+		set(handlers, Instruction.STACK_POP, m -> {
+			String var = m.names[m.nextOperand()];
+			m.currentFrame.popOnStackVariable(var, m.executionStack);
+		});
+		set(handlers, Instruction.STACK_PEEK, m -> {
+			String var = m.names[m.nextOperand()];
+			m.currentFrame.peekOnStackVariable(var, m.executionStack);
+		});
+		set(handlers, Instruction.STACK_ISEMPTY, m -> {
+			String var = m.names[m.nextOperand()];
+			m.currentFrame.isEmptyStackVariable(var, m.executionStack);
+		});
+
+		// one handler per instruction, the operation itself being the one
+		// of every engine
+		for (Instruction instruction : new Instruction[] { Instruction.NOT,
+				Instruction.BNOT }) {
+			set(handlers, instruction, m -> {
+				m.checkStackHasAtLeastOneItem(instruction.name());
+				m.executionStack.not();
+			});
+		}
+		for (Instruction instruction : new Instruction[] { Instruction.ADD,
+				Instruction.SUB, Instruction.MUL, Instruction.DIV,
+				Instruction.MOD, Instruction.POW, Instruction.IADD,
+				Instruction.ISUB, Instruction.IMUL, Instruction.IDIV,
+				Instruction.IMOD, Instruction.IPOW }) {
+			set(handlers, instruction, m -> {
+				m.checkStackHasAtLeastTwoItems();
+				m.executionStack.arithmetic(instruction);
+			});
+		}
+		for (Instruction instruction : new Instruction[] { Instruction.ISGE,
+				Instruction.ISGT, Instruction.ISLE, Instruction.ISLT,
+				Instruction.ICMPEQ, Instruction.ICMPNE, Instruction.ICMPGE,
+				Instruction.ICMPGT, Instruction.ICMPLE, Instruction.ICMPLT }) {
+			set(handlers, instruction, m -> {
+				m.checkStackHasAtLeastTwoItems();
+				m.executionStack.compare(instruction);
+			});
+		}
+		for (Instruction instruction : new Instruction[] { Instruction.AND,
+				Instruction.OR, Instruction.BAND, Instruction.BOR }) {
+			set(handlers, instruction, m -> {
+				m.checkStackHasAtLeastTwoItems();
+				m.executionStack.logical(instruction);
+			});
+		}
+		set(handlers, Instruction.ISEQ, m -> {
+			m.checkStackHasAtLeastTwoItems();
+			m.executionStack.equal(true);
+		});
+		set(handlers, Instruction.ISNE, m -> {
+			m.checkStackHasAtLeastTwoItems();
+			m.executionStack.equal(false);
+		});
+
+		set(handlers, Instruction.JMP, m -> {
+			int address = m.nextAddress();
+			boolean backward = address < m.instructionAddress;
+			m.instructionAddress = address;
+			if (backward) {
+				m.runCompiledCode();
+			}
+		});
+		set(handlers, Instruction.JIF, m -> {
+			int address = m.nextAddress();
+			m.checkStackHasAtLeastOneItem("JIF");
+			if (!m.executionStack.popCondition()) {
+				m.instructionAddress = address;
+			}
+		});
+		set(handlers, Instruction.JIT, m -> {
+			int address = m.nextAddress();
+			m.checkStackHasAtLeastOneItem("JIT");
+			if (m.executionStack.popCondition()) {
+				m.instructionAddress = address;
+			}
+		});
+		for (Instruction instruction : new Instruction[] { Instruction.JEQ,
+				Instruction.JNE, Instruction.JGE, Instruction.JGT,
+				Instruction.JLE, Instruction.JLT }) {
+			set(handlers, instruction, m -> {
+				int address = m.nextAddress();
+				m.checkStackHasAtLeastTwoItems();
+				if (m.executionStack.popComparison(instruction)) {
+					m.instructionAddress = address;
+				}
+			});
+		}
+
+		set(handlers, Instruction.CALL, m -> {
+			m.call(m.nextAddress());
+			m.runCompiledCode();
+		});
+		set(handlers, Instruction.RET, m -> {
+			m.ret();
+			m.runCompiledCode();
+		});
+		set(handlers, Instruction.TAILCALL, m -> {
+			m.tailCall(m.nextAddress());
+			m.runCompiledCode();
+		});
+		set(handlers, Instruction.PRINT, StackMachine::print);
+		set(handlers, Instruction.INPUT, StackMachine::input);
+		return handlers;
+	}
+
+	private static void set(Handler[] handlers, Instruction instruction,
+			Handler handler) {
+		handlers[instruction.getOpcode()] = handler;
+	}
+}
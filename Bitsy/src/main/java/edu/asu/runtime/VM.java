@@ -1,68 +1,303 @@
 package edu.asu.runtime;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import edu.asu.runtime.exceptions.ProgramExecutionException;
+
+/**
+ * Executes a loaded {@link Program}. The program is immutable, so a VM can
+ * execute it any number of times, concurrently too: every execution gets its
+ * own machine and reads and writes through its own {@link ExecutionContext}.
+ */
 public class VM {
 
-	private static HashMap<String, Integer> labelMap = new HashMap<String, Integer>();
+	private static final String ENGINE_OPTION = "--engine=";
+	private static final String JIT_OPTION = "--jit";
+	private static final String JIT_THRESHOLD_OPTION = "--jit-threshold=";
+	private static final String MAX_CALL_DEPTH_OPTION = "--max-call-depth=";
+	private static final String PROFILE_OPTION = "--profile";
+	private static final String NO_VERIFY_OPTION = "--no-verify";
+
+	private final Program program;
+	private final Engine engine;
+	private final int jitThreshold;
+	private final int maxCallDepth;
+	// highest depth of the operand stack, -1 when the program was not
+	// verified
+	private final int maxStackDepth;
+	// code of the register engine, null when the program was not verified
+	private final RegisterProgram registerProgram;
+
+	public VM(Program program) {
+		this(program, Engine.SWITCH, 0);
+	}
+
+	public VM(Program program, Engine engine, int jitThreshold) {
+		this(program, engine, jitThreshold,
+				StackMachine.DEFAULT_MAX_CALL_DEPTH);
+	}
+
+	/**
+	 * Creates a VM executing the program with the engine, compiling the
+	 * regions entered jitThreshold times when it is positive and failing
+	 * when more than maxCallDepth calls are in progress.
+	 */
+	public VM(Program program, Engine engine, int jitThreshold,
+			int maxCallDepth) {
+		this(program, engine, jitThreshold, maxCallDepth, true);
+	}
+
+	/**
+	 * Creates a VM like {@link #VM(Program, Engine, int, int)}. When verify
+	 * is true and the {@link Verifier} accepts the program, the switch
+	 * engine runs it with a {@link VerifiedStackMachine} and the register
+	 * engine lowers it once to a {@link RegisterProgram}. Otherwise both run
+	 * it with a {@link StackMachine}.
+	 */
+	public VM(Program program, Engine engine, int jitThreshold,
+			int maxCallDepth, boolean verify) {
+		this.program = program;
+		this.engine = engine;
+		this.jitThreshold = jitThreshold;
+		this.maxCallDepth = maxCallDepth;
+		this.maxStackDepth = verify ? verify(program) : -1;
+		this.registerProgram = engine == Engine.REGISTER && isVerified() ? RegisterProgram
+				.lower(program) : null;
+	}
+
+	/*
+	 * A program the verifier rejects is still run by the checked engines,
+	 * which report the error when the faulty instruction is executed.
+	 */
+	private static int verify(Program program) {
+		try {
+			return Verifier.verify(program);
+		} catch (ProgramExecutionException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return true when the program runs without per-instruction checks
+	 */
+	public boolean isVerified() {
+		return maxStackDepth >= 0;
+	}
+
+	/**
+	 * Executes the program on {@link System#in} and {@link System#out}.
+	 */
+	public void execute() {
+		execute(ExecutionContext.system());
+	}
+
+	public void execute(ExecutionContext context) {
+		StackMachine sm;
+		if (registerProgram != null) {
+			sm = new RegisterMachine(registerProgram, context);
+		} else if (engine == Engine.TABLE) {
+			sm = new TableStackMachine(program, context);
+		} else if (isVerified()) {
+			sm = new VerifiedStackMachine(program, context, maxStackDepth);
+		} else {
+			sm = new StackMachine(program, context);
+		}
+		sm.setMaxCallDepth(maxCallDepth);
+		if (jitThreshold > 0) {
+			sm.enableJit(jitThreshold);
+		}
+		sm.run();
+	}
+
+	/**
+	 * Executes the program with the profiling loop of the switch engine,
+	 * whatever the engine and the JIT threshold of the VM.
+	 */
+	public void execute(ExecutionContext context, Profiler profiler) {
+		StackMachine sm = new StackMachine(program, context);
+		sm.setMaxCallDepth(maxCallDepth);
+		sm.run(profiler);
+	}
 
 	public static void main(String[] args) {
 		String srcPath = "";
-		if (args.length > 0) {
-			srcPath = args[0];
+		Engine engine = Engine.SWITCH;
+		boolean jit = false;
+		boolean batch = false;
+		boolean verify = true;
+		int jitThreshold = JitCompiler.DEFAULT_THRESHOLD;
+		int maxCallDepth = StackMachine.DEFAULT_MAX_CALL_DEPTH;
+		// empty to print the report, else the path of the JSON report
+		String profilePath = null;
+		int argIndex = 0;
+		while (args.length > argIndex && engine != null
+				&& args[argIndex].startsWith("--")) {
+			String option = args[argIndex++];
+			if (option.startsWith(ENGINE_OPTION)) {
+				engine = Engine.fromName(option.substring(ENGINE_OPTION
+						.length()));
+			} else if (option.equals(Batch.OPTION)) {
+				batch = true;
+			} else if (option.equals(NO_VERIFY_OPTION)) {
+				verify = false;
+			} else if (option.equals(JIT_OPTION)) {
+				jit = true;
+			} else if (option.startsWith(JIT_THRESHOLD_OPTION)
+					&& option.length() > JIT_THRESHOLD_OPTION.length()) {
+				jit = true;
+				try {
+					jitThreshold = Integer.parseInt(option
+							.substring(JIT_THRESHOLD_OPTION.length()));
+				} catch (NumberFormatException e) {
+					engine = null;
+				}
+			} else if (option.equals(PROFILE_OPTION)) {
+				profilePath = "";
+			} else if (option.startsWith(PROFILE_OPTION + "=")) {
+				profilePath = option.substring(PROFILE_OPTION.length() + 1);
+			} else if (option.startsWith(MAX_CALL_DEPTH_OPTION)) {
+				try {
+					maxCallDepth = Integer.parseInt(option
+							.substring(MAX_CALL_DEPTH_OPTION.length()));
+				} catch (NumberFormatException e) {
+					engine = null;
+				}
+			} else {
+				engine = null;
+			}
+		}
+		// a batch has no single program to profile
+		if (args.length > argIndex && engine != null
+				&& !(batch && profilePath != null)) {
+			srcPath = args[argIndex];
 		} else {
-			System.out.println("Usage: <sourcepath> to specify where to find intermediate code to execute");
+			System.out.println("Usage: [--engine=switch|table|register] [--jit | --jit-threshold=<count>] [--max-call-depth=<count>] [--no-verify] [--profile[=<json file>]] <sourcepath> to specify where to find intermediate code to execute");
+			System.out.println("    or [options except --profile] --batch <directory> to execute every .int and " + BytecodeFile.EXTENSION + " file of the directory, reading the input of a program from its .in file");
+			return;
+		}
+
+		if (batch) {
+			executeBatch(Paths.get(srcPath), engine, jit ? jitThreshold : 0,
+					maxCallDepth, verify);
 			return;
 		}
 
-		File file = new File(srcPath);
-		Scanner input = null;
+		Program program = null;
+		if (srcPath.endsWith(BytecodeFile.EXTENSION)) {
+			try {
+				program = BytecodeFile.load(Paths.get(srcPath));
+			} catch (IOException e) {
+				System.out.println("Error: Could not find or load bytecode "
+						+ srcPath);
+				return;
+			}
+		} else {
+			File file = new File(srcPath);
+			Scanner input = null;
+			try {
+				input = new Scanner(file);
+			} catch (FileNotFoundException e) {
+				System.out.println("Error: Could not find or  class " + srcPath);
+			}
+			if (input != null) {
+				String code = input.useDelimiter("\\Z").next();
+				input.close();
+				program = ProgramLoader.decode(ProgramLoader.tokenize(code));
+			}
+		}
+		if (program == null) {
+			return;
+		}
+		VM vm = new VM(program, engine, jit ? jitThreshold : 0, maxCallDepth,
+				verify);
+		if (profilePath == null) {
+			vm.execute();
+			return;
+		}
+		Profiler profiler = new Profiler();
 		try {
-			input = new Scanner(file);
-		} catch (FileNotFoundException e) {
-			System.out.println("Error: Could not find or  class " + srcPath);
+			vm.execute(ExecutionContext.system(), profiler);
+		} finally {
+			report(profiler, profilePath);
+		}
+	}
+
+	/*
+	 * Prints the report on the error stream so that it never mixes with the
+	 * output of the program, or writes it as JSON.
+	 */
+	private static void report(Profiler profiler, String path) {
+		if (path.isEmpty()) {
+			profiler.printReport(System.err);
+			return;
 		}
-		if (input != null) {
-			String code = input.useDelimiter("\\Z").next();
-			run(code);
-			input.close();
+		try (Writer writer = Files.newBufferedWriter(Paths.get(path))) {
+			profiler.writeJson(writer);
+		} catch (IOException | InvalidPathException e) {
+			System.out.println("Error: Could not write profile " + path);
 		}
 	}
 
-	public static void run(String code) {
-		List<String> instr = new ArrayList<>();
-		Pattern p = Pattern.compile("(\"[^\"]+\")|\\S+");
-		Matcher m = p.matcher(code);
-		while (m.find()) {
-			instr.add(m.group().replaceAll("\"", ""));
+	/**
+	 * Executes every program of the directory in parallel, each one with its
+	 * own output and with the content of its .in file, if any, as input.
+	 */
+	public static int executeBatch(Path directory, Engine engine,
+			int jitThreshold, int maxCallDepth, boolean verify) {
+		List<Path> files;
+		try {
+			files = Batch.list(directory, ".int", BytecodeFile.EXTENSION);
+		} catch (IOException e) {
+			System.out.println("Error: Could not list directory " + directory);
+			return 1;
 		}
-		executeInstr(instr.toArray(new String[0]));
+		return Batch.run(files, (file, out, err) -> {
+			VM vm = new VM(ProgramLoader.load(file), engine, jitThreshold,
+					maxCallDepth, verify);
+			String name = file.getFileName().toString();
+			Path inputFile = file.resolveSibling(name.substring(0,
+					name.lastIndexOf('.')) + ".in");
+			try (InputStream in = Files.exists(inputFile) ? Files
+					.newInputStream(inputFile) : new ByteArrayInputStream(
+					new byte[0])) {
+				vm.execute(new ExecutionContext(in, out));
+			}
+		}, System.out);
+	}
+
+	public static void run(String code) {
+		run(code, Engine.SWITCH);
+	}
+
+	public static void run(String code, Engine engine) {
+		run(code, engine, 0);
+	}
+
+	/**
+	 * Runs the intermediate code, compiling the regions entered jitThreshold
+	 * times when it is positive.
+	 */
+	public static void run(String code, Engine engine, int jitThreshold) {
+		new VM(ProgramLoader.decode(ProgramLoader.tokenize(code)), engine,
+				jitThreshold).execute();
 	}
 
 	public static void executeInstr(String[] instr) {
-		int line = 0;
-		ArrayList<String> program = new ArrayList<String>();
-		for (int i = 0; i < instr.length; i++) {
-			String s = instr[i];
-			if (!s.isEmpty()) {
-				if (s.equals(Instruction.LABEL.toString())) {
-					i++;
-					labelMap.put(instr[i], line);
-				} else {
-					program.add(s);
-					line++;
-				}
-			}
-		}
-		StackMachine sm = new StackMachine(program.toArray(new String[program
-				.size()]), labelMap);
-		sm.run();
+		executeInstr(instr, Engine.SWITCH);
+	}
+
+	public static void executeInstr(String[] instr, Engine engine) {
+		new VM(ProgramLoader.decode(instr), engine, 0).execute();
 	}
 }
@@ -0,0 +1,66 @@
+package edu.asu.runtime;
+
+/**
+ * Types the machines tag their values with, and how a text, a constant or a
+ * line of input, is read as one of them.
+ */
+public final class ValueType {
+
+	public static final byte INT = 1;
+	public static final byte BOOL = 2;
+	public static final byte STRING = 3;
+
+	private ValueType() {
+	}
+
+	/**
+	 * @return the type a text is read as when it is pushed
+	 */
+	public static byte typeOf(String text) {
+		if (text.equals("true") || text.equals("false")) {
+			return BOOL;
+		}
+		int length = text.length();
+		int start = length > 1 && text.charAt(0) == '-' ? 1 : 0;
+		if (length == start || length - start > 10
+				|| (text.charAt(start) == '0' && length > 1)) {
+			return STRING;
+		}
+		for (int i = start; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return STRING;
+			}
+		}
+		long value = digitsOf(text);
+		return value == (int) value ? INT : STRING;
+	}
+
+	/**
+	 * @return the primitive value of a text of the given type, 0 for
+	 *         {@link #STRING}
+	 */
+	public static long valueOf(byte type, String text) {
+		switch (type) {
+		case INT:
+			return digitsOf(text);
+		case BOOL:
+			return text.equals("true") ? 1 : 0;
+		default:
+			return 0;
+		}
+	}
+
+	/*
+	 * Reads the decimal digits of a text typed once, when it is loaded or
+	 * input, so that no value is ever parsed while it is used.
+	 */
+	private static long digitsOf(String text) {
+		boolean negative = text.charAt(0) == '-';
+		long value = 0;
+		for (int i = negative ? 1 : 0; i < text.length(); i++) {
+			value = value * 10 + text.charAt(i) - '0';
+		}
+		return negative ? -value : value;
+	}
+}
@@ -0,0 +1,230 @@
+package edu.asu.runtime;
+
+/**
+ * Switch interpreter of a program accepted by the {@link Verifier}. The
+ * verifier proved that there is always a next instruction, that every
+ * instruction finds its operands on the stack and that every jump lands on
+ * an instruction, so none of this is checked again while running. The
+ * operand stack is allocated with the depth the verifier computed.
+ * <p>
+ * What depends on the values is still checked: undefined variables, empty
+ * stack variables and the call depth.
+ */
+public class VerifiedStackMachine extends StackMachine {
+
+	/**
+	 * @param maxStackDepth
+	 *            the depth returned by {@link Verifier#verify(Program)}
+	 */
+	public VerifiedStackMachine(Program program, ExecutionContext context,
+			int maxStackDepth) {
+		super(program, context, new OperandStack(maxStackDepth));
+	}
+
+	@Override
+	public void run() {
+		checkState();
+		try {
+			while (!halted) {
+				execute(code[instructionAddress++]);
+			}
+		} finally {
+			flushOutput();
+		}
+	}
+
+	private void execute(int opcode) {
+		Instruction instruction = Instruction.fromOpcode(opcode);
+		switch (instruction) {
+
+		case HALT:
+			this.halted = true;
+			break;
+
+		case PUSH: {
+			int constant = nextOperand();
+			executionStack.push(constantTypes[constant],
+					constantValues[constant], constants[constant]);
+			break;
+		}
+
+		case POP:
+			executionStack.drop(1);
+			break;
+
+		case LOAD: {
+			String var = names[nextOperand()];
+			executionStack.pushObject(getCurrFuncContext().getVariable(var));
+			break;
+		}
+
+		case STORE: {
+			String var = names[nextOperand()];
+			getCurrFuncContext().setVariable(var, executionStack.popObject());
+			break;
+		}
+
+		case LOAD_SLOT: {
+			int slot = nextOperand();
+			executionStack.load(currentFrame.getDefinedSlots(slot), slot);
+			break;
+		}
+
+		case LOAD_LOAD: {
+			int slot1 = nextOperand();
+			int slot2 = nextOperand();
+			executionStack.load(currentFrame.getDefinedSlots(slot1), slot1);
+			executionStack.load(currentFrame.getDefinedSlots(slot2), slot2);
+			break;
+		}
+
+		case INC:
+			currentFrame.increment(nextOperand(), 1);
+			break;
+
+		case DEC:
+			currentFrame.increment(nextOperand(), -1);
+			break;
+
+		case LOAD_GLOBAL: {
+			int slot = nextOperand();
+			executionStack.load(currentFrame.getDefinedGlobalSlots(slot), slot);
+			break;
+		}
+
+		case STORE_SLOT:
+			executionStack.store(currentFrame.getSlots(), nextOperand());
+			break;
+
+		case STACK_PUSH:
+			getCurrFuncContext().pushOnStackVariable(names[nextOperand()],
+					executionStack);
+			break;
+
+		case STACK_POP:
+			getCurrFuncContext().popOnStackVariable(names[nextOperand()],
+					executionStack);
+			break;
+
+		case STACK_PEEK:
+			getCurrFuncContext().peekOnStackVariable(names[nextOperand()],
+					executionStack);
+			break;
+
+		case STACK_ISEMPTY:
+			getCurrFuncContext().isEmptyStackVariable(names[nextOperand()],
+					executionStack);
+			break;
+
+		case NOT:
+		case BNOT:
+			executionStack.not();
+			break;
+
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case MOD:
+		case POW:
+		case IADD:
+		case ISUB:
+		case IMUL:
+		case IDIV:
+		case IMOD:
+		case IPOW:
+			executionStack.arithmetic(instruction);
+			break;
+
+		case ISGE:
+		case ISGT:
+		case ISLE:
+		case ISLT:
+		case ICMPEQ:
+		case ICMPNE:
+		case ICMPGE:
+		case ICMPGT:
+		case ICMPLE:
+		case ICMPLT:
+			executionStack.compare(instruction);
+			break;
+
+		case ISEQ:
+		case ISNE:
+			executionStack.equal(instruction == Instruction.ISEQ);
+			break;
+
+		case AND:
+		case OR:
+		case BAND:
+		case BOR:
+			executionStack.logical(instruction);
+			break;
+
+		case JEQ:
+		case JNE:
+		case JGE:
+		case JGT:
+		case JLE:
+		case JLT: {
+			int address = nextOperand();
+			if (executionStack.popComparison(instruction)) {
+				this.instructionAddress = address;
+			}
+			break;
+		}
+
+		case JIF: {
+			int address = nextOperand();
+			if (!executionStack.popCondition()) {
+				this.instructionAddress = address;
+			}
+			break;
+		}
+
+		case JIT: {
+			int address = nextOperand();
+			if (executionStack.popCondition()) {
+				this.instructionAddress = address;
+			}
+			break;
+		}
+
+		case JMP: {
+			int address = nextOperand();
+			boolean backward = address < instructionAddress;
+			this.instructionAddress = address;
+			if (backward) {
+				runCompiledCode();
+			}
+			break;
+		}
+
+		case CALL:
+			call(nextOperand());
+			runCompiledCode();
+			break;
+
+		case RET:
+			ret();
+			runCompiledCode();
+			break;
+
+		case TAILCALL:
+			tailCall(nextOperand());
+			runCompiledCode();
+			break;
+
+		case PRINT:
+			print();
+			break;
+
+		case INPUT:
+			input();
+			break;
+
+		default:
+			throw new AssertionError(instruction);
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package edu.asu.runtime;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.asu.runtime.exceptions.ProgramExecutionException;
+
+/**
+ * Load time verifier of a {@link Program}. It interprets the program over
+ * operand stack depths instead of values, proving that every instruction
+ * finds the operands it pops, that every operand is a valid constant, name,
+ * slot or instruction address and that control never runs past the end of
+ * the code. A verified program can be run by a
+ * {@link VerifiedStackMachine}, which skips these checks.
+ * <p>
+ * Every function is analyzed once, with depths relative to its entry: it
+ * may pop the arguments its callers pushed, and all its returns must leave
+ * the stack at the same depth. The instructions after a call are only
+ * analyzed once a return of the called function tells its effect on the
+ * stack, so that recursive functions are verified as well. Code reached
+ * from two functions, or with two different depths, is rejected.
+ */
+public class Verifier {
+
+	private static class Function {
+		private final int entry;
+		// depth when the function returns, null until a return is analyzed
+		private Integer effect;
+		// lowest and highest depths reached, including the called functions
+		private int lowest;
+		private int highest;
+		// calls waiting for the effect of the function
+		private final List<Integer> waiting = new ArrayList<>();
+
+		private Function(int entry) {
+			this.entry = entry;
+		}
+	}
+
+	private final Program program;
+	private final int[] code;
+	private final boolean[] starts;
+	// function and depth of every analyzed instruction
+	private final Function[] owners;
+	private final int[] depths;
+	private final Map<Integer, Function> functions = new HashMap<>();
+	// function called by every CALL and TAILCALL
+	private final Map<Integer, Function> callSites = new LinkedHashMap<>();
+	private final Deque<Integer> work = new ArrayDeque<>();
+
+	private Verifier(Program program) {
+		this.program = program;
+		this.code = program.getCode();
+		this.starts = new boolean[code.length];
+		this.owners = new Function[code.length];
+		this.depths = new int[code.length];
+	}
+
+	/**
+	 * @return the highest depth of the operand stack, only a lower bound
+	 *         when functions recurse without tail calls
+	 * @throws ProgramExecutionException
+	 *             telling why the program cannot be verified
+	 */
+	public static int verify(Program program) {
+		return new Verifier(program).verify();
+	}
+
+	/**
+	 * @return the verifier of the program, telling the depth of every
+	 *         instruction it reached
+	 * @throws ProgramExecutionException
+	 *             telling why the program cannot be verified
+	 */
+	static Verifier analyze(Program program) {
+		Verifier verifier = new Verifier(program);
+		verifier.verify();
+		return verifier;
+	}
+
+	/**
+	 * @return false for the instructions control never reaches
+	 */
+	boolean isReached(int address) {
+		return owners[address] != null;
+	}
+
+	/**
+	 * @return the depth of the operand stack before the instruction, relative
+	 *         to the entry of its function
+	 */
+	int getDepth(int address) {
+		return depths[address];
+	}
+
+	private int verify() {
+		findInstructions();
+		Function main = function(0);
+		while (!work.isEmpty()) {
+			interpret(work.pop());
+		}
+		addCalledDepths();
+		if (main.lowest < 0) {
+			throw new ProgramExecutionException(
+					"A function can pop more operands than the main code pushed");
+		}
+		return main.highest;
+	}
+
+	private void findInstructions() {
+		int address = 0;
+		while (address < code.length) {
+			int opcode = code[address];
+			if (opcode < 0 || opcode >= Instruction.values().length
+					|| Instruction.fromOpcode(opcode).isPseudo()) {
+				fail("Invalid opcode %d at %d", opcode, address);
+			}
+			starts[address] = true;
+			address += Instruction.fromOpcode(opcode).getSize();
+		}
+		if (address > code.length) {
+			fail("Missing operand of the last instruction");
+		}
+	}
+
+	private void interpret(int address) {
+		Function function = owners[address];
+		int depth = depths[address];
+		Instruction instruction = Instruction.fromOpcode(code[address]);
+		checkOperands(address, instruction, function);
+		int next = address + instruction.getSize();
+		switch (instruction) {
+		case HALT:
+			return;
+		case JMP:
+			flow(code[address + 1], function, depth);
+			return;
+		case RET:
+			if (function.entry == 0) {
+				fail("RET outside of a function at %d", address);
+			}
+			returns(function, depth);
+			return;
+		case CALL:
+		case TAILCALL: {
+			if (instruction == Instruction.TAILCALL && function.entry == 0) {
+				fail("TAILCALL outside of a function at %d", address);
+			}
+			Function called = function(code[address + 1]);
+			callSites.put(address, called);
+			if (called.effect == null) {
+				called.waiting.add(address);
+			} else if (instruction == Instruction.CALL) {
+				flow(next, function, depth + called.effect);
+			} else {
+				returns(function, depth + called.effect);
+			}
+			return;
+		}
+		default:
+			break;
+		}
+		int popped = depth - pops(instruction);
+		if (function.entry == 0 && popped < 0) {
+			fail("Operand stack underflow by %s at %d", instruction, address);
+		}
+		int pushed = popped + pushes(instruction);
+		function.lowest = Math.min(function.lowest, popped);
+		function.highest = Math.max(function.highest, pushed);
+		if (instruction.getOperands().length == 1
+				&& instruction.getOperands()[0] == Instruction.Operand.ADDRESS) {
+			flow(code[address + 1], function, pushed);
+		}
+		flow(next, function, pushed);
+	}
+
+	private void checkOperands(int address, Instruction instruction,
+			Function function) {
+		Instruction.Operand[] operands = instruction.getOperands();
+		for (int i = 0; i < operands.length; i++) {
+			int operand = code[address + 1 + i];
+			int limit;
+			switch (operands[i]) {
+			case CONSTANT:
+				limit = program.getConstants().length;
+				break;
+			case NAME:
+				limit = program.getNames().length;
+				break;
+			case SLOT:
+				limit = program.getFrameLayout(function.entry).getSize();
+				break;
+			case GLOBAL_SLOT:
+				limit = program.getFrameLayout(0).getSize();
+				break;
+			default:
+				limit = code.length;
+			}
+			if (operand < 0 || operand >= limit
+					|| operands[i] == Instruction.Operand.ADDRESS
+					&& !starts[operand]) {
+				fail("Invalid %s %d of %s at %d",
+						operands[i].getDescription(), operand, instruction,
+						address);
+			}
+		}
+	}
+
+	private Function function(int entry) {
+		Function function = functions.get(entry);
+		if (function == null) {
+			if (owners[entry] != null) {
+				fail("Function at %d is also code of the function at %d",
+						entry, owners[entry].entry);
+			}
+			if (program.getFrameLayout(entry) == null) {
+				fail("No function at %d", entry);
+			}
+			function = new Function(entry);
+			functions.put(entry, function);
+			owners[entry] = function;
+			work.push(entry);
+		}
+		return function;
+	}
+
+	private void flow(int address, Function function, int depth) {
+		if (address >= code.length) {
+			fail("Control runs past the end of the code");
+		}
+		if (owners[address] == null) {
+			owners[address] = function;
+			depths[address] = depth;
+			work.push(address);
+		} else if (owners[address] != function) {
+			fail("Code at %d is reached from the functions at %d and %d",
+					address, owners[address].entry, function.entry);
+		} else if (depths[address] != depth) {
+			fail("Operand stack depths %d and %d meet at %d",
+					depths[address], depth, address);
+		}
+	}
+
+	private void returns(Function function, int depth) {
+		if (function.effect == null) {
+			function.effect = depth;
+			work.addAll(function.waiting);
+			function.waiting.clear();
+		} else if (function.effect != depth) {
+			fail("Function at %d returns with depths %d and %d",
+					function.entry, function.effect, depth);
+		}
+	}
+
+	/*
+	 * Lowers and raises the depths of every function by the ones of the
+	 * functions it calls until they are stable. The lowest depths must be
+	 * stable after a round per function; the highest ones grow forever
+	 * along recursive calls and are only raised as many times.
+	 */
+	private void addCalledDepths() {
+		for (int round = 0;; round++) {
+			boolean changed = false;
+			for (Map.Entry<Integer, Function> site : callSites.entrySet()) {
+				Function caller = owners[site.getKey()];
+				Function called = site.getValue();
+				int depth = depths[site.getKey()];
+				if (depth + called.lowest < caller.lowest) {
+					caller.lowest = depth + called.lowest;
+					changed = true;
+				}
+				if (round < functions.size()) {
+					caller.highest = Math.max(caller.highest, depth
+							+ called.highest);
+				}
+			}
+			if (!changed) {
+				return;
+			}
+			if (round > functions.size()) {
+				fail("Recursive calls can pop an unbounded number of operands");
+			}
+		}
+	}
+
+	private static int pops(Instruction instruction) {
+		switch (instruction.getUntyped()) {
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case MOD:
+		case POW:
+		case AND:
+		case OR:
+		case ISEQ:
+		case ISGE:
+		case ISGT:
+		case ISNE:
+		case ISLE:
+		case ISLT:
+		case JEQ:
+		case JNE:
+		case JGE:
+		case JGT:
+		case JLE:
+		case JLT:
+			return 2;
+		case NOT:
+		case POP:
+		case JIF:
+		case JIT:
+		case STORE:
+		case STORE_SLOT:
+		case STACK_PUSH:
+		case PRINT:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	private static int pushes(Instruction instruction) {
+		switch (instruction.getUntyped()) {
+		case LOAD_LOAD:
+			return 2;
+		case PUSH:
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case MOD:
+		case POW:
+		case AND:
+		case OR:
+		case NOT:
+		case ISEQ:
+		case ISGE:
+		case ISGT:
+		case ISNE:
+		case ISLE:
+		case ISLT:
+		case LOAD:
+		case LOAD_SLOT:
+		case LOAD_GLOBAL:
+		case STACK_POP:
+		case STACK_PEEK:
+		case STACK_ISEMPTY:
+		case INPUT:
+		// the item it prints stays on the stack
+		case PRINT:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	private static void fail(String format, Object... args) {
+		throw new ProgramExecutionException("Verification failed: "
+				+ String.format(format, args));
+	}
+}
@@ -0,0 +1,30 @@
+package edu.asu.runtime.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+
+/**
+ * Input reading the lines of a stream through a single buffered reader, so
+ * that no line read ahead is lost between two INPUT instructions. The stream
+ * is never closed.
+ */
+public class BufferedInput implements Input {
+
+	private final BufferedReader reader;
+
+	public BufferedInput(InputStream in) {
+		this.reader = new BufferedReader(new InputStreamReader(in));
+	}
+
+	@Override
+	public String readLine() {
+		try {
+			return reader.readLine();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
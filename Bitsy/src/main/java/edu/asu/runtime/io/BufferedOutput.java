@@ -0,0 +1,49 @@
+package edu.asu.runtime.io;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+
+/**
+ * Output collecting the printed text in a buffer, written to the stream when
+ * it is full or flushed, instead of a write to the console for every PRINT.
+ */
+public class BufferedOutput implements Output {
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private final BufferedWriter writer;
+
+	public BufferedOutput(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            number of characters kept before writing them to the stream
+	 */
+	public BufferedOutput(OutputStream out, int bufferSize) {
+		this.writer = new BufferedWriter(new OutputStreamWriter(out),
+				bufferSize);
+	}
+
+	@Override
+	public void print(String text) {
+		try {
+			writer.write(text);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void flush() {
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
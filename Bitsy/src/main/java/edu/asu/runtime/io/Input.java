@@ -0,0 +1,13 @@
+package edu.asu.runtime.io;
+
+/**
+ * Channel INPUT reads from.
+ */
+public interface Input {
+
+	/**
+	 * @return the next line without its terminator, null at the end of the
+	 *         input
+	 */
+	String readLine();
+}
@@ -0,0 +1,13 @@
+package edu.asu.runtime.io;
+
+/**
+ * Channel PRINT writes to. Implementations may buffer the text until
+ * {@link #flush()}, which the machine calls before reading an input and
+ * when the program stops.
+ */
+public interface Output {
+
+	void print(String text);
+
+	void flush();
+}
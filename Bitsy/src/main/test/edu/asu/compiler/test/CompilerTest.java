@@ -2,15 +2,25 @@ package edu.asu.compiler.test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
+import edu.asu.compiler.exceptions.TypeMismatchException;
 import edu.asu.compiler.exceptions.UndeclaredVariableException;
 import edu.asu.compiler.exceptions.VariableAlreadyDefinedException;
+import edu.asu.parser.CompileCache;
+import edu.asu.parser.IntermediateInstruction;
+import edu.asu.parser.Optimizer;
 import edu.asu.parser.Translator;
 import edu.asu.runtime.VM;
 import edu.asu.runtime.exceptions.ProgramExecutionException;
@@ -20,6 +30,9 @@ public class CompilerTest {
 	@Rule
 	public ExpectedException thrown = ExpectedException.none();
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	@Test
 	public void perfromAllValidTest() throws Exception {
 		String[][] data = dataProvider();
@@ -38,6 +51,222 @@ public class CompilerTest {
 		}
 	}
 
+	@Test
+	public void perfromAllValidOptimizedTest() throws Exception {
+		String[][] data = dataProvider();
+		for (String[] tc : data) {
+			ByteArrayOutputStream outSpy = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(outSpy));
+			compileAndRun(tc[0], Optimizer.MAX_LEVEL);
+			Assert.assertEquals(tc[1], outSpy.toString());
+			System.setOut(null);
+		}
+	}
+
+	@Test
+	public void optimizerFoldsConstantsAndRemovesDeadCodeTest()
+			throws Exception {
+		String code = Translator.generateIntermediateCode(Translator
+				.parse(new ANTLRInputStream("int x = -(2^10 - 4);\n"
+						+ "while(false) { x++; }\n" + "if(x < 0) { print(x); }")),
+				1);
+		Assert.assertEquals("VAR x\n" + "PUSH -1020\n" + "STORE_SLOT 0\n"
+				+ "LOAD_SLOT 0\n" + "PUSH 0\n" + "ISLT\n" + "JIF label_4\n"
+				+ "LOAD_SLOT 0\n" + "PRINT\n" + "LABEL label_4\n" + "HALT\n",
+				code);
+	}
+
+	@Test
+	public void optimizerRemovesUncalledFunctionsTest() throws Exception {
+		String source = "int k = 3; print(k);\n"
+				+ "func f(int n) { int i; int j; i = 0;\n"
+				+ "  while(i < n) { i++; } if(i > 1) { j = 1; } return i; }\n"
+				+ "func g() { return 4; }\n" + "print(g());";
+		for (int level = 0; level <= Optimizer.MAX_LEVEL; level++) {
+			String code = Translator.generateIntermediateCode(Translator
+					.parse(new ANTLRInputStream(source)), level);
+			Assert.assertEquals(level == 0, code.contains("LABEL f\n"));
+			ByteArrayOutputStream outSpy = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(outSpy));
+			VM.run(code);
+			System.setOut(null);
+			Assert.assertEquals("34", outSpy.toString());
+		}
+	}
+
+	@Test
+	public void optimizerSelectsSuperinstructionsTest() throws Exception {
+		String code = Translator.generateIntermediateCode(Translator
+				.parse(new ANTLRInputStream("int i = 0; int s = 0;\n"
+						+ "while(i < 3) { s = s + i; i++; }")), 2);
+		Assert.assertEquals("VAR i\n" + "VAR s\n" + "PUSH 0\n"
+				+ "STORE_SLOT 0\n" + "PUSH 0\n" + "STORE_SLOT 1\n"
+				+ "LABEL label_2\n" + "LOAD_SLOT 0\n" + "PUSH 3\n"
+				+ "JGE label_1\n" + "LOAD_LOAD 1 0\n" + "IADD\n"
+				+ "STORE_SLOT 1\n" + "INC 0\n" + "JMP label_2\n"
+				+ "LABEL label_1\n" + "HALT\n", code);
+	}
+
+	@Test
+	public void tailCallTest() throws Exception {
+		String source = "print(sum(100000, 0));\n"
+				+ "func sum(int k, int acc) {\n"
+				+ "  if (k == 0) { return acc; }\n"
+				+ "  return sum(k - 1, acc + k);\n" + "}";
+		String code = Translator.generateIntermediateCode(Translator
+				.parse(new ANTLRInputStream(source)));
+		Assert.assertTrue(code.endsWith("ADD\n" + "TAILCALL sum\n"));
+		Assert.assertTrue(code.contains("CALL sum\n" + "PRINT\n"));
+		ByteArrayOutputStream outSpy = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(outSpy));
+		compileAndRun(source);
+		System.setOut(null);
+		Assert.assertEquals("705082704", outSpy.toString());
+	}
+
+	@Test
+	public void returnAsFirstStatementTest() throws Exception {
+		String code = Translator.generateIntermediateCode(Translator
+				.parse(new ANTLRInputStream("return;\nprint(1);")));
+		Assert.assertTrue(code.startsWith("RET\n"));
+	}
+
+	@Test
+	public void inliningTest() throws Exception {
+		String source = "int i = 0; int s = 0;\n"
+				+ "while(i < 4) { s = s + norm(i, 1); i++; }\n"
+				+ "print(s); print(fact(5));\n"
+				+ "func sq(int x) { return x * x; }\n"
+				+ "func norm(int a, int b) { if(a > b) { return sq(a) + sq(b); } return a; }\n"
+				+ "func fact(int n) { if(n < 2) { return 1; } return n * fact(n - 1); }";
+		String code = IntermediateInstruction.toString(Translator.compile(
+				source, new Optimizer(Optimizer.INLINING_LEVEL, 2, 100), null,
+				ConsoleErrorListener.INSTANCE));
+		Assert.assertFalse(code.contains("CALL norm"));
+		Assert.assertFalse(code.contains("CALL sq"));
+		Assert.assertTrue(code.contains("CALL fact"));
+		// norm is inlined but not the calls it makes
+		code = IntermediateInstruction.toString(Translator.compile(source,
+				new Optimizer(Optimizer.INLINING_LEVEL, 1, 100), null,
+				ConsoleErrorListener.INSTANCE));
+		Assert.assertFalse(code.contains("CALL norm"));
+		Assert.assertTrue(code.contains("CALL sq"));
+		ByteArrayOutputStream outSpy = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(outSpy));
+		VM.run(code);
+		System.setOut(null);
+		Assert.assertEquals("16120", outSpy.toString());
+	}
+
+	@Test
+	public void memoizationTest() throws Exception {
+		String source = "int g = 2;\n"
+				+ "print(fib(20)); print(twice(3)); print(scaled(3)); print(loud(1));\n"
+				+ "func fib(int n) { if(n < 2) { return n; } return fib(n - 1) + fib(n - 2); }\n"
+				+ "func twice(int x) { return fib(x) * 2; }\n"
+				+ "func scaled(int x) { return x * g; }\n"
+				+ "func loud(int x) { print(x); return twice(x); }";
+		String code = IntermediateInstruction.toString(Translator.compile(
+				source, new Optimizer(0, 0, 0, true), null,
+				ConsoleErrorListener.INSTANCE));
+		Assert.assertTrue(code.contains("LABEL fib\nPURE 1\n"));
+		Assert.assertTrue(code.contains("LABEL twice\nPURE 1\n"));
+		// reading a global or printing is not pure
+		Assert.assertFalse(code.contains("LABEL scaled\nPURE"));
+		Assert.assertFalse(code.contains("LABEL loud\nPURE"));
+		ByteArrayOutputStream outSpy = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(outSpy));
+		VM.run(code);
+		System.setOut(null);
+		Assert.assertEquals("67654612", outSpy.toString());
+	}
+
+	@Test
+	public void typeInferenceTest() throws Exception {
+		String source = "int a = 6; int b = 4; stack s; s.push(5);\n"
+				+ "print(mul(a, b) > 20 && a != b); print(s.pop() + a);\n"
+				+ "func mul(int x, int y) { return x * y; }";
+		String code = IntermediateInstruction.toString(Translator.compile(
+				source, new Optimizer(2), null, ConsoleErrorListener.INSTANCE));
+		Assert.assertTrue(code.contains("LOAD_LOAD 0 1\nIMUL\n"));
+		Assert.assertTrue(code.contains("LOAD_LOAD 0 1\nICMPNE\n"));
+		// a stack variable can hold anything
+		Assert.assertTrue(code.contains("STACK_POP s\nLOAD_SLOT 0\nADD\n"));
+		ByteArrayOutputStream outSpy = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(outSpy));
+		VM.run(code);
+		System.setOut(null);
+		Assert.assertEquals("true11", outSpy.toString());
+	}
+
+	@Test
+	public void shortCircuitTest() throws Exception {
+		String source = "int n = 0;\n"
+				+ "print(n != 0 && check(n)); print(n == 0 || check(n));\n"
+				+ "if(n == 0 || check(n)) { print(\"a\"); }\n"
+				+ "while(n < 3 && check(n)) { n++; }\n" + "print(n);\n"
+				+ "func check(int x) { print(\"c\"); return x < 2; }";
+		String code = Translator.generateIntermediateCode(Translator
+				.parse(new ANTLRInputStream(source)));
+		Assert.assertTrue(code.contains("JIT "));
+		Assert.assertFalse(code.contains("\nAND\n"));
+		Assert.assertFalse(code.contains("\nOR\n"));
+		// the right operands only run when the left ones do not decide
+		for (int level = 0; level <= Optimizer.MAX_LEVEL; level++) {
+			ByteArrayOutputStream outSpy = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(outSpy));
+			compileAndRun(source, level);
+			System.setOut(null);
+			Assert.assertEquals("falsetrueaccc2", outSpy.toString());
+		}
+	}
+
+	@Test
+	public void compileCacheReusesUnchangedFunctionsTest() throws Exception {
+		Path cacheDir = folder.getRoot().toPath();
+		CompileCache cache = new CompileCache(cacheDir,
+				CompileCache.DEFAULT_MAX_SIZE);
+		String source = "int g = 3;\nprint(f(2) + h(1));\n"
+				+ "func f(int a) { if(a > 1) { return a * g; } return 0; }\n"
+				+ "func h(int b) { while(b < 10) { b++; } return b; }\n";
+		String code = IntermediateInstruction.toString(Translator.compile(
+				source, 0, cache));
+		// the program and its two functions
+		Assert.assertEquals(3, cacheDir.toFile().list().length);
+		Assert.assertEquals(code, IntermediateInstruction.toString(Translator
+				.compile(source, 0, cache)));
+		Assert.assertEquals(3, cacheDir.toFile().list().length);
+
+		// only h and the program are compiled again
+		String edited = source.replace("b < 10", "b < 20");
+		ByteArrayOutputStream outSpy = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(outSpy));
+		VM.run(IntermediateInstruction.toString(Translator.compile(edited,
+				Optimizer.MAX_LEVEL, cache)));
+		System.setOut(null);
+		Assert.assertEquals(5, cacheDir.toFile().list().length);
+		Assert.assertEquals("26", outSpy.toString());
+	}
+
+	@Test
+	public void compileCacheEvictsLeastRecentlyUsedEntriesTest()
+			throws Exception {
+		Path cacheDir = folder.getRoot().toPath();
+		CompileCache cache = new CompileCache(cacheDir, 40);
+		List<IntermediateInstruction> code = IntermediateInstruction
+				.parse("PUSH 1\nPRINT\nHALT\n");
+		cache.putProgram("a", code);
+		cache.putProgram("b", code);
+		Files.setLastModifiedTime(cacheDir.resolve("a.int"),
+				FileTime.fromMillis(0));
+		Files.setLastModifiedTime(cacheDir.resolve("b.int"),
+				FileTime.fromMillis(1000));
+		cache.putProgram("c", code);
+		Assert.assertNull(cache.getProgram("a"));
+		Assert.assertNotNull(cache.getProgram("b"));
+		Assert.assertNotNull(cache.getProgram("c"));
+	}
+
 	@Test
 	public void throwsUndeclaredVariableException_ifReadingUndefinedVariableTest()
 			throws Exception {
@@ -71,6 +300,32 @@ public class CompilerTest {
 		// evaluation performed by expected exception
 	}
 
+	@Test
+	public void throwsTypeMismatchException_atEveryLevelTest()
+			throws Exception {
+		String[][] programs = {
+				{ "bool x = true;\nprint(x + 1);",
+						"2:6 type mismatch: <bool> found where <int> is expected" },
+				{ "int x = 1;\nbool y = x && true;",
+						"2:9 type mismatch: <int> found where <bool> is expected" },
+				{ "int x;\nx = 1 < 2;",
+						"2:4 type mismatch: <bool> found where <int> is expected" },
+				{ "bool b = true;\nint i = 1;\nprint(b == i);",
+						"3:11 type mismatch: <int> found where <bool> is expected" },
+				{ "bool b = false;\nfunc f() { b++; return b; }\nprint(f());",
+						"2:11 type mismatch: <bool> found where <int> is expected" } };
+		for (int level = 0; level <= Optimizer.MAX_LEVEL; level++) {
+			for (String[] program : programs) {
+				try {
+					compileAndRun(program[0], level);
+					Assert.fail(program[0]);
+				} catch (TypeMismatchException e) {
+					Assert.assertEquals(program[1], e.getMessage());
+				}
+			}
+		}
+	}
+
 	public String[][] dataProvider() {
 		return new String[][] {
 				{ "print(1+2);", "3" },
@@ -139,6 +394,13 @@ public class CompilerTest {
 								+ "while(b < c){\n" + "	print(b);\n"
 								+ "	++b;\n" + "}\n" + "print(a);\n"
 								+ "print(b);\n" + "print(c);", "1212333" },
+				{
+						"stack s;\n" + "int i = 0;\n" + "while(i < 100) {\n"
+								+ "	s.push(i);\n" + "	i++;\n" + "}\n"
+								+ "int t = 0;\n"
+								+ "while(s.isEmpty() == false) {\n"
+								+ "	t = t + s.pop();\n" + "}\n" + "print(t);",
+						"4950" },
 				{
 						"/* Check if number is Even or Odd\n"
 								+ " * @param x: input number\n"
@@ -154,9 +416,14 @@ public class CompilerTest {
 								+ "print(\"\\n\");\n" + "z = x^y;\n"
 								+ "print(z);", "1\n25" },
 				{
-						"int z;\n" + "z = 5 > 3;\n" + "int z1;\n"
+						"bool z;\n" + "z = 5 > 3;\n" + "bool z1;\n"
 								+ "z1 = 4 >= 7;\n" + "print(z || z1);\n",
 						"true" },
+				{
+						"int g = 1;\n" + "func f() {\n" + "  g = g + 1;\n"
+								+ "  print(g);\n" + "  return h();\n" + "}\n"
+								+ "func h() {\n" + "  return g;\n" + "}\n"
+								+ "print(f());\n" + "print(g);", "211" },
 				{
 						"stack s;\n" + "s.push(4+3);\n" + "print(s.peek());\n"
 								+ "print(\"\\n\");\n" + "s.pop();\n"
@@ -164,8 +431,13 @@ public class CompilerTest {
 	}
 
 	private void compileAndRun(String code) throws Exception {
-		code = Translator.generateIntermediateCode(Translator
-				.parse(new ANTLRInputStream(code)));
+		compileAndRun(code, 0);
+	}
+
+	private void compileAndRun(String code, int optimizationLevel)
+			throws Exception {
+		code = Translator.generateIntermediateCode(
+				Translator.parse(new ANTLRInputStream(code)), optimizationLevel);
 		VM.run(code);
 	}
 
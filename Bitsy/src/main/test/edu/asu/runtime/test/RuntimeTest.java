@@ -1,21 +1,59 @@
 package edu.asu.runtime.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import edu.asu.runtime.Batch;
+import edu.asu.runtime.BytecodeFile;
+import edu.asu.runtime.Engine;
+import edu.asu.runtime.ExecutionContext;
+import edu.asu.runtime.Instruction;
+import edu.asu.runtime.MemoTable;
+import edu.asu.runtime.Program;
+import edu.asu.runtime.Profiler;
+import edu.asu.runtime.ProgramLoader;
+import edu.asu.runtime.RegisterMachine;
+import edu.asu.runtime.RegisterProgram;
+import edu.asu.runtime.StackMachine;
 import edu.asu.runtime.VM;
+import edu.asu.runtime.Verifier;
+import edu.asu.runtime.exceptions.ProgramExecutionException;
+import edu.asu.runtime.io.Output;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
 public class RuntimeTest {
 
 	private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
 	@Before
 	public void setUpStreams() {
 		System.setOut(new PrintStream(outContent));
@@ -47,6 +85,55 @@ public class RuntimeTest {
 		System.setIn(System.in);
 	}
 
+	@Test
+	public void testInputArithmetic() {
+		/*
+		 * print(input() + 1 == 42);
+		 */
+		ByteArrayInputStream in = new ByteArrayInputStream("41".getBytes());
+		System.setIn(in);
+		VM.executeInstr(new String[] { "INPUT", "PUSH", "1", "ADD", "PUSH",
+				"42", "ISEQ", "PRINT", "HALT" });
+		assertEquals("true", outContent.toString());
+		System.setIn(System.in);
+	}
+
+	@Test
+	public void testSuccessiveInputs() {
+		/*
+		 * print("sum: "); 
+		 * print(input() + input());
+		 */
+		Iterator<String> lines = Arrays.asList("41", "1").iterator();
+		StringBuilder printed = new StringBuilder();
+		List<String> flushed = new ArrayList<>();
+		Output output = new Output() {
+			@Override
+			public void print(String text) {
+				printed.append(text);
+			}
+
+			@Override
+			public void flush() {
+				flushed.add(printed.toString());
+			}
+		};
+		new VM(ProgramLoader.decode(new String[] { "PUSH", "sum: ", "PRINT",
+				"INPUT", "INPUT", "ADD", "PRINT", "HALT" })).execute(
+				new ExecutionContext(lines::next, output));
+		// flushed before each input and at the end
+		assertEquals(Arrays.asList("sum: ", "sum: ", "sum: 42"), flushed);
+	}
+
+	@Test
+	public void testNumericText() {
+		/*
+		 * print("007");
+		 */
+		VM.executeInstr(new String[] { "PUSH", "007", "PRINT", "HALT" });
+		assertEquals("007", outContent.toString());
+	}
+
 	@Test
 	public void testDivision() {
 		/*
@@ -154,6 +241,18 @@ public class RuntimeTest {
 		assertEquals("2", outContent.toString());
 	}
 
+	@Test
+	public void testJumpIfTrue() {
+		/*
+		 * x = 1; 
+		 * if(!(x == 1)) { x = 2 } print(x);
+		 */
+		VM.executeInstr(new String[] { "PUSH", "1", "STORE", "x", "LOAD", "x",
+				"PUSH", "1", "ISEQ", "JIT", "Label1", "PUSH", "2", "STORE",
+				"x", "LABEL", "Label1", "LOAD", "x", "PRINT", "HALT" });
+		assertEquals("1", outContent.toString());
+	}
+
 	@Test
 	public void testWhileLoop() {
 		/*
@@ -208,6 +307,230 @@ public class RuntimeTest {
 		assertEquals("120", outContent.toString());
 	}
 
+	@Test
+	public void testSlotVariables() {
+		/*
+		 * int x = 3; 
+		 * print(scale(2)); 
+		 * print(x); 
+		 * func scale(int a) { 
+		 *   x = x * a; 
+		 *   return x; 
+		 * }
+		 */
+		VM.executeInstr(new String[] { "VAR", "x", "PUSH", "3", "STORE_SLOT",
+				"0", "PUSH", "2", "CALL", "scale", "PRINT", "LOAD_SLOT", "0",
+				"PRINT", "HALT", "LABEL", "scale", "GLOBAL", "x", "VAR", "a",
+				"STORE_SLOT", "1", "LOAD_SLOT", "0", "LOAD_SLOT", "1", "MUL",
+				"STORE_SLOT", "0", "LOAD_SLOT", "0", "RET" });
+		assertEquals("63", outContent.toString());
+	}
+
+	@Test
+	public void testSuperinstructions() {
+		/*
+		 * int i = 0; while(i < 3) { print(i); i++; } with fused instructions
+		 */
+		VM.executeInstr(new String[] { "VAR", "i", "VAR", "n", "PUSH", "3",
+				"STORE_SLOT", "1", "PUSH", "0", "STORE_SLOT", "0", "LABEL",
+				"loop", "LOAD_LOAD", "0", "1", "JGE", "end", "LOAD_SLOT", "0",
+				"PRINT", "POP", "INC", "0", "JMP", "loop", "LABEL", "end",
+				"DEC", "0", "LOAD_SLOT", "0", "PRINT", "HALT" });
+		assertEquals("0122", outContent.toString());
+	}
+
+	@Test
+	public void testTableEngine() {
+		/*
+		 * int i = 0; while(i < 3) { print(sq(i)); i++; } 
+		 * func sq(int a) { return a * a; }
+		 */
+		VM.executeInstr(new String[] { "VAR", "i", "PUSH", "0", "STORE_SLOT",
+				"0", "LABEL", "loop", "LOAD_SLOT", "0", "PUSH", "3", "JGE",
+				"end", "LOAD_SLOT", "0", "CALL", "sq", "PRINT", "POP", "INC",
+				"0", "JMP", "loop", "LABEL", "end", "HALT", "LABEL", "sq",
+				"VAR", "a", "STORE_SLOT", "0", "LOAD_LOAD", "0", "0", "MUL",
+				"RET" }, Engine.TABLE);
+		assertEquals("014", outContent.toString());
+	}
+
+	@Test
+	public void testJitCompiledRegions() {
+		/*
+		 * int i = 0; while(i < 5) { print(fact(i)); i++; } 
+		 * func fact(int n) { if(n < 2) { return 1; } return n * fact(n - 1); }
+		 */
+		String code = "VAR i\nPUSH 0\nSTORE_SLOT 0\nLABEL loop\n"
+				+ "LOAD_SLOT 0\nPUSH 5\nJGE end\nLOAD_SLOT 0\nCALL fact\n"
+				+ "PRINT\nPOP\nINC 0\nJMP loop\nLABEL end\nHALT\n"
+				+ "LABEL fact\nVAR n\nSTORE_SLOT 0\nLOAD_SLOT 0\nPUSH 2\n"
+				+ "JGE rec\nPUSH 1\nRET\nLABEL rec\nLOAD_SLOT 0\n"
+				+ "LOAD_SLOT 0\nPUSH 1\nSUB\nCALL fact\nMUL\nRET\n";
+		VM.run(code, Engine.SWITCH, 2);
+		VM.run(code, Engine.TABLE, 2);
+		assertEquals("112624112624", outContent.toString());
+	}
+
+	@Test
+	public void testJitKeepsExecutionErrors() {
+		thrown.expect(ProgramExecutionException.class);
+		thrown.expectMessage("There should be at least two items on the stack to execute a binary instruction");
+		VM.run("VAR i\nPUSH 0\nSTORE_SLOT 0\nLABEL loop\nINC 0\n"
+				+ "LOAD_SLOT 0\nPUSH 3\nJGE end\nJMP loop\nLABEL end\n"
+				+ "ADD\nHALT\n",
+				Engine.SWITCH, 1);
+	}
+
+	@Test
+	public void testTailCallOutsideFunction() {
+		thrown.expect(ProgramExecutionException.class);
+		thrown.expectMessage("Invalid TAILCALL instruction");
+		VM.executeInstr(new String[] { "TAILCALL", "f", "HALT", "LABEL", "f",
+				"PUSH", "1", "RET" });
+	}
+
+	@Test
+	public void testFunctionWithoutDeclarationsHasEmptyFrame() {
+		thrown.expect(ProgramExecutionException.class);
+		thrown.expectMessage("Invalid slot 0 inside function: g");
+		ProgramLoader.decode(new String[] { "CALL", "f", "CALL", "g", "HALT",
+				"LABEL", "f", "VAR", "a", "PUSH", "1", "STORE_SLOT", "0",
+				"PUSH", "2", "RET", "LABEL", "g", "LOAD_SLOT", "0", "RET" });
+	}
+
+	@Test
+	public void testMaxCallDepth() {
+		thrown.expect(ProgramExecutionException.class);
+		thrown.expectMessage("Maximum call depth 100 exceeded calling f");
+		/*
+		 * f(); 
+		 * func f() { f(); }
+		 */
+		new VM(ProgramLoader.decode(new String[] { "CALL", "f", "HALT",
+				"LABEL", "f", "CALL", "f", "RET" }), Engine.SWITCH, 0, 100)
+				.execute();
+	}
+
+	@Test
+	public void testProfiler() throws IOException {
+		/*
+		 * int i = 0; 
+		 * while (i < 3) { f(); i++; } 
+		 * func f() { return 1; }
+		 */
+		Profiler profiler = new Profiler();
+		new VM(ProgramLoader.decode(new String[] { "VAR", "i", "PUSH", "0",
+				"STORE_SLOT", "0", "LABEL", "loop", "LOAD_SLOT", "0", "PUSH",
+				"3", "JGE", "end", "CALL", "f", "POP", "INC", "0", "JMP",
+				"loop", "LABEL", "end", "HALT", "LABEL", "f", "PUSH", "1",
+				"RET" }), Engine.TABLE, 1).execute(ExecutionContext.system(),
+				profiler);
+		assertEquals(4, profiler.getOpcodeCount(Instruction.LOAD_SLOT));
+		assertEquals(3, profiler.getOpcodeCount(Instruction.RET));
+		assertEquals(1, profiler.getCalls("main"));
+		assertEquals(3, profiler.getCalls("f"));
+		assertEquals(3, profiler.getIterations(4));
+		StringBuilder json = new StringBuilder();
+		profiler.writeJson(json);
+		assertTrue(json.toString().contains("\"INC\": 3"));
+	}
+
+	@Test
+	public void testVerifier() {
+		// the loop and the function of testProfiler
+		Program program = ProgramLoader.decode(new String[] { "VAR", "i",
+				"PUSH", "0", "STORE_SLOT", "0", "LABEL", "loop", "LOAD_SLOT",
+				"0", "PUSH", "3", "JGE", "end", "CALL", "f", "PRINT", "POP",
+				"INC", "0", "JMP", "loop", "LABEL", "end", "HALT", "LABEL",
+				"f", "PUSH", "1", "RET" });
+		assertEquals(2, Verifier.verify(program));
+		VM vm = new VM(program);
+		assertTrue(vm.isVerified());
+		vm.execute();
+		assertEquals("111", outContent.toString());
+
+		// the loop pushes one more item at every iteration
+		try {
+			Verifier.verify(ProgramLoader.decode(new String[] { "LABEL",
+					"loop", "PUSH", "1", "JMP", "loop" }));
+			fail();
+		} catch (ProgramExecutionException e) {
+			assertEquals(
+					"Verification failed: Operand stack depths 0 and 1 meet at 0",
+					e.getMessage());
+		}
+		// a rejected program still runs with the checks
+		thrown.expect(ProgramExecutionException.class);
+		thrown.expectMessage("at least one item");
+		vm = new VM(ProgramLoader.decode(new String[] { "PRINT", "HALT" }));
+		assertFalse(vm.isVerified());
+		vm.execute();
+	}
+
+	@Test
+	public void testRegisterMachine() {
+		// i = 0; while (i < 3) { j = i * 2 + 1; print(f(j)); i++; }, f
+		// returning its argument plus one
+		Program program = ProgramLoader.decode(new String[] { "VAR", "i",
+				"VAR", "j", "PUSH", "0", "STORE_SLOT", "0", "LABEL", "loop",
+				"LOAD_SLOT", "0", "PUSH", "3", "JGE", "end", "LOAD_SLOT", "0",
+				"PUSH", "2", "MUL", "PUSH", "1", "ADD", "STORE_SLOT", "1",
+				"LOAD_SLOT", "1", "CALL", "f", "PRINT", "POP", "INC", "0",
+				"JMP", "loop", "LABEL", "end", "HALT", "LABEL", "f", "VAR",
+				"n", "STORE_SLOT", "0", "LOAD_SLOT", "0", "PUSH", "1", "ADD",
+				"RET" });
+		RegisterMachine machine = new RegisterMachine(
+				RegisterProgram.lower(program), ExecutionContext.system());
+		machine.run();
+		assertEquals("246", outContent.toString());
+
+		Profiler profiler = new Profiler();
+		new StackMachine(program, new ExecutionContext(
+				new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream()))
+				.run(profiler);
+		long stackInstructions = 0;
+		for (Instruction instruction : Instruction.values()) {
+			stackInstructions += profiler.getOpcodeCount(instruction);
+		}
+		// the loads, constants and stores are operands of the three-address
+		// instructions
+		assertEquals(66, stackInstructions);
+		assertEquals(36, machine.getExecutedInstructions());
+
+		// errors are reported as by the stack machine
+		thrown.expect(ProgramExecutionException.class);
+		thrown.expectMessage("Undefined Variable");
+		new VM(ProgramLoader.decode(new String[] { "VAR", "x", "PUSH", "1",
+				"PRINT", "LOAD_SLOT", "0", "ADD", "HALT" }), Engine.REGISTER, 0)
+				.execute();
+	}
+
+	@Test
+	public void testMemoization() {
+		// f(n) returns n + 1, sq(n) returns n * n and leaves an item behind
+		String[] code = { "PUSH", "3", "CALL", "f", "PUSH", "3", "CALL", "f",
+				"PUSH", "4", "CALL", "f", "ADD", "ADD", "PRINT", "PUSH", "2",
+				"CALL", "sq", "PUSH", "2", "CALL", "sq", "ADD", "PRINT",
+				"HALT", "LABEL", "f", "PURE", "1", "VAR", "n", "STORE_SLOT",
+				"0", "LOAD_SLOT", "0", "PUSH", "1", "ADD", "RET", "LABEL",
+				"sq", "PURE", "1", "VAR", "n", "STORE_SLOT", "0", "PUSH", "0",
+				"LOAD_SLOT", "0", "LOAD_SLOT", "0", "MUL", "RET" };
+		Program program = ProgramLoader.decode(code);
+		assertEquals(1, program.getFrameLayout(26).getMemoParameters());
+		StackMachine machine = new StackMachine(program);
+		machine.run();
+		assertEquals("134", outContent.toString());
+		List<MemoTable> tables = machine.getMemoTables();
+		assertEquals(2, tables.size());
+		assertEquals("f", tables.get(0).getFuncName());
+		assertEquals(1, tables.get(0).getHits());
+		assertEquals(2, tables.get(0).getMisses());
+		assertEquals(2, tables.get(0).size());
+		// the calls of sq are never replaced
+		assertFalse(tables.get(1).isEnabled());
+		assertEquals(0, tables.get(1).getHits());
+	}
+
 	@Test
 	public void testPower() {
 		/*
@@ -249,4 +572,110 @@ public class RuntimeTest {
 				"PRINT", "STACK_POP", "s", "STACK_ISEMPTY", "s", "PRINT", "HALT" });
 		assertEquals(outContent.toString(), "7\ntrue");
 	}
+
+	@Test
+	public void testPopEmptyStackVariable() {
+		thrown.expect(ProgramExecutionException.class);
+		thrown.expectMessage("Empty Stack Variable: s");
+		VM.executeInstr(new String[] { "PUSH", "1", "STACK_PUSH", "s",
+				"STACK_POP", "s", "STACK_POP", "s", "HALT" });
+	}
+
+	@Test
+	public void testBytecodeFile() throws IOException {
+		/*
+		 * int x = 3; 
+		 * print(twice(x) == 6); 
+		 * print(" ok"); 
+		 * func twice(int a) { 
+		 *   return a * 2; 
+		 * }
+		 */
+		Program program = ProgramLoader.decode(new String[] { "VAR", "x",
+				"PUSH", "3", "STORE_SLOT", "0", "LOAD_SLOT", "0", "CALL",
+				"twice", "PUSH", "6", "ISEQ", "PRINT", "PUSH", " ok", "PRINT",
+				"HALT", "LABEL", "twice", "VAR", "a", "STORE_SLOT", "0",
+				"LOAD_SLOT", "0", "PUSH", "2", "MUL", "RET" });
+		Path path = folder.newFile("twice" + BytecodeFile.EXTENSION).toPath();
+		BytecodeFile.write(program, path);
+		new StackMachine(BytecodeFile.load(path)).run();
+		assertEquals("true ok", outContent.toString());
+	}
+
+	@Test
+	public void testConcurrentExecutions() throws Exception {
+		/*
+		 * int i = 0; 
+		 * int n = input(); 
+		 * while (i < n) { i = i + 1; } 
+		 * print(i * 2);
+		 */
+		VM vm = new VM(ProgramLoader.decode(new String[] { "VAR", "i", "VAR",
+				"n", "PUSH", "0", "STORE_SLOT", "0", "INPUT", "STORE_SLOT", "1",
+				"LABEL", "loop", "LOAD_SLOT", "0", "LOAD_SLOT", "1", "JGE",
+				"end", "INC", "0", "JMP", "loop", "LABEL", "end", "LOAD_SLOT",
+				"0", "PUSH", "2", "MUL", "PRINT", "HALT" }), Engine.TABLE, 0);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<String>> outputs = new ArrayList<>();
+		for (int i = 0; i < 64; i++) {
+			String input = Integer.toString(i * 1000);
+			outputs.add(executor.submit(() -> {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				vm.execute(new ExecutionContext(new ByteArrayInputStream(input
+						.getBytes()), new PrintStream(out)));
+				return out.toString();
+			}));
+		}
+		for (int i = 0; i < 64; i++) {
+			assertEquals(Integer.toString(i * 2000), outputs.get(i).get());
+		}
+		executor.shutdown();
+		assertEquals("", outContent.toString());
+	}
+
+	@Test
+	public void testBatchIsolatesOutputs() throws IOException {
+		Path directory = folder.newFolder("batch").toPath();
+		Files.write(directory.resolve("a.int"),
+				"PUSH \"a\" PRINT HALT".getBytes());
+		Files.write(directory.resolve("b.int"), "INPUT PRINT HALT".getBytes());
+		Files.write(directory.resolve("b.in"), "b".getBytes());
+		Files.write(directory.resolve("c.int"), "PRINT HALT".getBytes());
+		int failures = VM.executeBatch(directory, Engine.SWITCH, 0,
+				StackMachine.DEFAULT_MAX_CALL_DEPTH, true);
+		String[] lines = outContent.toString().split("\n");
+		assertEquals(1, failures);
+		assertEquals(7, lines.length);
+		assertEquals("a", lines[1]);
+		assertEquals("b", lines[3]);
+		assertTrue(lines[4].startsWith("== c.int") && lines[4].contains("failed"));
+		assertTrue(lines[6].startsWith("Batch: 3 files, 2 succeeded, 1 failed"));
+	}
+
+	@Test
+	public void testBatchIsolatesErrors() throws IOException {
+		Path directory = folder.newFolder("errors").toPath();
+		List<Path> files = Arrays.asList(directory.resolve("a.int"),
+				directory.resolve("b.int"));
+		int failures = Batch.run(files, (file, out, err) -> {
+			if (file.endsWith("a.int")) {
+				throw new StackOverflowError();
+			}
+			out.print("b");
+		}, System.out);
+		String[] lines = outContent.toString().split("\n");
+		assertEquals(1, failures);
+		assertTrue(lines[0].startsWith("== a.int") && lines[0].contains("failed"));
+		assertEquals("b", lines[3]);
+		assertTrue(lines[4].startsWith("Batch: 2 files, 1 succeeded, 1 failed"));
+	}
+
+	@Test
+	public void testBatchRejectsProfile() throws IOException {
+		Path directory = folder.newFolder("profiled").toPath();
+		Files.write(directory.resolve("a.int"),
+				"PUSH 1 PRINT HALT".getBytes(StandardCharsets.UTF_8));
+		VM.main(new String[] { "--profile", "--batch", directory.toString() });
+		assertTrue(outContent.toString().startsWith("Usage:"));
+	}
 }